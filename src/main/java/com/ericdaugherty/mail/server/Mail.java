@@ -141,18 +141,19 @@ public class Mail {
 
             //Start the threads.
             int port;
-            int executeThreads = configurationManager.getExecuteThreadCount();
 
             //Start the Pop3 Thread.
             port = configurationManager.getPop3Port();
             if(logger.isDebugEnabled() ) logger.debug("Starting POP3 Service on port: {}", port);
-            popListener = new ServiceListener( port, Pop3Processor.class, executeThreads );
+            popListener = new ServiceListener( port, Pop3Processor.class, configurationManager.getPop3MinThreadCount(),
+                    configurationManager.getPop3ThreadCount(), Pop3Processor.MESSAGE_SERVICE_BUSY );
             new Thread( popListener, "POP3" ).start();
 
             //Start SMTP Threads.
             port = configurationManager.getSmtpPort();
             if( logger.isDebugEnabled() ) logger.debug( "Starting SMTP Service on port: {}", port);
-            smtpListener = new ServiceListener( port, SMTPProcessor.class, executeThreads );
+            smtpListener = new ServiceListener( port, SMTPProcessor.class, configurationManager.getSmtpMinThreadCount(),
+                    configurationManager.getSmtpThreadCount(), SMTPProcessor.MESSAGE_SERVICE_BUSY );
             new Thread( smtpListener, "SMTP" ).start();
 
             //Start the SMTPSender thread (This thread actually delivers the mail recieved
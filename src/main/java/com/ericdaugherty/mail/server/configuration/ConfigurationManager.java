@@ -40,6 +40,7 @@ import java.util.Enumeration;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -52,7 +53,11 @@ import java.net.UnknownHostException;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import com.ericdaugherty.mail.server.info.User;
+import com.ericdaugherty.mail.server.info.MailboxStore;
+import com.ericdaugherty.mail.server.info.MaildirStore;
 import com.ericdaugherty.mail.server.info.EmailAddress;
+import com.ericdaugherty.mail.server.services.general.DnsResolver;
+import com.ericdaugherty.mail.server.services.general.XbillDnsResolver;
 import com.ericdaugherty.mail.server.errors.InvalidAddressException;
 
 /**
@@ -107,6 +112,29 @@ public class ConfigurationManager implements ConfigurationParameterContants {
     /** The number of threads to use for each listener */
     private int executeThreadCount;
 
+    /** The minimum and maximum number of SMTP worker threads */
+    private int smtpMinThreadCount;
+    private int smtpThreadCount;
+
+    /** The minimum and maximum number of POP3 worker threads */
+    private int pop3MinThreadCount;
+    private int pop3ThreadCount;
+
+    /** The length of the operating system accept backlog for each listener */
+    private int listenerBacklog;
+
+    /** The number of accepted connections that may wait for a worker thread */
+    private int listenerQueueSize;
+
+    /** How the listeners handle connections, "threads", "virtual" or "nio" */
+    private String listenerMode;
+
+    /** The number of event loop threads to use for each listener in nio mode */
+    private int listenerReactorCount;
+
+    /** True if each event loop thread binds its own SO_REUSEPORT socket */
+    private boolean listenerReusePort;
+
     /** The local IP address to lisen on.  Null for all addresses */
     private InetAddress listenAddress;
 
@@ -134,6 +162,9 @@ public class ConfigurationManager implements ConfigurationParameterContants {
     /** The servers to send all outgoing mail through */
     private DefaultSmtpServer[] defaultSmtpServers;
 
+    /** How deliveries are spread over the default servers. */
+    private String defaultSmtpServerBalance;
+
     /**
      * True if email to the local domain for a non-existent
      * user should be delivered to the default user.
@@ -152,9 +183,57 @@ public class ConfigurationManager implements ConfigurationParameterContants {
      */
     private int deliveryAttemptThreshold;
 
+    /** The number of threads that deliver queued messages. */
+    private int deliveryThreadCount;
+
+    /** True if the delivery threads are virtual threads. */
+    private boolean deliveryVirtualThreads;
+
+    /** The maximum number of connections to one destination domain. */
+    private int deliveryConnections;
+
+    /** The connection limits of the domains that have their own. */
+    private Map<String, Integer> domainDeliveryConnections = new HashMap<>();
+
+    /** The time (in milliseconds) idle connections to remote servers are kept open. */
+    private long deliveryConnectionIdleMilliseconds;
+
+    /** The maximum number of messages sent over one connection to a remote server. */
+    private int deliveryConnectionMessages;
+
+    /** The time (in milliseconds) to wait for a connection to a remote server. */
+    private int deliveryConnectTimeoutMilliseconds;
+
+    /** The time (in milliseconds) between connection attempts to different addresses. */
+    private long deliveryConnectDelayMilliseconds;
+
+    /** The number of consecutive failed connections after which a remote server is skipped. */
+    private int deliveryServerFailures;
+
+    /** The time (in milliseconds) a failed remote server is skipped. */
+    private long deliveryServerRetryMilliseconds;
+
     /** The maximum size (in megabytes) allowed for email attachments. */
     private int maximumMessageSize;
 
+    /** The store for the mailboxes of local users. */
+    private MailboxStore mailboxStore;
+
+    /** Answers the DNS queries of the server. */
+    private DnsResolver dnsResolver;
+
+    /** The maximum number of cached DNS answers. */
+    private int dnsCacheSize;
+
+    /** The time (in milliseconds) the absence of a DNS record is cached. */
+    private long dnsNegativeCacheMilliseconds;
+
+    /** The maximum number of outstanding DNS queries. */
+    private int dnsThreadCount;
+
+    /** The time (in milliseconds) to wait for a DNS answer. */
+    private long dnsTimeoutMilliseconds;
+
     /** A Map of Users keyed by their full username */
     private Map users;
 
@@ -274,12 +353,157 @@ public class ConfigurationManager implements ConfigurationParameterContants {
         return deliveryAttemptThreshold;
     }
 
+    /**
+     * The number of threads that deliver queued messages.  Only read when
+     * the server starts.
+     *
+     * @return int
+     */
+    public int getDeliveryThreadCount() {
+        return deliveryThreadCount;
+    }
+
+    /**
+     * True if the delivery threads are virtual threads.
+     *
+     * @return boolean
+     */
+    public boolean isDeliveryVirtualThreads() {
+        return deliveryVirtualThreads;
+    }
+
+    /**
+     * The maximum number of connections that may be open to a destination
+     * domain at the same time.
+     *
+     * @param domain the destination domain, in lower case.
+     * @return int
+     */
+    public int getDeliveryConnections( String domain ) {
+        Integer connections = domainDeliveryConnections.get( domain );
+        return connections == null ? deliveryConnections : connections;
+    }
+
+    /**
+     * The time idle connections to remote servers are kept open for reuse.
+     * 0 if connections are closed after each delivery.
+     *
+     * @return long
+     */
+    public long getDeliveryConnectionIdleMilliseconds() {
+        return deliveryConnectionIdleMilliseconds;
+    }
+
+    /**
+     * The maximum number of messages sent over one connection to a remote
+     * server.
+     *
+     * @return int
+     */
+    public int getDeliveryConnectionMessages() {
+        return deliveryConnectionMessages;
+    }
+
+    /**
+     * The time to wait for a connection to a remote server to be
+     * established.
+     *
+     * @return int
+     */
+    public int getDeliveryConnectTimeoutMilliseconds() {
+        return deliveryConnectTimeoutMilliseconds;
+    }
+
+    /**
+     * The time a connection attempt to a remote server is given before the
+     * next address is tried at the same time.
+     *
+     * @return long
+     */
+    public long getDeliveryConnectDelayMilliseconds() {
+        return deliveryConnectDelayMilliseconds;
+    }
+
+    /**
+     * The number of consecutive failed connections after which a remote
+     * server is skipped for a time.
+     *
+     * @return int
+     */
+    public int getDeliveryServerFailures() {
+        return deliveryServerFailures;
+    }
+
+    /**
+     * The time a failed remote server is skipped before it is tried again.
+     *
+     * @return long
+     */
+    public long getDeliveryServerRetryMilliseconds() {
+        return deliveryServerRetryMilliseconds;
+    }
+
     /** The maximum size (in megabytes) allowed for email attachments.
      * @return  */
     public int getMaximumMessageSize() {
         return maximumMessageSize;
     }
 
+    /**
+     * The store that holds the mailboxes of local users.
+     *
+     * @return the MailboxStore.
+     */
+    public MailboxStore getMailboxStore() {
+        return mailboxStore;
+    }
+
+    /**
+     * The resolver that answers the DNS queries of the server.
+     *
+     * @return the DnsResolver.
+     */
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * The maximum number of DNS answers that are cached.
+     *
+     * @return int
+     */
+    public int getDnsCacheSize() {
+        return dnsCacheSize;
+    }
+
+    /**
+     * The time the absence of a DNS name or record is cached.
+     *
+     * @return long
+     */
+    public long getDnsNegativeCacheMilliseconds() {
+        return dnsNegativeCacheMilliseconds;
+    }
+
+    /**
+     * The number of threads that send DNS queries.  Only read when the
+     * server starts.
+     *
+     * @return int
+     */
+    public int getDnsThreadCount() {
+        return dnsThreadCount;
+    }
+
+    /**
+     * The time to wait for the answer to a DNS query.
+     *
+     * @return long
+     */
+    public long getDnsTimeoutMilliseconds() {
+        return dnsTimeoutMilliseconds;
+    }
+
     /**
      * The root directory used to store the incoming and outgoing messages.
      *
@@ -349,6 +573,168 @@ public class ConfigurationManager implements ConfigurationParameterContants {
         this.executeThreadCount = executeThreadCount;
     }
 
+    /**
+     * The minimum number of SMTP worker threads.
+     *
+     * @return int
+     */
+    public int getSmtpMinThreadCount() {
+        return smtpMinThreadCount;
+    }
+
+    /**
+     * The minimum number of SMTP worker threads.
+     *
+     * @param smtpMinThreadCount int
+     */
+    public void setSmtpMinThreadCount(int smtpMinThreadCount) {
+        this.smtpMinThreadCount = smtpMinThreadCount;
+    }
+
+    /**
+     * The maximum number of SMTP worker threads.
+     *
+     * @return int
+     */
+    public int getSmtpThreadCount() {
+        return smtpThreadCount;
+    }
+
+    /**
+     * The maximum number of SMTP worker threads.
+     *
+     * @param smtpThreadCount int
+     */
+    public void setSmtpThreadCount(int smtpThreadCount) {
+        this.smtpThreadCount = smtpThreadCount;
+    }
+
+    /**
+     * The minimum number of POP3 worker threads.
+     *
+     * @return int
+     */
+    public int getPop3MinThreadCount() {
+        return pop3MinThreadCount;
+    }
+
+    /**
+     * The minimum number of POP3 worker threads.
+     *
+     * @param pop3MinThreadCount int
+     */
+    public void setPop3MinThreadCount(int pop3MinThreadCount) {
+        this.pop3MinThreadCount = pop3MinThreadCount;
+    }
+
+    /**
+     * The maximum number of POP3 worker threads.
+     *
+     * @return int
+     */
+    public int getPop3ThreadCount() {
+        return pop3ThreadCount;
+    }
+
+    /**
+     * The maximum number of POP3 worker threads.
+     *
+     * @param pop3ThreadCount int
+     */
+    public void setPop3ThreadCount(int pop3ThreadCount) {
+        this.pop3ThreadCount = pop3ThreadCount;
+    }
+
+    /**
+     * The length of the operating system accept backlog for each listener.
+     *
+     * @return int
+     */
+    public int getListenerBacklog() {
+        return listenerBacklog;
+    }
+
+    /**
+     * The length of the operating system accept backlog for each listener.
+     *
+     * @param listenerBacklog int
+     */
+    public void setListenerBacklog(int listenerBacklog) {
+        this.listenerBacklog = listenerBacklog;
+    }
+
+    /**
+     * The number of accepted connections that may wait for a worker thread.
+     *
+     * @return int
+     */
+    public int getListenerQueueSize() {
+        return listenerQueueSize;
+    }
+
+    /**
+     * The number of accepted connections that may wait for a worker thread.
+     *
+     * @param listenerQueueSize int
+     */
+    public void setListenerQueueSize(int listenerQueueSize) {
+        this.listenerQueueSize = listenerQueueSize;
+    }
+
+    /**
+     * How the listeners handle connections, "threads", "virtual" or "nio".
+     *
+     * @return the listener mode.
+     */
+    public String getListenerMode() {
+        return listenerMode;
+    }
+
+    /**
+     * How the listeners handle connections, "threads", "virtual" or "nio".
+     *
+     * @param listenerMode the listener mode.
+     */
+    public void setListenerMode(String listenerMode) {
+        this.listenerMode = listenerMode;
+    }
+
+    /**
+     * The number of event loop threads to use for each listener in nio mode.
+     *
+     * @return int
+     */
+    public int getListenerReactorCount() {
+        return listenerReactorCount;
+    }
+
+    /**
+     * The number of event loop threads to use for each listener in nio mode.
+     *
+     * @param listenerReactorCount int
+     */
+    public void setListenerReactorCount(int listenerReactorCount) {
+        this.listenerReactorCount = listenerReactorCount;
+    }
+
+    /**
+     * True if each event loop thread binds its own SO_REUSEPORT socket.
+     *
+     * @return boolean
+     */
+    public boolean isListenerReusePort() {
+        return listenerReusePort;
+    }
+
+    /**
+     * True if each event loop thread binds its own SO_REUSEPORT socket.
+     *
+     * @param listenerReusePort boolean
+     */
+    public void setListenerReusePort(boolean listenerReusePort) {
+        this.listenerReusePort = listenerReusePort;
+    }
+
     /**
      * The local IP address to lisen on.  Null for all addresses
      *
@@ -481,6 +867,16 @@ public class ConfigurationManager implements ConfigurationParameterContants {
         this.defaultSmtpServers = defaultSmtpServers;
     }
 
+    /**
+     * How deliveries are spread over the default servers, one of the
+     * BALANCE_ values.
+     *
+     * @return String
+     */
+    public String getDefaultSmtpServerBalance() {
+        return defaultSmtpServerBalance;
+    }
+
     public boolean isDefaultUserEnabled() {
         return defaultUserEnabled;
     }
@@ -564,6 +960,34 @@ public class ConfigurationManager implements ConfigurationParameterContants {
             executeThreadCount = 5;
         }
 
+        //Load the worker pool sizes for each service.  The threads setting is
+        //the default maximum for both.
+        smtpThreadCount = parseCount( properties, SMTP_THREADS, executeThreadCount, 1 );
+        smtpMinThreadCount = Math.min( parseCount( properties, SMTP_THREADS_MIN, 1, 0 ), smtpThreadCount );
+        pop3ThreadCount = parseCount( properties, POP3_THREADS, executeThreadCount, 1 );
+        pop3MinThreadCount = Math.min( parseCount( properties, POP3_THREADS_MIN, 1, 0 ), pop3ThreadCount );
+        listenerBacklog = parseCount( properties, LISTENER_BACKLOG, 50, 1 );
+        listenerQueueSize = parseCount( properties, LISTENER_QUEUE, 50, 1 );
+
+        //Load the listener mode and the number of event loop threads used in nio mode.
+        listenerMode = properties.getProperty( LISTENER_MODE, LISTENER_MODE_THREADS ).trim().toLowerCase();
+        if( !listenerMode.equals( LISTENER_MODE_THREADS ) && !listenerMode.equals( LISTENER_MODE_VIRTUAL )
+                && !listenerMode.equals( LISTENER_MODE_NIO ) ) {
+            logger.warn( "Invalid value for property: {}.  Using default value of {}.", LISTENER_MODE, LISTENER_MODE_THREADS );
+            listenerMode = LISTENER_MODE_THREADS;
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        String reactorsString = properties.getProperty( LISTENER_REACTORS, String.valueOf( processors ) );
+        try {
+            listenerReactorCount = Math.max( 1, Integer.parseInt( reactorsString.trim() ) );
+        }
+        catch( NumberFormatException nfe ) {
+            logger.warn( "Invalid value for property: {}.  Using default value of {}.", LISTENER_REACTORS, processors );
+            listenerReactorCount = processors;
+        }
+        listenerReusePort = Boolean.parseBoolean( properties.getProperty( LISTENER_REUSEPORT, "false" ).trim() );
+
         //
         // Load the address port numbers
         //
@@ -638,6 +1062,16 @@ public class ConfigurationManager implements ConfigurationParameterContants {
                 
                 defaultSmtpServers[i] = new DefaultSmtpServer();
                 defaultSmtpServers[i].setPort(25);
+                int star = server.indexOf('*');
+                if (star != -1) {
+                    try {
+                        defaultSmtpServers[i].setWeight(Math.max(1, Integer.parseInt(server.substring(star + 1).trim())));
+                    }
+                    catch( NumberFormatException nfe ) {
+                        logger.warn( "Invalid weight for default SMTP server: {}.  Using default value of 1.", raw[i] );
+                    }
+                    server = server.substring(0, star);
+                }
                 int colon = server.indexOf(':');
                 if (colon == -1) {
                     defaultSmtpServers[i].setHost(server);
@@ -661,6 +1095,13 @@ public class ConfigurationManager implements ConfigurationParameterContants {
             defaultSmtpServers = new DefaultSmtpServer[0];
         }
 
+        defaultSmtpServerBalance = properties.getProperty( DEFAULT_SMTP_SERVERS_BALANCE, BALANCE_ORDER ).trim().toLowerCase();
+        if( !Arrays.asList( BALANCE_ORDER, BALANCE_ROUND_ROBIN, BALANCE_WEIGHTED, BALANCE_LEAST_IN_FLIGHT, BALANCE_LATENCY )
+                .contains( defaultSmtpServerBalance ) ) {
+            logger.warn( "Invalid value for property: {}.  Using default value of {}.", DEFAULT_SMTP_SERVERS_BALANCE, BALANCE_ORDER );
+            defaultSmtpServerBalance = BALANCE_ORDER;
+        }
+
         // Load default user info
         String defaultUserString = properties.getProperty( DEFAULT_USER, "" ).trim();;
         if( defaultUserString.length() > 0 )
@@ -682,9 +1123,14 @@ public class ConfigurationManager implements ConfigurationParameterContants {
         String deliveryIntervalString = properties.getProperty( SMTP_DELIVERY_INTERVAL, "10" );
         try {
             //Convert to number and then convert to ms.
-            setDeliveryIntervalSeconds( Long.parseLong( deliveryIntervalString ) );
+            long deliveryInterval = Long.parseLong( deliveryIntervalString.trim() );
+            if( deliveryInterval < 1 ) {
+                throw new NumberFormatException( "The interval must be at least one second." );
+            }
+            setDeliveryIntervalSeconds( deliveryInterval );
         }
         catch( NumberFormatException nfe ) {
+            logger.warn( "Invalid value for property: {}. Defaulting to 10.", SMTP_DELIVERY_INTERVAL);
             setDeliveryIntervalSeconds( 10 );
         }
 
@@ -699,6 +1145,30 @@ public class ConfigurationManager implements ConfigurationParameterContants {
             deliveryAttemptThreshold = 10;
         }
 
+        // Set the number and kind of delivery threads.
+        deliveryThreadCount = parseCount( properties, SMTP_DELIVERY_THREADS, 4, 1 );
+        deliveryVirtualThreads = Boolean.parseBoolean( properties.getProperty( SMTP_DELIVERY_VIRTUAL, "false" ).trim() );
+
+        // Set the connection limits of the destination domains.
+        deliveryConnections = parseCount( properties, SMTP_DELIVERY_CONNECTIONS, 2, 1 );
+        Map<String, Integer> domainConnections = new HashMap<>();
+        String domainPrefix = SMTP_DELIVERY_CONNECTIONS + ".";
+        for( String name : properties.stringPropertyNames() ) {
+            if( name.startsWith( domainPrefix ) && name.length() > domainPrefix.length() ) {
+                domainConnections.put( name.substring( domainPrefix.length() ).toLowerCase(),
+                        parseCount( properties, name, deliveryConnections, 1 ) );
+            }
+        }
+        domainDeliveryConnections = domainConnections;
+
+        // Set how connections to remote servers are reused.
+        deliveryConnectionIdleMilliseconds = parseCount( properties, SMTP_DELIVERY_CONNECTION_IDLE, 30, 0 ) * 1000L;
+        deliveryConnectionMessages = parseCount( properties, SMTP_DELIVERY_CONNECTION_MESSAGES, 100, 1 );
+        deliveryConnectTimeoutMilliseconds = parseCount( properties, SMTP_DELIVERY_CONNECT_TIMEOUT, 30, 1 ) * 1000;
+        deliveryConnectDelayMilliseconds = parseCount( properties, SMTP_DELIVERY_CONNECT_DELAY, 250, 0 );
+        deliveryServerFailures = parseCount( properties, SMTP_DELIVERY_SERVER_FAILURES, 3, 1 );
+        deliveryServerRetryMilliseconds = parseCount( properties, SMTP_DELIVERY_SERVER_RETRY, 60, 1 ) * 1000L;
+
         // Set the Maximum message Size
         try
         {
@@ -707,9 +1177,26 @@ public class ConfigurationManager implements ConfigurationParameterContants {
         catch( NumberFormatException numberFormatException )
         {
             logger.warn( "Invalid value for property: {}. Defaulting to 5.", SMTP_MAX_MESSAGE_SIZE);
-            deliveryAttemptThreshold = 5;
+            maximumMessageSize = 5;
+        }
+
+        // Load the mailbox store.  A reload keeps the current store unless
+        // a different class is configured.
+        String mailboxStoreClass = properties.getProperty( MAILBOX_STORE, MaildirStore.class.getName() ).trim();
+        if( mailboxStore == null || !mailboxStore.getClass().getName().equals( mailboxStoreClass ) ) {
+            mailboxStore = loadMailboxStore( mailboxStoreClass );
         }
 
+        // Load the DNS resolver the same way, and the cache settings.
+        String dnsResolverClass = properties.getProperty( DNS_RESOLVER, XbillDnsResolver.class.getName() ).trim();
+        if( dnsResolver == null || !dnsResolver.getClass().getName().equals( dnsResolverClass ) ) {
+            dnsResolver = loadDnsResolver( dnsResolverClass );
+        }
+        dnsCacheSize = parseCount( properties, DNS_CACHE_SIZE, 1000, 1 );
+        dnsNegativeCacheMilliseconds = parseCount( properties, DNS_CACHE_NEGATIVE, 300, 0 ) * 1000L;
+        dnsThreadCount = parseCount( properties, DNS_THREADS, 8, 1 );
+        dnsTimeoutMilliseconds = parseCount( properties, DNS_TIMEOUT, 10, 1 ) * 1000L;
+
         // Update the 'last loaded' timestamp.
         generalConfigurationFileTimestamp = generalConfigurationFile.lastModified();
     }
@@ -821,6 +1308,74 @@ public class ConfigurationManager implements ConfigurationParameterContants {
         return value;
     }
 
+    /**
+     * Loads a count from the properties.
+     *
+     * @param properties the properties to load the value from.
+     * @param name the name of the property.
+     * @param defaultValue the value to use if the property is not set or is invalid.
+     * @param minimum the smallest valid value.
+     * @return a valid int.
+     */
+    private int parseCount( Properties properties, String name, int defaultValue, int minimum )
+    {
+        String stringValue = properties.getProperty( name, "" ).trim();
+        if( stringValue.length() == 0 ) {
+            return defaultValue;
+        }
+        try {
+            int value = Integer.parseInt( stringValue );
+            if( value >= minimum ) {
+                return value;
+            }
+        }
+        catch (NumberFormatException e) {
+            //Fall through to the warning.
+        }
+        logger.warn( "Invalid value for property: {}.  Using default value of {}.", name, defaultValue );
+        return defaultValue;
+    }
+
+    /**
+     * Creates the configured MailboxStore, or the default store if the
+     * class can not be loaded.
+     *
+     * @param className the class name of the MailboxStore implementation.
+     * @return a new MailboxStore.
+     */
+    private MailboxStore loadMailboxStore( String className )
+    {
+        try {
+            MailboxStore store = (MailboxStore) Class.forName( className ).getDeclaredConstructor().newInstance();
+            logger.info( "Using mailbox store: {}", className );
+            return store;
+        }
+        catch( ReflectiveOperationException | ClassCastException e ) {
+            logger.warn( "Invalid value for property: {}.  Using default value of {}. {}", MAILBOX_STORE, MaildirStore.class.getName(), e.toString() );
+            return new MaildirStore();
+        }
+    }
+
+    /**
+     * Creates the configured DnsResolver, or the default resolver if the
+     * class can not be loaded.
+     *
+     * @param className the class name of the DnsResolver implementation.
+     * @return a new DnsResolver.
+     */
+    private DnsResolver loadDnsResolver( String className )
+    {
+        try {
+            DnsResolver resolver = (DnsResolver) Class.forName( className ).getDeclaredConstructor().newInstance();
+            logger.info( "Using DNS resolver: {}", className );
+            return resolver;
+        }
+        catch( ReflectiveOperationException | ClassCastException e ) {
+            logger.warn( "Invalid value for property: {}.  Using default value of {}. {}", DNS_RESOLVER, XbillDnsResolver.class.getName(), e.toString() );
+            return new XbillDnsResolver();
+        }
+    }
+
     /**
      * Creates a new User instance for the specified username
      * using the specified properties.
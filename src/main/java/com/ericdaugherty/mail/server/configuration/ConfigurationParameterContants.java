@@ -83,6 +83,77 @@ public interface ConfigurationParameterContants {
      */
     public static final String EXECUTE_THREADS = "threads";
 
+    /**
+     * The maximum number of worker threads for the SMTP listener.  Defaults
+     * to the value of EXECUTE_THREADS.
+     */
+    public static final String SMTP_THREADS = "smtp.threads";
+
+    /**
+     * The number of SMTP worker threads that are kept running when idle.
+     * Defaults to 1.
+     */
+    public static final String SMTP_THREADS_MIN = "smtp.threads.min";
+
+    /**
+     * The maximum number of worker threads for the POP3 listener.  Defaults
+     * to the value of EXECUTE_THREADS.
+     */
+    public static final String POP3_THREADS = "pop3.threads";
+
+    /**
+     * The number of POP3 worker threads that are kept running when idle.
+     * Defaults to 1.
+     */
+    public static final String POP3_THREADS_MIN = "pop3.threads.min";
+
+    /**
+     * The length of the operating system queue of connections that have not
+     * yet been accepted by a listener.  Defaults to 50.
+     */
+    public static final String LISTENER_BACKLOG = "listener.backlog";
+
+    /**
+     * The number of accepted connections that may wait for a worker thread
+     * when all workers are busy.  Further connections are sent a "service
+     * not available" response and closed.  In nio mode this is the number
+     * of session steps that may wait for a worker.  Defaults to 50.
+     */
+    public static final String LISTENER_QUEUE = "listener.queue";
+
+    /**
+     * Defines how the SMTP and POP3 listeners handle connections.  "threads"
+     * (the default) serves clients from a bounded pool of worker threads.  "virtual"
+     * starts a new virtual thread for each connected client.  "nio" runs
+     * all clients on a small number of non-blocking event loop threads.
+     */
+    public static final String LISTENER_MODE = "listener.mode";
+
+    /** LISTENER_MODE value for a fixed pool of threads. */
+    public static final String LISTENER_MODE_THREADS = "threads";
+
+    /**
+     * LISTENER_MODE value for one virtual thread per connected client.  Falls
+     * back to platform threads on JVMs without virtual thread support.
+     */
+    public static final String LISTENER_MODE_VIRTUAL = "virtual";
+
+    /** LISTENER_MODE value for non-blocking event loop threads. */
+    public static final String LISTENER_MODE_NIO = "nio";
+
+    /**
+     * The number of event loop threads each listener uses when the listener
+     * mode is "nio".  Defaults to the number of available processors.
+     */
+    public static final String LISTENER_REACTORS = "listener.reactors";
+
+    /**
+     * When true and the listener mode is "nio", every event loop thread
+     * binds its own listening socket with SO_REUSEPORT, and the operating
+     * system spreads new connections across them.  Defaults to false.
+     */
+    public static final String LISTENER_REUSEPORT = "listener.reuseport";
+
     //***************************************************************
     // Mail Delivery Paramters
     //***************************************************************
@@ -93,10 +164,36 @@ public interface ConfigurationParameterContants {
     public static final String DEFAULT_USER = "defaultuser";
 
     /**
-     * The default server to deliver mail addressed to remote users.
+     * The default server to deliver mail addressed to remote users.  Each
+     * server is given as host[:port][*weight][/username:password].
      */
     public static final String DEFAULT_SMTP_SERVERS = "defaultsmtpservers";
 
+    /**
+     * Defines how deliveries are spread over the default servers.  "order"
+     * (the default) always prefers the first server that is available.
+     * "roundrobin" takes turns, "weighted" takes turns in proportion to the
+     * weights of the servers, "leastinflight" prefers the server with the
+     * fewest deliveries under way and "latency" prefers the server that
+     * answers fastest, allowing for the deliveries under way.
+     */
+    public static final String DEFAULT_SMTP_SERVERS_BALANCE = "defaultsmtpservers.balance";
+
+    /** DEFAULT_SMTP_SERVERS_BALANCE value for the order of the list. */
+    public static final String BALANCE_ORDER = "order";
+
+    /** DEFAULT_SMTP_SERVERS_BALANCE value for taking turns. */
+    public static final String BALANCE_ROUND_ROBIN = "roundrobin";
+
+    /** DEFAULT_SMTP_SERVERS_BALANCE value for taking turns by weight. */
+    public static final String BALANCE_WEIGHTED = "weighted";
+
+    /** DEFAULT_SMTP_SERVERS_BALANCE value for the fewest deliveries under way. */
+    public static final String BALANCE_LEAST_IN_FLIGHT = "leastinflight";
+
+    /** DEFAULT_SMTP_SERVERS_BALANCE value for the fastest server. */
+    public static final String BALANCE_LATENCY = "latency";
+
     /**
      * Enables the POP3 login as a valid address for SMTP Relaying.
      */
@@ -122,10 +219,10 @@ public interface ConfigurationParameterContants {
     public static final String RELAY_EMAILSLIST = "relay.emailaddresses";
 
     /**
-     * The server stores incoming SMTP messages on disk before attempting to deliver them.  This
-     * setting determines how often (in seconds) the server checks the disk for new messages to deliver.  The
-     * smaller the number, the faster message will be processed.  However, a smaller number will cause
-     * the server to use more of your system's resources.
+     * The server stores incoming SMTP messages on disk before attempting to deliver them.  Messages
+     * received by the server are queued for delivery immediately.  This setting determines how often
+     * (in seconds) the server checks the disk for other messages to deliver, such as messages copied
+     * into the spool directory.  Defaults to 10.
      */
     public static final String SMTP_DELIVERY_INTERVAL = "smtpdelivery.interval";
 
@@ -138,12 +235,112 @@ public interface ConfigurationParameterContants {
      */
     public static final String SMTP_DELIVERY_THRESHOLD = "smtpdelivery.threshold";
 
+    /**
+     * The number of threads that deliver queued messages concurrently, so a
+     * slow remote server only holds up its own messages.  Defaults to 4.
+     */
+    public static final String SMTP_DELIVERY_THREADS = "smtpdelivery.threads";
+
+    /**
+     * When true, the delivery threads are virtual threads.  Falls back to
+     * platform threads on JVMs without virtual thread support.  Defaults
+     * to false.
+     */
+    public static final String SMTP_DELIVERY_VIRTUAL = "smtpdelivery.virtual";
+
+    /**
+     * The maximum number of connections that are open to one destination
+     * domain at the same time.  Defaults to 2.  The limit for a single domain
+     * can be set with SMTP_DELIVERY_CONNECTIONS.&lt;domain&gt;.
+     */
+    public static final String SMTP_DELIVERY_CONNECTIONS = "smtpdelivery.connections";
+
+    /**
+     * The number of seconds a connection to a remote server is kept open
+     * after a delivery, so it can be reused for the next message to the
+     * same server.  0 closes connections after each delivery.  Defaults to 30.
+     */
+    public static final String SMTP_DELIVERY_CONNECTION_IDLE = "smtpdelivery.connection.idle";
+
+    /**
+     * The maximum number of messages sent over one connection to a remote
+     * server before it is closed.  Defaults to 100.
+     */
+    public static final String SMTP_DELIVERY_CONNECTION_MESSAGES = "smtpdelivery.connection.messages";
+
+    /**
+     * The number of seconds to wait for a connection to a remote server to
+     * be established.  Defaults to 30.
+     */
+    public static final String SMTP_DELIVERY_CONNECT_TIMEOUT = "smtpdelivery.connect.timeout";
+
+    /**
+     * The number of milliseconds to wait for a connection attempt before
+     * the next address of a mail server, or the next mail server with the
+     * same MX priority, is tried at the same time.  0 tries them all at
+     * once.  Defaults to 250.
+     */
+    public static final String SMTP_DELIVERY_CONNECT_DELAY = "smtpdelivery.connect.delay";
+
+    /**
+     * The number of consecutive failed connections to a remote server
+     * after which it is skipped for a time.  Defaults to 3.
+     */
+    public static final String SMTP_DELIVERY_SERVER_FAILURES = "smtpdelivery.server.failures";
+
+    /**
+     * The number of seconds a failed remote server is skipped before one
+     * delivery tries it again.  The time doubles each time that attempt
+     * fails.  Defaults to 60.
+     */
+    public static final String SMTP_DELIVERY_SERVER_RETRY = "smtpdelivery.server.retry";
+
     /**
      * This setting limits the size of incoming SMTP messages.  This setting
      * (in megabytes) will cause emails over the max size to be rejected.
      */
     public static final String SMTP_MAX_MESSAGE_SIZE = "smtp.messagesize";
 
+    /**
+     * The class name of the MailboxStore implementation that stores the
+     * mailboxes of local users.  Defaults to the Maildir based store.
+     */
+    public static final String MAILBOX_STORE = "mailbox.store";
+
+    //***************************************************************
+    // DNS Parameters
+    //***************************************************************
+
+    /**
+     * The class name of the DnsResolver implementation that answers the
+     * DNS queries of the server.  Defaults to a resolver that queries the
+     * DNS servers of the system.
+     */
+    public static final String DNS_RESOLVER = "dns.resolver";
+
+    /**
+     * The maximum number of DNS answers that are cached.  Defaults to 1000.
+     */
+    public static final String DNS_CACHE_SIZE = "dns.cache.size";
+
+    /**
+     * The number of seconds the absence of a name or record is cached.
+     * Defaults to 300.
+     */
+    public static final String DNS_CACHE_NEGATIVE = "dns.cache.negative";
+
+    /**
+     * The number of threads that send DNS queries, which is the maximum
+     * number of queries outstanding at the same time.  Defaults to 8.
+     */
+    public static final String DNS_THREADS = "dns.threads";
+
+    /**
+     * The number of seconds to wait for the answer to a DNS query.
+     * Defaults to 10.
+     */
+    public static final String DNS_TIMEOUT = "dns.timeout";
+
     //***************************************************************
     // User Parameters
     //***************************************************************
@@ -44,6 +44,7 @@ public class DefaultSmtpServer {
     private int port;
     private String username;
     private String password;
+    private int weight = 1;
 
     public String getHost() {
         return host;
@@ -69,6 +70,12 @@ public class DefaultSmtpServer {
     public void setPassword(String password) {
         this.password = password;
     }
+    public int getWeight() {
+        return weight;
+    }
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,338 @@
+/******************************************************************************
+ * $Workfile: MailboxIndex.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.info;
+
+//Java imports
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * A persistent index of the messages in a user's mailbox.  The index file
+ * holds one line per message with the file name (relative to the mailbox
+ * directory), the file size, the size reported to POP3 clients, the offset
+ * of the message body and the storage format, so a POP3 session can answer
+ * STAT, LIST and UIDL without listing the directory or reading the size of
+ * every message file.  The index is part of the MaildirStore.
+ * <p>
+ * Local delivery appends an entry for each new message, and expunging
+ * messages removes their entries.  The index is only trusted if it
+ * was written after the last change to the Maildir folders.  Otherwise,
+ * for example after messages were copied into the directory by hand or an
+ * older version of the server delivered mail, it is rebuilt from the
+ * message files.
+ *
+ * @author Eric Daugherty
+ */
+class MailboxIndex {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The name of the index file in the mailbox directory. */
+    static final String INDEX_FILE_NAME = "mailbox.idx";
+
+    /** Version 1.1 stores the body offset of plain messages in wire format. */
+    private static final String FILE_VERSION = "1.1";
+
+    private static final String FORMAT_WIRE = "W";
+    private static final String FORMAT_PLAIN = "P";
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(MailboxIndex.class.getName());
+
+    /** One lock per mailbox directory, shared by deliveries and POP3 sessions. */
+    private static final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private final Maildir maildir;
+    private final File indexFile;
+    private final Object lock;
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Creates the index for the specified Maildir.
+     *
+     * @param maildir the user's Maildir.
+     */
+    MailboxIndex( Maildir maildir ) {
+        this.directory = maildir.getDirectory();
+        this.maildir = maildir;
+        this.indexFile = new File( directory, INDEX_FILE_NAME );
+        this.lock = locks.computeIfAbsent( directory.getAbsolutePath(), key -> new Object() );
+    }
+
+    //***************************************************************
+    // Methods
+
+    /**
+     * Returns true if the index file reflects the current contents of the
+     * mailbox directory.  Callers that change the directory check this first,
+     * and only update the index if it was current, so changes made outside
+     * the server still cause a rebuild.
+     *
+     * @return true if the index can be trusted.
+     */
+    boolean isCurrent() {
+        synchronized( lock ) {
+            return indexFile.exists() && indexFile.lastModified() >= maildir.lastModified();
+        }
+    }
+
+    /**
+     * Returns the messages in the mailbox, in delivery order.  The index is
+     * rebuilt from the message files if it is missing or out of date.
+     *
+     * @return the messages.
+     */
+    Message[] load() {
+        synchronized( lock ) {
+            if( isCurrent() ) {
+                try {
+                    return read();
+                }
+                catch( IOException | RuntimeException e ) {
+                    logger.warn( "Mailbox index {} is invalid, rebuilding. {}", indexFile.getAbsolutePath(), e.toString() );
+                }
+            }
+            return rebuild();
+        }
+    }
+
+    /**
+     * Adds a newly delivered message to the index.
+     *
+     * @param message the message, with its sizes and body offset set.
+     * @throws IOException thrown if the index can not be written.
+     */
+    void append( Message message ) throws IOException {
+        synchronized( lock ) {
+            try( Writer out = new OutputStreamWriter( new FileOutputStream( indexFile, true ), StandardCharsets.UTF_8 ) ) {
+                out.write( toEntry( message ) );
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of messages that have been deleted from the
+     * mailbox.  Entries appended since the mailbox was loaded are kept.
+     *
+     * @param removed the deleted messages.
+     * @throws IOException thrown if the index can not be written.
+     */
+    void remove( Collection<Message> removed ) throws IOException {
+        synchronized( lock ) {
+            Set<String> removedNames = new HashSet<>();
+            for( Message message : removed ) {
+                removedNames.add( getEntryName( message ) );
+            }
+            Map<String, Message> messages = readEntries();
+            messages.keySet().removeAll( removedNames );
+            write( messages.values() );
+        }
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Reads the index file.
+     */
+    private Message[] read() throws IOException {
+        Collection<Message> messages = readEntries().values();
+        if( logger.isDebugEnabled() ) logger.debug( "Loaded {} messages from mailbox index {}", messages.size(), indexFile.getAbsolutePath() );
+        return messages.toArray( new Message[messages.size()] );
+    }
+
+    /**
+     * Reads the index file into a map keyed by file name.  A message may be
+     * listed twice if it was delivered while the index was being rebuilt, in
+     * which case the last entry wins.
+     */
+    private Map<String, Message> readEntries() throws IOException {
+        Map<String, Message> messages = new LinkedHashMap<>();
+        try( BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( indexFile ), StandardCharsets.UTF_8 ) ) ) {
+            String version = in.readLine();
+            if( !FILE_VERSION.equals( version ) ) {
+                throw new IOException( "Invalid index version: " + version );
+            }
+            String line;
+            while( ( line = in.readLine() ) != null ) {
+                String[] fields = line.split( " " );
+                if( fields.length != 5 ) {
+                    throw new IOException( "Invalid index entry: " + line );
+                }
+                Message message = new Message();
+                message.setMessageLocation( new File( directory, fields[0] ) );
+                message.setMessageSize( Long.parseLong( fields[1] ) );
+                message.setOctetCount( Long.parseLong( fields[2] ) );
+                message.setBodyOffset( Long.parseLong( fields[3] ) );
+                message.setWireFormat( FORMAT_WIRE.equals( fields[4] ) );
+                messages.put( fields[0], message );
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Scans the message files in the Maildir and writes a new index.
+     */
+    private Message[] rebuild() {
+        maildir.cleanTmp();
+        Map<String, Message> messages = new LinkedHashMap<>();
+        for( File file : maildir.listMessageFiles() ) {
+            try {
+                Message message = scan( file );
+                messages.put( getEntryName( message ), message );
+            }
+            catch( IOException ioe ) {
+                logger.error( "Unable to read message {}", file.getAbsolutePath(), ioe );
+            }
+        }
+        logger.info( "Rebuilt mailbox index {} with {} messages.", indexFile.getAbsolutePath(), messages.size() );
+        try {
+            write( messages.values() );
+        }
+        catch( IOException ioe ) {
+            logger.error( "Unable to write mailbox index {}", indexFile.getAbsolutePath(), ioe );
+        }
+        return messages.values().toArray( new Message[messages.size()] );
+    }
+
+    /**
+     * Replaces the index file with the specified entries.  The new index is
+     * written to a temporary file and renamed, so a failed write leaves the
+     * old index in place.
+     */
+    private void write( Collection<Message> messages ) throws IOException {
+        File tempFile = new File( directory, INDEX_FILE_NAME + ".tmp" );
+        try( Writer out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( tempFile ), StandardCharsets.UTF_8 ) ) ) {
+            out.write( FILE_VERSION );
+            out.write( "\n" );
+            for( Message message : messages ) {
+                out.write( toEntry( message ) );
+            }
+        }
+        Files.move( tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        //The rename changed the directory, which would make the index look
+        //out of date.
+        indexFile.setLastModified( Math.max( System.currentTimeMillis(), maildir.lastModified() ) );
+    }
+
+    /**
+     * Returns the name of a message file relative to the mailbox directory,
+     * such as new/1234.M5P6Q7.host, which identifies its index entry.
+     */
+    private String getEntryName( Message message ) {
+        File file = message.getMessageLocation();
+        File folder = file.getParentFile();
+        if( folder == null || folder.equals( directory ) ) {
+            return file.getName();
+        }
+        return folder.getName() + "/" + file.getName();
+    }
+
+    /**
+     * Formats the index entry for a message.
+     */
+    private String toEntry( Message message ) {
+        return new StringBuilder()
+                .append( getEntryName( message ) ).append( ' ' )
+                .append( message.getMessageSize() ).append( ' ' )
+                .append( message.getOctetCount() ).append( ' ' )
+                .append( message.getBodyOffset() ).append( ' ' )
+                .append( message.isWireFormat() ? FORMAT_WIRE : FORMAT_PLAIN )
+                .append( '\n' ).toString();
+    }
+
+    /**
+     * Reads a message file to determine the values stored in the index.
+     * Offsets and sizes refer to the message in wire format, which for
+     * messages stored as plain lines is not the same as the file.
+     */
+    private static Message scan( File file ) throws IOException {
+
+        Message message = new Message();
+        message.setMessageLocation( file );
+        message.setMessageSize( file.length() );
+
+        MessageScanner scanner = new MessageScanner();
+        boolean wireFormat = message.isWireFormat();
+        byte[] buffer = new byte[8 * 1024];
+        try( InputStream in = wireFormat ? new FileInputStream( file ) : new PlainMessageInputStream( new FileInputStream( file ) ) ) {
+            //Only the header of a message in wire format has to be read,
+            //plain messages are converted to find their size.
+            int count;
+            while( ( !wireFormat || !scanner.isBodyFound() ) && ( count = in.read( buffer ) ) != -1 ) {
+                scanner.update( buffer, 0, count );
+            }
+        }
+        scanner.apply( message, wireFormat ? file.length() : scanner.getSize() );
+        return message;
+    }
+}
+//EOF
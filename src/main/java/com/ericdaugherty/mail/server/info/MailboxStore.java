@@ -0,0 +1,100 @@
+/******************************************************************************
+ * $Workfile: MailboxStore.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.info;
+
+//Java imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+
+/**
+ * Stores the messages of local users.  The POP3 service and local delivery
+ * only access mailboxes through this interface, so the storage can be
+ * replaced without changing the protocol code.  The implementation is
+ * selected with the mailbox.store property in mail.conf, and must have a
+ * public no argument constructor.  One instance is shared by all threads.
+ * <p>
+ * Messages are exchanged in wire format: CRLF line endings, lines that
+ * start with a period dot-stuffed, and a final line containing a single
+ * period.  This is the form a POP3 client receives, so a store that keeps
+ * messages this way can have them sent without any processing.
+ * <p>
+ * The default implementation is MaildirStore.
+ *
+ * @author Eric Daugherty
+ */
+public interface MailboxStore {
+
+    /**
+     * Returns the messages currently stored for a user.  The octet count of
+     * each message must be set, the other values are optional.  The result
+     * is a snapshot, messages delivered later are not included.
+     *
+     * @param user the owner of the mailbox.
+     * @return the messages, in delivery order.
+     * @throws IOException thrown if the mailbox can not be read.
+     */
+    public Message[] list( User user ) throws IOException;
+
+    /**
+     * Opens a message returned by list().  If the stream is a
+     * FileInputStream, the POP3 service sends the file with transferTo.
+     *
+     * @param message the message to read.
+     * @return the message in wire format, including the terminating line.
+     * @throws IOException thrown if the message can not be read.
+     */
+    public InputStream open( Message message ) throws IOException;
+
+    /**
+     * Adds a message to a user's mailbox.  The message must not become
+     * visible to list() until it has been stored completely.
+     *
+     * @param user the owner of the mailbox.
+     * @param message the message in wire format, including the terminating line.
+     * @throws IOException thrown if the message could not be stored.
+     */
+    public void append( User user, InputStream message ) throws IOException;
+
+    /**
+     * Permanently removes messages from a user's mailbox.
+     *
+     * @param user the owner of the mailbox.
+     * @param messages messages returned by list().
+     * @throws IOException thrown if the mailbox could not be updated.
+     */
+    public void expunge( User user, Collection<Message> messages ) throws IOException;
+}
+//EOF
@@ -0,0 +1,248 @@
+/******************************************************************************
+ * $Workfile: Maildir.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.info;
+
+//Java imports
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * The Maildir layout of a user's mailbox directory.  A message is written
+ * to the tmp folder under a unique name and then renamed into the new
+ * folder.  The rename is atomic, so a POP3 session never sees a partly
+ * written message, and deliveries do not need to lock the mailbox.
+ * <p>
+ * Messages are read from the new and cur folders.  Messages delivered by
+ * older versions, stored as pop*.jmsg files directly in the mailbox
+ * directory, are still read from there.
+ *
+ * @author Eric Daugherty
+ */
+class Maildir {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    static final String TMP = "tmp";
+    static final String NEW = "new";
+    static final String CUR = "cur";
+
+    /** Files left in tmp for this long (in milliseconds) are from failed deliveries. */
+    private static final long TMP_EXPIRY = 36L * 60 * 60 * 1000;
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(Maildir.class.getName());
+
+    /** The host part of the unique names. */
+    private static final String HOST_NAME = loadHostName();
+
+    private static final long PROCESS_ID = ProcessHandle.current().pid();
+
+    /** Makes names created within the same microsecond unique. */
+    private static final AtomicLong deliveryCount = new AtomicLong();
+
+    private final File directory;
+    private final File tmp;
+    private final File newFolder;
+    private final File cur;
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Opens the Maildir in the specified directory, creating the tmp, new
+     * and cur folders if they do not exist.
+     *
+     * @param directory the user's mailbox directory.
+     */
+    Maildir( File directory ) {
+        this.directory = directory;
+        this.tmp = createFolder( TMP );
+        this.newFolder = createFolder( NEW );
+        this.cur = createFolder( CUR );
+    }
+
+    //***************************************************************
+    // Methods
+
+    File getDirectory() { return directory; }
+
+    /**
+     * Creates a new, empty file in the tmp folder to write a message to.
+     *
+     * @return the new file.
+     * @throws IOException thrown if the file could not be created.
+     */
+    File createTempFile() throws IOException {
+        File file = new File( tmp, uniqueName() );
+        if( !file.createNewFile() ) {
+            throw new IOException( "Maildir file already exists: " + file.getAbsolutePath() );
+        }
+        return file;
+    }
+
+    /**
+     * Moves a completely written message from the tmp folder into the new
+     * folder, which makes it visible to POP3 sessions.
+     *
+     * @param tempFile a file created by createTempFile().
+     * @return the delivered message file.
+     * @throws IOException thrown if the file could not be moved.
+     */
+    File deliver( File tempFile ) throws IOException {
+        File messageFile = new File( newFolder, tempFile.getName() );
+        Files.move( tempFile.toPath(), messageFile.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        return messageFile;
+    }
+
+    /**
+     * Returns the message files in the mailbox: the messages of older
+     * versions, followed by the cur and new folders.
+     *
+     * @return the message files.
+     */
+    List<File> listMessageFiles() {
+        List<File> files = new ArrayList<>();
+        for( String name : list( directory ) ) {
+            if( name.startsWith( "pop" ) && name.endsWith( ".jmsg" ) ) {
+                files.add( new File( directory, name ) );
+            }
+        }
+        for( File folder : new File[] { cur, newFolder } ) {
+            for( String name : list( folder ) ) {
+                if( !name.startsWith( "." ) ) {
+                    files.add( new File( folder, name ) );
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the time of the last change to the set of messages, which is
+     * the latest modification time of the directories they are stored in.
+     *
+     * @return the time in milliseconds.
+     */
+    long lastModified() {
+        return Math.max( directory.lastModified(), Math.max( newFolder.lastModified(), cur.lastModified() ) );
+    }
+
+    /**
+     * Removes files that have been left in the tmp folder by deliveries
+     * that did not complete.
+     */
+    void cleanTmp() {
+        long expired = System.currentTimeMillis() - TMP_EXPIRY;
+        File[] files = tmp.listFiles();
+        if( files == null ) {
+            return;
+        }
+        for( File file : files ) {
+            if( file.lastModified() < expired && file.delete() ) {
+                logger.info( "Removed incomplete delivery {}", file.getAbsolutePath() );
+            }
+        }
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    private File createFolder( String name ) {
+        File folder = new File( directory, name );
+        if( !folder.isDirectory() && !folder.mkdirs() ) {
+            logger.error( "Unable to create Maildir folder: {}", folder.getAbsolutePath() );
+        }
+        return folder;
+    }
+
+    private static String[] list( File folder ) {
+        String[] names = folder.list();
+        return names == null ? new String[0] : names;
+    }
+
+    /**
+     * Creates a name that is unique across deliveries, processes and
+     * hosts: seconds.MmicrosecondsPpidQcount.host
+     */
+    private static String uniqueName() {
+        long micros = System.currentTimeMillis() * 1000 + ( System.nanoTime() / 1000 ) % 1000;
+        return new StringBuilder()
+                .append( micros / 1000000 )
+                .append( ".M" ).append( micros % 1000000 )
+                .append( 'P' ).append( PROCESS_ID )
+                .append( 'Q' ).append( deliveryCount.incrementAndGet() )
+                .append( '.' ).append( HOST_NAME ).toString();
+    }
+
+    /**
+     * Returns the local host name, with the characters Maildir reserves
+     * replaced, shortened so the names stay usable as POP3 unique ids.
+     */
+    private static String loadHostName() {
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        }
+        catch( IOException ioe ) {
+            hostName = "localhost";
+        }
+        if( hostName.length() > 32 ) {
+            hostName = hostName.substring( 0, 32 );
+        }
+        return hostName.replace( "/", "\\057" ).replace( ":", "\\072" );
+    }
+}
+//EOF
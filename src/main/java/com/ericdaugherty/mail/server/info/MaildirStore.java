@@ -0,0 +1,176 @@
+/******************************************************************************
+ * $Workfile: MaildirStore.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.info;
+
+//Java imports
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * The default MailboxStore.  Each user's mailbox is a Maildir in
+ * mailDirectory/users/&lt;address&gt;, with one file per message, and a
+ * MailboxIndex that holds the message sizes.
+ * <p>
+ * Delivered messages are stored in wire format, so open() returns a
+ * FileInputStream that can be sent with transferTo.  Messages stored as
+ * plain lines by older versions are converted as they are read.
+ *
+ * @author Eric Daugherty
+ */
+public class MaildirStore implements MailboxStore {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(MaildirStore.class.getName());
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    /**
+     * Returns the messages from the user's mailbox index.
+     */
+    @Override
+    public Message[] list( User user ) {
+        return new MailboxIndex( new Maildir( user.getUserDirectory() ) ).load();
+    }
+
+    /**
+     * Opens the message file.
+     */
+    @Override
+    public InputStream open( Message message ) throws IOException {
+        if( message.isWireFormat() ) {
+            return new FileInputStream( message.getMessageLocation() );
+        }
+        return new PlainMessageInputStream( new FileInputStream( message.getMessageLocation() ) );
+    }
+
+    /**
+     * Writes the message to the tmp folder of the user's Maildir, moves it
+     * to the new folder and adds it to the index.
+     */
+    @Override
+    public void append( User user, InputStream message ) throws IOException {
+
+        Maildir maildir = new Maildir( user.getUserDirectory() );
+        MailboxIndex index = new MailboxIndex( maildir );
+
+        //Only keep the index up to date if it was current before this
+        //delivery.  Otherwise it is rebuilt when the user logs in.
+        boolean indexCurrent = index.isCurrent();
+
+        File tempFile = maildir.createTempFile();
+        if( logger.isDebugEnabled() ) logger.debug( "Delivering to: {}", tempFile.getAbsolutePath() );
+
+        MessageScanner scanner = new MessageScanner();
+        File messageFile;
+        try {
+            try( OutputStream out = new FileOutputStream( tempFile ) ) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while( ( count = message.read( buffer ) ) != -1 ) {
+                    out.write( buffer, 0, count );
+                    scanner.update( buffer, 0, count );
+                }
+            }
+            messageFile = maildir.deliver( tempFile );
+        }
+        catch( IOException ioe ) {
+            //The message was not fully written, so delete it.
+            tempFile.delete();
+            throw ioe;
+        }
+
+        if( indexCurrent ) {
+            Message indexEntry = new Message();
+            indexEntry.setMessageLocation( messageFile );
+            indexEntry.setMessageSize( scanner.getSize() );
+            indexEntry.setWireFormat( true );
+            scanner.apply( indexEntry, scanner.getSize() );
+            try {
+                index.append( indexEntry );
+            }
+            catch( IOException ioe ) {
+                //The message is stored, and the out of date index will be rebuilt.
+                logger.error( "Unable to update the mailbox index for user: {}", user.getFullUsername(), ioe );
+            }
+        }
+    }
+
+    /**
+     * Deletes the message files and removes them from the index.
+     */
+    @Override
+    public void expunge( User user, Collection<Message> messages ) throws IOException {
+
+        MailboxIndex index = new MailboxIndex( new Maildir( user.getUserDirectory() ) );
+        boolean indexCurrent = index.isCurrent();
+
+        List<Message> removed = new ArrayList<>();
+        for( Message message : messages ) {
+            if( message.getMessageLocation().delete() ) {
+                removed.add( message );
+            }
+            else {
+                logger.warn( "Unable to delete message: {}", message.getMessageLocation().getAbsolutePath() );
+            }
+        }
+
+        //An index that was already out of date will be rebuilt on the next
+        //login instead.
+        if( indexCurrent && !removed.isEmpty() ) {
+            index.remove( removed );
+        }
+    }
+
+}
+//EOF
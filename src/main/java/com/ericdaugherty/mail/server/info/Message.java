@@ -36,6 +36,9 @@ package com.ericdaugherty.mail.server.info;
 
 //Java imports
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 //Log4j2 imports
 import org.apache.logging.log4j.Logger;
@@ -56,8 +59,20 @@ public class Message {
     /** Logger Category for this class. */
     private static final Logger logger = LogManager.getLogger(Message.class.getName());
 
+    /** The end of a message stored in wire format. */
+    private static final byte[] WIRE_TERMINATOR = { '\r', '\n', '.', '\r', '\n' };
+
     private File messageLocation;
     private boolean deleted = false;
+    private Boolean wireFormat;
+    private String uniqueId;
+
+    /** The size of the file, or -1 if it has not been determined. */
+    private long messageSize = -1;
+    /** The size of the message as sent to a POP3 client, or -1 if unknown. */
+    private long octetCount = -1;
+    /** The offset of the message body in the file, or -1 if unknown. */
+    private long bodyOffset = -1;
 
     //***************************************************************
     // Public Interface
@@ -70,20 +85,92 @@ public class Message {
 
     public void setMessageLocation(File messageLocation){ this.messageLocation = messageLocation; }
     
-    public long getMessageSize(){ return messageLocation.length(); }
+    public long getMessageSize(){ return messageSize >= 0 ? messageSize : messageLocation.length(); }
+
+    public void setMessageSize(long messageSize){ this.messageSize = messageSize; }
+
+    /**
+     * Returns the size of the message as sent to a POP3 client, excluding
+     * the terminating line.  This is the size reported by STAT and LIST.
+     *
+     * @return the size in octets.
+     */
+    public long getOctetCount(){ return octetCount >= 0 ? octetCount : getMessageSize(); }
+
+    public void setOctetCount(long octetCount){ this.octetCount = octetCount; }
+
+    /**
+     * Returns the offset in the file of the first line of the message body,
+     * just after the empty line that ends the header.
+     *
+     * @return the offset, or -1 if it is not known.
+     */
+    public long getBodyOffset(){ return bodyOffset; }
+
+    public void setBodyOffset(long bodyOffset){ this.bodyOffset = bodyOffset; }
 
     public boolean isDeleted(){ return deleted; }
 
     public void setDeleted(boolean deleted){ logger.debug( "Setting is deleted to: {}", deleted ); this.deleted = deleted; }
 	
+    /**
+     * Returns the unique id of the message, which is the Maildir file name
+     * without the info suffix, or the number in the name of a pop*.jmsg
+     * file written by an older version.
+     *
+     * @return the unique id.
+     */
     public String getUniqueId() { 
-            String location = messageLocation.getAbsolutePath();
+            if( uniqueId == null ) {
+                String location = messageLocation.getName();
 
-            int begin = location.lastIndexOf( "pop" ) + 3;
-            int end = location.lastIndexOf( ".jmsg" );
+                if( location.startsWith( "pop" ) && location.endsWith( ".jmsg" ) ) {
+                    int begin = location.lastIndexOf( "pop" ) + 3;
+                    int end = location.lastIndexOf( ".jmsg" );
 
-            return location.substring( begin, end );
+                    uniqueId = location.substring( begin, end );
+                }
+                else {
+                    int end = location.indexOf( ':' );
+                    uniqueId = end == -1 ? location : location.substring( 0, end );
+                }
+            }
+            return uniqueId;
     }
 
+    /**
+     * Returns true if the message file is stored in wire format: CRLF line
+     * endings, lines starting with a period dot-stuffed, and terminated by
+     * a line containing a single period.  Such a file can be sent to a POP3
+     * client as is.  Messages delivered by older versions were stored as
+     * plain lines, and must be stuffed and terminated when they are sent.
+     * <p>
+     * The last line of a plain message can never be a single period, since
+     * that would have ended the SMTP DATA, so the terminator identifies the
+     * format.
+     *
+     * @return true if the file is in wire format.
+     */
+    public boolean isWireFormat() {
+        if( wireFormat == null ) {
+            wireFormat = Boolean.FALSE;
+            try( RandomAccessFile file = new RandomAccessFile( messageLocation, "r" ) ) {
+                long length = file.length();
+                if( length >= WIRE_TERMINATOR.length ) {
+                    byte[] end = new byte[WIRE_TERMINATOR.length];
+                    file.seek( length - end.length );
+                    file.readFully( end );
+                    wireFormat = Arrays.equals( end, WIRE_TERMINATOR );
+                }
+            }
+            catch( IOException ioe ) {
+                logger.warn( "Unable to read message file {}: {}", messageLocation, ioe.toString() );
+            }
+        }
+        return wireFormat;
+    }
+
+    public void setWireFormat(boolean wireFormat){ this.wireFormat = wireFormat; }
+
 }
 //EOF
\ No newline at end of file
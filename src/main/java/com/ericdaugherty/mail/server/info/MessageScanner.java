@@ -0,0 +1,117 @@
+/******************************************************************************
+ * $Workfile: MessageScanner.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.info;
+
+/**
+ * Measures a message in wire format as it is read or written, to find the
+ * values kept in the mailbox index.
+ *
+ * @author Eric Daugherty
+ */
+class MessageScanner {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** The number of bytes seen so far. */
+    private long size = 0;
+
+    /** The offset just after the empty line that ends the header, or -1. */
+    private long bodyOffset = -1;
+
+    /** The number of bytes of the current line, excluding CR. */
+    private int lineLength = 0;
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    /**
+     * Processes the next part of the message.
+     */
+    void update( byte[] bytes, int offset, int length ) {
+        int end = offset + length;
+        for( int index = offset; index < end; index++ ) {
+            byte next = bytes[index];
+            if( next == '\n' ) {
+                if( bodyOffset == -1 && lineLength == 0 ) {
+                    bodyOffset = size + index - offset + 1;
+                }
+                lineLength = 0;
+            }
+            else if( next != '\r' ) {
+                lineLength++;
+            }
+        }
+        size += length;
+    }
+
+    /**
+     * True once the start of the body has been found.
+     */
+    boolean isBodyFound() {
+        return bodyOffset != -1;
+    }
+
+    /**
+     * Sets the sizes and body offset of the message, which must be
+     * completely scanned unless its size is known.
+     *
+     * @param message the message.
+     * @param wireSize the size of the complete message, including the
+     * terminating line.
+     */
+    void apply( Message message, long wireSize ) {
+        long octetCount = wireSize - TERMINATOR_LENGTH;
+        message.setOctetCount( octetCount );
+        message.setBodyOffset( bodyOffset == -1 ? octetCount : bodyOffset );
+    }
+
+    /**
+     * Returns the number of bytes seen so far.
+     */
+    long getSize() {
+        return size;
+    }
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The length of the ".\r\n" line that ends a message. */
+    private static final int TERMINATOR_LENGTH = 3;
+}
+//EOF
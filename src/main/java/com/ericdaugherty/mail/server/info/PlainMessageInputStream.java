@@ -0,0 +1,183 @@
+/******************************************************************************
+ * $Workfile: PlainMessageInputStream.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.info;
+
+//Java imports
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Presents a message stored as plain lines by an older version in wire
+ * format, as it is read: a CR is added before a LF that has none, a period
+ * before each line that starts with one, and the terminating line at the
+ * end.  The other bytes are returned unchanged, so the message is not
+ * decoded and is never held in memory.
+ *
+ * @author Eric Daugherty
+ */
+class PlainMessageInputStream extends InputStream {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The size of the buffer the file is read into. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    private final InputStream in;
+
+    /** The bytes that have been read, from position to count. */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int count = 0;
+
+    /** Bytes to return before the next byte of the file. */
+    private final byte[] extra = new byte[5];
+    private int extraPosition = 0;
+    private int extraLength = 0;
+
+    /** True if the next byte of the file starts a line. */
+    private boolean lineStart = true;
+
+    /** True if the last byte of the file was a CR. */
+    private boolean afterCR = false;
+
+    /** True once the end of the file has been read. */
+    private boolean finished = false;
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Creates a stream of the message in wire format.
+     *
+     * @param in the stored message, which is closed with this stream.
+     */
+    PlainMessageInputStream( InputStream in ) {
+        this.in = in;
+    }
+
+    //***************************************************************
+    // Methods
+
+    @Override
+    public int read() throws IOException {
+        if( extraPosition < extraLength ) {
+            return extra[extraPosition++] & 0xff;
+        }
+        if( finished ) {
+            return -1;
+        }
+        int next = readByte();
+        if( next == -1 ) {
+            finished = true;
+            if( !lineStart ) {
+                add( afterCR ? "\n" : "\r\n" );
+            }
+            add( ".\r\n" );
+            return read();
+        }
+        if( lineStart && next == '.' ) {
+            add( "." );
+            lineStart = false;
+            afterCR = false;
+            return '.';
+        }
+        if( next == '\n' && !afterCR ) {
+            add( "\n" );
+            lineStart = true;
+            afterCR = false;
+            return '\r';
+        }
+        lineStart = next == '\n';
+        afterCR = next == '\r';
+        return next;
+    }
+
+    @Override
+    public int read( byte[] bytes, int offset, int length ) throws IOException {
+        for( int index = 0; index < length; index++ ) {
+            int next = read();
+            if( next == -1 ) {
+                return index == 0 ? -1 : index;
+            }
+            bytes[offset + index] = (byte) next;
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    private int readByte() throws IOException {
+        if( position == count ) {
+            count = in.read( buffer );
+            position = 0;
+            if( count == -1 ) {
+                count = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    /**
+     * Queues ASCII bytes to be returned next.
+     */
+    private void add( String text ) {
+        if( extraPosition == extraLength ) {
+            extraPosition = 0;
+            extraLength = 0;
+        }
+        for( int index = 0; index < text.length(); index++ ) {
+            extra[extraLength++] = (byte) text.charAt( index );
+        }
+    }
+}
+//EOF
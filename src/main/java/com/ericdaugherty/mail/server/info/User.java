@@ -36,6 +36,9 @@ package com.ericdaugherty.mail.server.info;
 
 //Java imports
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 //Log4j2 imports
 import org.apache.logging.log4j.Logger;
@@ -64,6 +67,7 @@ public class User {
     private EmailAddress[] forwardAddresses;
 
     private Message[] messages = null;
+    private long sizeOfAllMessages;
 
     private ConfigurationManager configurationManager = null;
 
@@ -166,20 +170,18 @@ public class User {
         
         if( messages == null ) {
             
-            File directory = getUserDirectory();
-            
-            String[] fileNames = directory.list();
-            
-            int numMessage = fileNames.length;
-            
-            messages = new Message[numMessage];
-            Message currentMessage;
+            try {
+                messages = configurationManager.getMailboxStore().list( this );
+            }
+            catch( IOException ioe ) {
+                throw new RuntimeException( "Unable to read the mailbox of user: " + getFullUsername(), ioe );
+            }
             
-            for( int index = 0; index < numMessage; index++ ) {
-                currentMessage = new Message();
-                currentMessage.setMessageLocation( new File( directory, fileNames[index] ) );
-                messages[index ] = currentMessage;
+            long totalSize = 0;
+            for( Message message : messages ) {
+                totalSize += message.getOctetCount();
             }
+            sizeOfAllMessages = totalSize;
         }
         return messages;
     }
@@ -209,15 +211,32 @@ public class User {
      */
     public long getSizeOfAllMessage() {
         
-        Message[] message = getMessages();
+        getMessages();
         
-        long totalSize = 0;
-        
-        for (Message message1 : message) {
-            totalSize += message1.getMessageLocation().length();
+        return sizeOfAllMessages;
+    }
+
+    /**
+     * Removes the messages that have been marked as deleted from the
+     * mailbox store.
+     */
+    public void expungeDeletedMessages() {
+
+        List<Message> deleted = new ArrayList<>();
+        for( Message message : getMessages() ) {
+            if( message.isDeleted() ) {
+                deleted.add( message );
+            }
+        }
+
+        if( !deleted.isEmpty() ) {
+            try {
+                configurationManager.getMailboxStore().expunge( this, deleted );
+            }
+            catch( IOException ioe ) {
+                logger.error( "Unable to delete messages for user: {}", getFullUsername(), ioe );
+            }
         }
-        
-        return totalSize;
     }
     
     /**
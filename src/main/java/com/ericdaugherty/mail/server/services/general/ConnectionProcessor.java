@@ -35,24 +35,27 @@
 package com.ericdaugherty.mail.server.services.general;
 
 //Java imports
-import java.net.ServerSocket;
+import java.net.Socket;
 
 /**
  * Defines the interface for all classes that will handle a connection.  This
  * interface is used by ServiceListener to interact with the Connection Processors.
+ * <p>
+ * A processor handles a single connection that has already been accepted.
+ * Running it processes that connection until the client disconnects.
  * 
  * @author Eric Daugherty
  */
 public interface ConnectionProcessor extends Runnable {
     
     /**
-     * Sets the socket used to communicate with the client.
-     * @param serverSocket
+     * Sets the connected socket used to communicate with the client.
+     * @param socket
      */
-    public void setSocket( ServerSocket serverSocket );
+    public void setSocket( Socket socket );
 
     /**
-     * Notifies the service to stop processing connections.
+     * Notifies the processor to stop processing its connection.
      */
     public void shutdown();
 }
@@ -146,11 +146,13 @@ public class DeliveryService implements ConfigurationParameterContants {
 
     /**
      * This method locks a mailbox so that two clients can not access the same mailbox
-     * at the same time.
+     * at the same time.  Only POP3 sessions lock mailboxes, local delivery
+     * does not need to.
      * @param address
+     * @return true if the mailbox was locked, false if it was already locked.
      */
-    public void lockMailbox( EmailAddress address ) {
-        lockedMailboxes.put( address.getAddress(), "" );
+    public boolean lockMailbox( EmailAddress address ) {
+        return lockedMailboxes.putIfAbsent( address.getAddress(), "" ) == null;
     }
 
     /**
@@ -0,0 +1,70 @@
+/******************************************************************************
+ * $Workfile: DnsResolver.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.IOException;
+
+//DNSLib imports
+import org.xbill.DNS.Record;
+
+/**
+ * Answers the DNS queries of the DnsService.  The DnsService caches the
+ * answers, so an implementation only has to perform the queries.  The
+ * implementation is selected with the dns.resolver property in mail.conf,
+ * and must have a public no argument constructor.  One instance is shared
+ * by all threads.
+ * <p>
+ * The default implementation is XbillDnsResolver.  Other implementations
+ * can answer from a fixed table, for example to test delivery without a
+ * DNS server.
+ *
+ * @author Eric Daugherty
+ */
+public interface DnsResolver {
+
+    /**
+     * Looks up the records of one type.
+     *
+     * @param name the name to look up.
+     * @param type the record type, one of the org.xbill.DNS.Type constants.
+     * @return the records, or an empty array if the name does not exist or
+     * has no records of the type.
+     * @throws IOException thrown if the query could not be answered, for
+     * example because no DNS server responded.
+     */
+    public Record[] lookup( String name, int type ) throws IOException;
+}
+//EOF
@@ -34,55 +34,388 @@
 
 package com.ericdaugherty.mail.server.services.general;
 
+//Java imports
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
 //DNSLib imports
-import org.xbill.DNS.Lookup;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
 import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.PTRRecord;
 import org.xbill.DNS.Record;
-import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.ReverseMap;
 import org.xbill.DNS.Type;
 
+//Local imports
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+
 /**
- * This class provides an interface to DNS Lookup implementations.
+ * This class provides an interface to DNS Lookup implementations.  All the
+ * DNS lookups of the server go through this class.
  * <p>
- * The current version of this class depends on the org.xbill.DNS libraries
- * to perform DNS Lookups.
- * 
+ * The queries are answered by the configured DnsResolver (dns.resolver),
+ * and the answers are kept in a cache of dns.cache.size entries for as
+ * long as their time to live allows.  Names that do not exist, or have no
+ * records of the type, are cached for dns.cache.negative seconds.  Failed
+ * lookups are not cached.  When several threads look up the same name at
+ * the same time, only one query is sent and the others wait for its
+ * answer.
+ * <p>
+ * The queries are sent by a pool of dns.threads threads, which bounds the
+ * number of outstanding queries, and each query is given dns.timeout
+ * seconds.  The lookups are available as CompletableFutures, so a caller
+ * does not have to wait for the answer, for example to start the lookups
+ * of queued messages early or to log the host name of a client once it
+ * is known.  The blocking methods wait for the same futures.
+ *
  * @author Eric Daugherty
  */
 public class DnsService {
 
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The longest time (in milliseconds) an answer is cached. */
+    private static final long MAXIMUM_TTL = 24L * 60 * 60 * 1000;
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(DnsService.class.getName());
+
+    /** The ConfigurationManager */
+    private static final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+
+    /** Singleton Instance */
+    private static DnsService instance = null;
+
+    /** Sends the queries. */
+    private final ExecutorService executor;
+
+    /** The cached answers by query, least recently used first. */
+    private final Map<String, Answer> cache = new LinkedHashMap<String, Answer>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Answer> eldest ) {
+            return size() > configurationManager.getDnsCacheSize();
+        }
+    };
+
     //***************************************************************
     // Public Interface
     //***************************************************************
 
+    //***************************************************************
+    // Constructor
+
+    protected DnsService() {
+        int threadCount = configurationManager.getDnsThreadCount();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor( threadCount, threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread( runnable, "DNS-" + threadNumber.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        pool.allowCoreThreadTimeOut( true );
+        executor = pool;
+    }
+
+    //***************************************************************
+    // Methods
+
     /**
-     * This method returns an array of addresses that represent MX Entries
-     * for the specified domain.If no MX entries were found for the specified domain, and empty array is returned.
-     * 
+     * accessory for the singleton instance for this class.
+     * @return the DnsService.
+     */
+    public static synchronized DnsService getDnsService() {
+        if( instance == null ) {
+            instance = new DnsService();
+        }
+        return instance;
+    }
+
+    /**
+     * This method returns the mail servers of the specified domain, in
+     * order of MX priority.  If the domain has no MX records but has an
+     * address, the domain itself is its mail server (RFC 5321 5.1).  If the
+     * domain has neither, an empty array is returned.
+     *
+     * @param domain the domain perform the MX Lookup on.
+     * @return the host names of the mail servers.
+     * @throws IOException thrown if the lookup failed or timed out.
+     */
+    public String[] getMXEntries( String domain ) throws IOException {
+        return await( getMXEntriesAsync( domain ), domain );
+    }
+
+    /**
+     * Looks up the mail servers of a domain without waiting for the
+     * answer.  See getMXEntries().
+     *
+     * @param domain the domain perform the MX Lookup on.
+     * @return the host names of the mail servers, once they are known.
+     */
+    public CompletableFuture<String[]> getMXEntriesAsync( String domain ) {
+
+        return getMXGroupsAsync( domain ).thenApply( groups -> {
+            List<String> hosts = new ArrayList<>();
+            for( String[] group : groups ) {
+                hosts.addAll( Arrays.asList( group ) );
+            }
+            return hosts.toArray( new String[hosts.size()] );
+        } );
+    }
+
+    /**
+     * This method returns the mail servers of the specified domain grouped
+     * by MX priority.  The servers in a group are equally preferred, and
+     * the groups are in order of priority.  See getMXEntries().
+     *
+     * @param domain the domain perform the MX Lookup on.
+     * @return the host names of the mail servers.
+     * @throws IOException thrown if the lookup failed or timed out.
+     */
+    public List<String[]> getMXGroups( String domain ) throws IOException {
+        return await( getMXGroupsAsync( domain ), domain );
+    }
+
+    /**
+     * Looks up the mail servers of a domain, grouped by MX priority,
+     * without waiting for the answer.  See getMXGroups().
+     *
      * @param domain the domain perform the MX Lookup on.
-     * @return 
-     * @throws org.xbill.DNS.TextParseException
+     * @return the host names of the mail servers, once they are known.
+     */
+    public CompletableFuture<List<String[]>> getMXGroupsAsync( String domain ) {
+
+        return lookupAsync( domain, Type.MX ).thenCompose( records -> {
+
+            if( records.length == 0 ) {
+                return getAddressesAsync( domain ).thenApply( addresses -> addresses.length == 0
+                        ? Collections.<String[]>emptyList() : Collections.singletonList( new String[] { domain } ) );
+            }
+
+            //The sort is stable, so servers with the same priority keep the
+            //order of the answer.
+            MXRecord[] mxRecords = new MXRecord[records.length];
+            for( int index = 0; index < records.length; index++ ) {
+                mxRecords[index] = (MXRecord) records[index];
+            }
+            Arrays.sort( mxRecords, Comparator.comparingInt( MXRecord::getPriority ) );
+
+            List<String[]> groups = new ArrayList<>();
+            int start = 0;
+            for( int index = 1; index <= mxRecords.length; index++ ) {
+                if( index == mxRecords.length || mxRecords[index].getPriority() != mxRecords[start].getPriority() ) {
+                    String[] hosts = new String[index - start];
+                    for( int host = 0; host < hosts.length; host++ ) {
+                        hosts[host] = mxRecords[start + host].getTarget().toString( true );
+                    }
+                    groups.add( hosts );
+                    start = index;
+                }
+            }
+            return CompletableFuture.completedFuture( groups );
+        } );
+    }
+
+    /**
+     * Returns the IPv4 and IPv6 addresses of a host, IPv4 first.
+     *
+     * @param host the host name.
+     * @return the addresses, or an empty array if the host has none.
+     * @throws IOException thrown if neither lookup succeeded.
      */
-    public static String[] getMXEntries( String domain ) throws TextParseException {
-        
-        Record [] records = new Lookup(domain, Type.MX).run();
+    public InetAddress[] getAddresses( String host ) throws IOException {
+        return await( getAddressesAsync( host ), host );
+    }
+
+    /**
+     * Looks up the addresses of a host without waiting for the answer.  The
+     * IPv4 and IPv6 addresses are looked up at the same time.  See
+     * getAddresses().
+     *
+     * @param host the host name.
+     * @return the addresses, once they are known.
+     */
+    public CompletableFuture<InetAddress[]> getAddressesAsync( String host ) {
+
+        CompletableFuture<Record[]> ipv4 = lookupAsync( host, Type.A );
+        CompletableFuture<Record[]> ipv6 = lookupAsync( host, Type.AAAA );
+
+        return ipv4.exceptionally( failure -> null ).thenCombine( ipv6.exceptionally( failure -> null ), ( ipv4Records, ipv6Records ) -> {
+            if( ipv4Records == null && ipv6Records == null ) {
+                //Neither lookup succeeded, fail with the IPv4 failure.
+                ipv4.join();
+            }
+            List<InetAddress> addresses = new ArrayList<>();
+            for( Record[] records : new Record[][] { ipv4Records, ipv6Records } ) {
+                for( int index = 0; records != null && index < records.length; index++ ) {
+                    if( records[index] instanceof ARecord ) {
+                        addresses.add( ( (ARecord) records[index] ).getAddress() );
+                    }
+                    else if( records[index] instanceof AAAARecord ) {
+                        addresses.add( ( (AAAARecord) records[index] ).getAddress() );
+                    }
+                }
+            }
+            return addresses.toArray( new InetAddress[addresses.size()] );
+        } );
+    }
+
+    /**
+     * Looks up the host name of an address (the PTR record) without
+     * waiting for the answer.  Unlike InetAddress.getHostName(), this never
+     * blocks the calling thread.
+     *
+     * @param address the address.
+     * @return the host name, or the text form of the address if it has no
+     * host name or the lookup failed.
+     */
+    public CompletableFuture<String> getHostNameAsync( InetAddress address ) {
+
+        return lookupAsync( ReverseMap.fromAddress( address ).toString(), Type.PTR ).handle( ( records, failure ) -> {
+            if( records != null ) {
+                for( Record record : records ) {
+                    if( record instanceof PTRRecord ) {
+                        return ( (PTRRecord) record ).getTarget().toString( true );
+                    }
+                }
+            }
+            return address.getHostAddress();
+        } );
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Returns the cached answer to a query, or sends the query if there is
+     * none.  A query that is already being answered for another thread is
+     * not sent again.  A failed or timed out query is removed from the
+     * cache.
+     */
+    private CompletableFuture<Record[]> lookupAsync( String name, int type ) {
+
+        String key = type + " " + name.toLowerCase();
+        Answer answer;
+        boolean query = false;
+        synchronized( cache ) {
+            answer = cache.get( key );
+            if( answer == null || answer.isExpired( System.currentTimeMillis() ) ) {
+                answer = new Answer();
+                cache.put( key, answer );
+                query = true;
+            }
+        }
 
-        //Just return an empty array if no domains were found.
-        if( records == null ) {
-            return new String[0];
+        if( query ) {
+            Answer pending = answer;
+            pending.records.orTimeout( configurationManager.getDnsTimeoutMilliseconds(), TimeUnit.MILLISECONDS ).whenComplete( ( records, failure ) -> {
+                if( failure != null ) {
+                    synchronized( cache ) {
+                        cache.remove( key, pending );
+                    }
+                }
+            } );
+            try {
+                executor.execute( () -> resolve( name, type, pending ) );
+            }
+            catch( RejectedExecutionException exception ) {
+                pending.records.completeExceptionally( exception );
+            }
         }
+        return answer.records;
+    }
+
+    /**
+     * Sends a query to the DnsResolver and completes the answer.
+     */
+    private void resolve( String name, int type, Answer answer ) {
+        if( answer.records.isDone() ) {
+            //Timed out while waiting for a thread.
+            return;
+        }
+        try {
+            Record[] records = configurationManager.getDnsResolver().lookup( name, type );
+            answer.expires = System.currentTimeMillis() + getTimeToLive( records );
+            answer.records.complete( records );
+            if( logger.isDebugEnabled() ) { logger.debug( "DNS lookup of {} type {} returned {} records.", name, type, records.length ); }
+        }
+        catch( IOException | RuntimeException exception ) {
+            answer.records.completeExceptionally( exception );
+        }
+    }
+
+    /**
+     * Waits for a lookup and unwraps its failure.
+     */
+    private static <T> T await( CompletableFuture<T> lookup, String name ) throws IOException {
+        try {
+            return lookup.join();
+        }
+        catch( CompletionException exception ) {
+            Throwable cause = exception.getCause();
+            if( cause instanceof IOException ) {
+                throw (IOException) cause;
+            }
+            if( cause instanceof TimeoutException ) {
+                throw new IOException( "DNS lookup of " + name + " timed out." );
+            }
+            throw new IOException( "DNS lookup of " + name + " failed.", cause );
+        }
+    }
+
+    /**
+     * Returns the time (in milliseconds) an answer may be cached, which is
+     * the smallest time to live of its records.
+     */
+    private static long getTimeToLive( Record[] records ) {
+        if( records.length == 0 ) {
+            return configurationManager.getDnsNegativeCacheMilliseconds();
+        }
+        long ttl = MAXIMUM_TTL;
+        for( Record record : records ) {
+            ttl = Math.min( ttl, record.getTTL() * 1000 );
+        }
+        return ttl;
+    }
+
+    /**
+     * The answer to a query, which may still be on its way.
+     */
+    private static class Answer {
+
+        private final CompletableFuture<Record[]> records = new CompletableFuture<>();
+        private volatile long expires;
 
-        int numEntries = records.length;
-        
-        String[] addresses = new String[numEntries];
-        
-        for( int index = 0; index < numEntries; index++ ) {
-         
-            addresses[index] = ( (MXRecord)records[index] ).getTarget().toString();
+        boolean isExpired( long now ) {
+            return records.isDone() && expires <= now;
         }
-        
-        return addresses;
-        
     }
 }
-//EOF
\ No newline at end of file
+//EOF
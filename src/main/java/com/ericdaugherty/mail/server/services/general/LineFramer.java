@@ -0,0 +1,338 @@
+/******************************************************************************
+ * $Workfile: LineFramer.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a stream of bytes into protocol lines without decoding them.
+ * <p>
+ * A line ends with CRLF.  A bare LF is accepted as well, and the CR is not
+ * part of the line.  The current line is kept in a reusable byte array that
+ * is valid until the next line is framed, so reading a line does not
+ * allocate.  Lines longer than the current limit are not buffered: the rest
+ * of the line is discarded and the line is reported with isTooLong() set, so
+ * a client can not exhaust the heap by never sending a line terminator.
+ * <p>
+ * Bytes can be pushed into the framer from a ByteBuffer (non-blocking
+ * connections) or pulled from an InputStream (blocking sockets).
+ *
+ * @author Eric Daugherty
+ */
+public class LineFramer {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The maximum length of a command or reply line, including the CRLF (RFC 5321 4.5.3.1.4). */
+    public static final int COMMAND_LINE_LIMIT = 512;
+
+    /** The maximum length of a line of message text, including the CRLF (RFC 5321 4.5.3.1.6). */
+    public static final int TEXT_LINE_LIMIT = 1000;
+
+    /** The size of the buffer used when reading from an InputStream. */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** The bytes of the current line.  Room for the longest line plus the CR. */
+    private final byte[] line;
+
+    /** The number of bytes in the current line. */
+    private int length = 0;
+
+    /** The maximum line length, including the CRLF. */
+    private int limit;
+
+    /** True if the current line exceeded the limit. */
+    private boolean tooLong = false;
+
+    /** True once the current line has been terminated. */
+    private boolean complete = false;
+
+    /** Buffer used by readLine, allocated on first use. */
+    private byte[] readBuffer;
+    private int readPosition = 0;
+    private int readCount = 0;
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Creates a framer that accepts lines up to TEXT_LINE_LIMIT bytes, with
+     * an initial limit of COMMAND_LINE_LIMIT.
+     */
+    public LineFramer() {
+        this( TEXT_LINE_LIMIT );
+        limit = COMMAND_LINE_LIMIT;
+    }
+
+    /**
+     * Creates a framer for lines up to the specified length.
+     *
+     * @param capacity the largest limit that will be used, including the CRLF.
+     */
+    public LineFramer( int capacity ) {
+        line = new byte[ capacity - 1 ];
+        limit = capacity;
+    }
+
+    //***************************************************************
+    // Methods
+
+    /**
+     * Sets the maximum length, including the CRLF, of the lines framed after
+     * the current one.  Values larger than the capacity are reduced to it.
+     *
+     * @param limit the line limit.
+     */
+    public void setLimit( int limit ) {
+        this.limit = Math.min( limit, line.length + 1 );
+    }
+
+    /**
+     * Consumes bytes from the buffer until a line is complete or the buffer
+     * is empty.  Bytes after the end of the line are left in the buffer.
+     *
+     * @param input the bytes received from the client.
+     * @return true if a complete line is available.
+     */
+    public boolean frame( ByteBuffer input ) {
+        while( input.hasRemaining() ) {
+            if( consume( input.get() ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads from the stream until a complete line is available.
+     *
+     * @param in the stream to read from.
+     * @return true if a line is available, false if the stream ended first.
+     * @throws IOException thrown if the stream can not be read.
+     */
+    public boolean readLine( InputStream in ) throws IOException {
+        if( readBuffer == null ) {
+            readBuffer = new byte[ READ_BUFFER_SIZE ];
+        }
+        while( true ) {
+            if( readPosition == readCount ) {
+                readCount = in.read( readBuffer );
+                readPosition = 0;
+                if( readCount == -1 ) {
+                    readCount = 0;
+                    return false;
+                }
+            }
+            while( readPosition < readCount ) {
+                if( consume( readBuffer[ readPosition++ ] ) ) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * True if readLine has bytes left from an earlier read, so the next line
+     * may be available without waiting for the client.
+     *
+     * @return true if input is buffered.
+     */
+    public boolean hasBufferedInput() {
+        return readPosition < readCount;
+    }
+
+    /**
+     * The bytes of the current line.  Only the first length() bytes are
+     * part of the line, and the array is reused for the next line.
+     *
+     * @return the line buffer.
+     */
+    public byte[] getBytes() {
+        return line;
+    }
+
+    /**
+     * The number of bytes in the current line, excluding the CRLF.
+     *
+     * @return the line length.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the byte at the specified position of the current line.
+     *
+     * @param index the position in the line.
+     * @return the byte.
+     */
+    public byte byteAt( int index ) {
+        return line[index];
+    }
+
+    /**
+     * True if the current line exceeded the limit.  The content of such a
+     * line is incomplete and should be rejected.
+     *
+     * @return true if the line was too long.
+     */
+    public boolean isTooLong() {
+        return tooLong;
+    }
+
+    /**
+     * True if the current line starts with the specified ASCII text,
+     * ignoring case.
+     *
+     * @param prefix the text to compare with.
+     * @return true if the line starts with the prefix.
+     */
+    public boolean startsWithIgnoreCase( String prefix ) {
+        int prefixLength = prefix.length();
+        if( prefixLength > length ) {
+            return false;
+        }
+        for( int index = 0; index < prefixLength; index++ ) {
+            char expected = prefix.charAt( index );
+            char actual = (char) ( line[index] & 0xff );
+            if( actual != expected && Character.toUpperCase( actual ) != Character.toUpperCase( expected ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True if the current line is exactly the specified ASCII text.
+     *
+     * @param text the text to compare with.
+     * @return true if the line is equal to the text.
+     */
+    public boolean contentEquals( String text ) {
+        if( text.length() != length ) {
+            return false;
+        }
+        for( int index = 0; index < length; index++ ) {
+            if( ( line[index] & 0xff ) != text.charAt( index ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the current line to a String using the specified charset.
+     *
+     * @param charset the charset of the line.
+     * @return the line.
+     */
+    public String toString( Charset charset ) {
+        return new String( line, 0, length, charset );
+    }
+
+    /**
+     * Converts the current line, starting at the specified byte, to a String
+     * using the specified charset.
+     *
+     * @param offset the index of the first byte to convert.
+     * @param charset the charset of the line.
+     * @return the rest of the line.
+     */
+    public String toString( int offset, Charset charset ) {
+        return new String( line, offset, length - offset, charset );
+    }
+
+    /**
+     * Converts the current line to a String, mapping each byte to one char.
+     * Protocol commands and replies are ASCII, so no decoding is needed.
+     *
+     * @return the line.
+     */
+    @Override
+    public String toString() {
+        return toString( StandardCharsets.ISO_8859_1 );
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Adds a single byte to the current line.
+     *
+     * @return true if the byte completed the line.
+     */
+    private boolean consume( byte next ) {
+        if( complete ) {
+            length = 0;
+            tooLong = false;
+            complete = false;
+        }
+        if( next == '\n' ) {
+            if( length > 0 && line[length - 1] == '\r' ) {
+                length--;
+            }
+            if( length > limit - 2 ) {
+                tooLong = true;
+            }
+            complete = true;
+            return true;
+        }
+        //Keep room for the CR of the CRLF, discard anything beyond it.
+        if( length < limit - 1 ) {
+            line[length++] = next;
+        }
+        else {
+            tooLong = true;
+        }
+        return false;
+    }
+}
+//EOF
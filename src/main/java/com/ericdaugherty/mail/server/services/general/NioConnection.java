@@ -0,0 +1,427 @@
+/******************************************************************************
+ * $Workfile: NioConnection.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntSupplier;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * A single non-blocking client connection owned by a NioReactor.  Bytes read
+ * from the channel are framed into lines and handed to the ProtocolSession,
+ * and the session's responses are written through a ResponseWriter.
+ * Responses that the channel can not take yet are kept until it becomes
+ * writable.  While they are waiting the connection neither reads nor
+ * dispatches lines, so a client that pipelines commands without reading the
+ * responses only fills its own socket buffer.
+ * <p>
+ * The reactor thread only reads from the channel.  The session is run on the
+ * listener's worker threads, because commands may block on the disk (the
+ * message spool, the delivery queue, the mailbox index).  A connection runs
+ * one step at a time: while a worker runs a step the connection is busy and
+ * its selection key has no interest, and once the step is done the reactor
+ * is told which event to wait for next.  The reactor and the workers
+ * therefore never use the session, the framer or the writer at the same
+ * time.
+ *
+ * @author Eric Daugherty
+ */
+class NioConnection implements SessionOutput {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(NioConnection.class.getName());
+
+    /** The size of the per connection read buffer. */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /** The result of a step after which the connection must be closed. */
+    private static final int CLOSE = -1;
+
+    /** Response buffers, one per worker thread. */
+    private static final ThreadLocal<ByteBuffer> responseBuffers =
+            ThreadLocal.withInitial( () -> ByteBuffer.allocateDirect( ResponseWriter.BUFFER_SIZE ) );
+
+    private final SocketChannel channel;
+    private final ProtocolSession session;
+    /** The reactor that owns this connection. */
+    private final NioReactor reactor;
+    /** The threads that run the session. */
+    private final Executor workers;
+
+    /** Received bytes that have not been framed yet, always in fill mode. */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate( READ_BUFFER_SIZE );
+    /** Frames the received bytes into lines. */
+    private final LineFramer framer = new LineFramer();
+    /** Responses waiting to be written to the channel. */
+    private final ResponseWriter out;
+
+    private SelectionKey key;
+    private long lastActivity;
+
+    /** True while a worker runs a step.  Only used by the reactor thread. */
+    private boolean busy = false;
+    /** The step that is waiting for a worker.  Only used by the reactor thread. */
+    private IntSupplier waitingStep = null;
+    /** Set by the reactor when the connection must be closed after the current step. */
+    private volatile boolean closeRequested = false;
+    private volatile boolean closed = false;
+
+    //***************************************************************
+    // Constructor
+    //***************************************************************
+
+    NioConnection( SocketChannel channel, ProtocolSession session, NioReactor reactor, Executor workers ) {
+        this.channel = channel;
+        this.session = session;
+        this.reactor = reactor;
+        this.workers = workers;
+        this.out = new ResponseWriter( channel, responseBuffers.get() );
+    }
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    /**
+     * Starts the session once the channel has been registered with the
+     * reactor's selector.  Called from the reactor thread.
+     */
+    void open( SelectionKey key ) {
+        this.key = key;
+        lastActivity = System.currentTimeMillis();
+        dispatch( this::start );
+    }
+
+    /**
+     * Reads whatever is available on the channel and hands the received
+     * lines to a worker.  Called from the reactor thread.
+     */
+    void handleRead() {
+        if( busy ) {
+            return;
+        }
+        int count;
+        try {
+            count = channel.read( readBuffer );
+        }
+        catch( IOException ioe ) {
+            logger.debug( "Disconnecting Exception:", ioe );
+            requestClose();
+            return;
+        }
+        if( count == -1 ) {
+            logger.debug( "Client closed the connection." );
+            requestClose();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        dispatch( this::process );
+    }
+
+    /**
+     * Has a worker write the queued responses once the channel becomes
+     * writable again.  Called from the reactor thread.
+     */
+    void handleWrite() {
+        if( busy ) {
+            return;
+        }
+        dispatch( this::resumeWrite );
+    }
+
+    /**
+     * Returns true if the client has not sent anything within the
+     * session's idle timeout.  A connection that is running a command is
+     * not idle.
+     */
+    boolean isIdle( long now ) {
+        int timeout = session.getIdleTimeout();
+        return !busy && timeout > 0 && now - lastActivity > timeout;
+    }
+
+    /**
+     * Closes the connection on a worker thread, or after the current step
+     * if a worker is running one.  Called from the reactor thread.
+     */
+    void requestClose() {
+        if( closed ) {
+            return;
+        }
+        if( busy ) {
+            closeRequested = true;
+            return;
+        }
+        busy = true;
+        if( key.isValid() ) {
+            key.interestOps( 0 );
+        }
+        closeLater();
+    }
+
+    /**
+     * Runs the step that could not be given to a worker, or closes the
+     * connection if that has been requested meanwhile.  Called from the
+     * reactor thread.
+     */
+    void retry() {
+        IntSupplier step = waitingStep;
+        waitingStep = null;
+        if( closeRequested ) {
+            closeLater();
+        }
+        else {
+            dispatch( step );
+        }
+    }
+
+    /**
+     * Ends the session and closes the channel.  Any responses the session
+     * writes while closing are sent on a best effort basis.
+     */
+    void close() {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        reactor.sessionClosed();
+        logger.info( "Disconnecting" );
+        try {
+            out.setBuffer( responseBuffers.get() );
+            session.close();
+            out.flush();
+        }
+        catch( IOException | RuntimeException e ) {
+            logger.debug( "Error sending disconnect message.", e );
+        }
+        out.close();
+        if( key != null ) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        }
+        catch( IOException ioe ) {
+            logger.debug( "Error disconnecting.", ioe );
+        }
+    }
+
+    //***************************************************************
+    // SessionOutput Interface
+    //***************************************************************
+
+    /**
+     * Queues the specified output message for the client.  The message is
+     * sent once the current batch of input has been processed.
+     */
+    @Override
+    public void write( String message ) {
+        out.write( message );
+    }
+
+    /**
+     * Queues the specified precomputed response for the client.
+     */
+    @Override
+    public void write( byte[] response ) {
+        out.write( response );
+    }
+
+    /**
+     * Queues part of a file for the client.
+     */
+    @Override
+    public void transfer( FileChannel file, long position, long count ) {
+        out.transfer( file, position, count );
+    }
+
+    /**
+     * Queues part of a stream for the client.
+     */
+    @Override
+    public void transfer( InputStream in, long count ) {
+        out.transfer( in, count );
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Runs a step on a worker thread.  The key has no interest until the
+     * reactor resumes the connection with the result of the step.  If the
+     * worker queue is full, the step waits in the reactor until retry().
+     */
+    private void dispatch( IntSupplier step ) {
+        busy = true;
+        key.interestOps( 0 );
+        try {
+            workers.execute( () -> {
+                int operations;
+                try {
+                    out.setBuffer( responseBuffers.get() );
+                    operations = step.getAsInt();
+                }
+                catch( RuntimeException e ) {
+                    logger.error( "Unexpected error in session.", e );
+                    operations = CLOSE;
+                }
+                if( operations == CLOSE || closeRequested ) {
+                    close();
+                }
+                else {
+                    int next = operations;
+                    reactor.execute( () -> resume( next ) );
+                }
+            } );
+        }
+        catch( RejectedExecutionException ree ) {
+            waitingStep = step;
+            reactor.waitForWorker( this );
+        }
+    }
+
+    /**
+     * Waits for the next event once a step is done.  Called from the
+     * reactor thread, or from the worker if the reactor has shut down.
+     */
+    private void resume( int operations ) {
+        busy = false;
+        if( closeRequested ) {
+            busy = true;
+            closeLater();
+        }
+        else if( key.isValid() ) {
+            key.interestOps( operations );
+        }
+    }
+
+    /**
+     * Closes the connection on a worker thread, as the session may have to
+     * update the disk when it ends.
+     */
+    private void closeLater() {
+        try {
+            workers.execute( this::close );
+        }
+        catch( RejectedExecutionException ree ) {
+            close();
+        }
+    }
+
+    /**
+     * Starts the session.
+     */
+    private int start() {
+        session.open( this, channel.socket().getInetAddress() );
+        return flush();
+    }
+
+    /**
+     * Dispatches the received lines to the session until the buffer is
+     * empty or the channel stops accepting the responses.  The remaining
+     * bytes stay in the read buffer until the responses have been written.
+     */
+    private int process() {
+        readBuffer.flip();
+        try {
+            while( readBuffer.hasRemaining() && !session.isClosed() && !out.isBlocked() ) {
+                framer.setLimit( session.getMaxLineLength() );
+                if( framer.frame( readBuffer ) ) {
+                    session.lineReceived( framer );
+                }
+            }
+        }
+        finally {
+            readBuffer.compact();
+        }
+        return flush();
+    }
+
+    /**
+     * Writes the queued responses, and then dispatches the lines that were
+     * held back while the channel was full.
+     */
+    private int resumeWrite() {
+        int operations = flush();
+        if( operations == SelectionKey.OP_READ && readBuffer.position() > 0 ) {
+            return process();
+        }
+        return operations;
+    }
+
+    /**
+     * Writes as much of the queue as the channel accepts.  While output is
+     * pending the connection stops reading, so a client that does not read
+     * its responses cannot make the server buffer without limit.
+     *
+     * @return the event to wait for next, or CLOSE.
+     */
+    private int flush() {
+        boolean written;
+        try {
+            written = out.flush();
+        }
+        catch( IOException ioe ) {
+            logger.debug( "Disconnecting Exception:", ioe );
+            return CLOSE;
+        }
+
+        if( !written ) {
+            return SelectionKey.OP_WRITE;
+        }
+        else if( session.isClosed() ) {
+            return CLOSE;
+        }
+        else {
+            return SelectionKey.OP_READ;
+        }
+    }
+}
+//EOF
@@ -0,0 +1,478 @@
+/******************************************************************************
+ * $Workfile: NioReactor.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * A selector based event loop that multiplexes many client connections on a
+ * single thread.  Each connection runs its ProtocolSession as a state machine,
+ * so a slow client only costs a buffer and a selection key instead of a thread.
+ * The event loop only accepts connections and reads from them.  The sessions
+ * are run on a pool of worker threads shared by the reactors of a listener,
+ * so a command that waits for the disk does not hold up other clients.
+ * <p>
+ * One reactor per listener also owns the server channel.  It accepts new
+ * connections and hands them to the reactors of that listener in turn.  When
+ * the listener is sharded with SO_REUSEPORT, every reactor owns a server
+ * channel of its own and keeps the connections it accepts.
+ * <p>
+ * The worker queue is bounded.  While it is full, new connections are sent
+ * the busy response and closed.  A connection whose next step does not fit
+ * in the queue waits in the reactor, which offers the step again every
+ * WORKER_RETRY_DELAY.  An accept that fails, for example because the process
+ * is out of file descriptors, stops accepting for ACCEPT_RETRY_DELAY.
+ *
+ * @author Eric Daugherty
+ */
+public class NioReactor implements Runnable {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(NioReactor.class.getName());
+
+    /** How often (in milliseconds) idle connections are checked for. */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /** How often (in milliseconds) steps waiting for a worker are offered again. */
+    private static final long WORKER_RETRY_DELAY = 10;
+
+    /** How long (in milliseconds) accepting stops after a failed accept. */
+    private static final long ACCEPT_RETRY_DELAY = 1000;
+
+    /** The type of session to create for each connection. */
+    private final Class<? extends ProtocolSession> sessionClass;
+
+    private final Selector selector;
+
+    /** The threads that run the sessions. */
+    private final WorkerPool workers;
+
+    /** The response sent to clients while all workers are busy, with the CRLF. */
+    private final byte[] busyResponse;
+
+    /** Connections whose next step waits for a worker.  Only used by the reactor thread. */
+    private final Queue<NioConnection> waitingConnections = new ArrayDeque<>();
+
+    /** Channels accepted by another reactor waiting to be registered here. */
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+
+    /** Tasks handed to this reactor by the workers. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** Set once the event loop has ended, tasks are then run by the caller. */
+    private boolean stopped = false;
+
+    /** The reactors accepted connections are distributed to. */
+    private NioReactor[] acceptTargets;
+
+    /** The next reactor to receive an accepted connection. */
+    private int nextTarget = 0;
+
+    /** The key of the server channel, if this reactor accepts connections. */
+    private SelectionKey acceptKey;
+
+    /** When to accept again after a failed accept, or 0 if accepting. */
+    private long acceptPausedUntil = 0;
+
+    /** How often (in milliseconds) the session counters are logged. */
+    private static final long STATISTICS_INTERVAL = 60 * 1000;
+
+    /** Indicates if this thread should continue to run or shut down */
+    private volatile boolean running = true;
+
+    /** The name of this reactor, used for logging. */
+    private String name;
+
+    /** The number of sessions currently open on this reactor. */
+    private final AtomicInteger openSessionCount = new AtomicInteger();
+
+    /** The number of sessions started on this reactor. */
+    private final AtomicLong totalSessionCount = new AtomicLong();
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Creates a new reactor for the specified ProtocolSession class.
+     *
+     * @param sessionClass the ProtocolSession implementation to run.
+     * @param workers the threads that run the sessions.
+     * @param busyResponse the response sent to clients while all workers are
+     * busy, including the CRLF.
+     * @throws IOException thrown if the selector can not be opened.
+     */
+    public NioReactor( Class<? extends ProtocolSession> sessionClass, WorkerPool workers, byte[] busyResponse ) throws IOException {
+        this.sessionClass = sessionClass;
+        this.workers = workers;
+        this.busyResponse = busyResponse;
+        this.selector = Selector.open();
+    }
+
+    //***************************************************************
+    // Methods
+
+    /**
+     * Makes this reactor accept connections from the specified server
+     * channel.  Must be called before the reactor thread is started.
+     *
+     * @param serverChannel the channel to accept connections from.
+     * @param targets the reactors to distribute the connections to.
+     * @throws IOException thrown if the channel can not be registered.
+     */
+    public void accept( ServerSocketChannel serverChannel, NioReactor[] targets ) throws IOException {
+        serverChannel.configureBlocking( false );
+        acceptKey = serverChannel.register( selector, SelectionKey.OP_ACCEPT );
+        this.acceptTargets = targets;
+    }
+
+    /**
+     * Hands a newly accepted connection to this reactor.  May be called
+     * from any thread.
+     *
+     * @param channel the connected client channel.
+     */
+    public void register( SocketChannel channel ) {
+        pendingChannels.add( channel );
+        selector.wakeup();
+    }
+
+    /**
+     * Entrypoint for the thread.  Runs the event loop until shutdown.
+     */
+    @Override
+    public void run() {
+
+        name = Thread.currentThread().getName();
+        long lastIdleCheck = System.currentTimeMillis();
+        long lastStatistics = lastIdleCheck;
+
+        while( running ) {
+            try {
+                selector.select( waitingConnections.isEmpty() ? SELECT_TIMEOUT : WORKER_RETRY_DELAY );
+                registerPending();
+                runTasks();
+                retryWaiting();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while( keys.hasNext() ) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if( !key.isValid() ) {
+                        continue;
+                    }
+                    if( key.isAcceptable() ) {
+                        handleAccept( (ServerSocketChannel) key.channel() );
+                    }
+                    else if( key.isWritable() ) {
+                        ( (NioConnection) key.attachment() ).handleWrite();
+                    }
+                    else if( key.isReadable() ) {
+                        ( (NioConnection) key.attachment() ).handleRead();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if( acceptPausedUntil != 0 && now >= acceptPausedUntil ) {
+                    acceptPausedUntil = 0;
+                    acceptKey.interestOps( SelectionKey.OP_ACCEPT );
+                }
+                if( now - lastIdleCheck >= SELECT_TIMEOUT ) {
+                    closeIdleConnections( now );
+                    lastIdleCheck = now;
+                }
+                if( now - lastStatistics >= STATISTICS_INTERVAL ) {
+                    if( logger.isDebugEnabled() ) logger.debug( "{} open sessions: {}, total sessions: {}", name, openSessionCount.get(), totalSessionCount.get() );
+                    lastStatistics = now;
+                }
+            }
+            catch( IOException ioe ) {
+                logger.error( "Error in {} reactor.", sessionClass.getSimpleName(), ioe );
+            }
+        }
+
+        closeAll();
+        logger.warn( "{} shut down gracefully after {} sessions", name, totalSessionCount.get() );
+    }
+
+    /**
+     * Notifies this reactor to close its connections and exit.
+     */
+    public void shutdown() {
+        logger.warn( "Shutting down {} reactor.", sessionClass.getSimpleName() );
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the number of sessions currently open on this reactor.
+     *
+     * @return the open session count.
+     */
+    public int getOpenSessionCount() {
+        return openSessionCount.get();
+    }
+
+    /**
+     * Returns the number of sessions started on this reactor since it was
+     * created.
+     *
+     * @return the total session count.
+     */
+    public long getTotalSessionCount() {
+        return totalSessionCount.get();
+    }
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    /**
+     * Called by a connection of this reactor when it closes.  May be called
+     * from any thread.
+     */
+    void sessionClosed() {
+        openSessionCount.decrementAndGet();
+    }
+
+    /**
+     * Called by a connection of this reactor when its next step did not fit
+     * in the worker queue.  The connection's retry() is called once the
+     * queue may have room.  Called from the reactor thread.
+     */
+    void waitForWorker( NioConnection connection ) {
+        waitingConnections.add( connection );
+    }
+
+    /**
+     * Runs the task on the reactor thread.  Once the reactor has shut down
+     * the task is run by the calling thread instead.
+     *
+     * @param task the task to run.
+     */
+    void execute( Runnable task ) {
+        synchronized( tasks ) {
+            if( !stopped ) {
+                tasks.add( task );
+                selector.wakeup();
+                return;
+            }
+        }
+        task.run();
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Accepts all pending connections and distributes them round robin.
+     * While the worker queue is full the connections are rejected instead.
+     */
+    private void handleAccept( ServerSocketChannel serverChannel ) {
+        SocketChannel channel;
+        while( ( channel = acceptConnection( serverChannel ) ) != null ) {
+            if( workers.isFull() ) {
+                rejectConnection( channel );
+                continue;
+            }
+            NioReactor target = acceptTargets[nextTarget];
+            nextTarget = ( nextTarget + 1 ) % acceptTargets.length;
+            if( target == this ) {
+                pendingChannels.add( channel );
+            }
+            else {
+                target.register( channel );
+            }
+        }
+        registerPending();
+    }
+
+    /**
+     * Accepts a connection, or returns null if there is none.  After an error
+     * accepting stops for ACCEPT_RETRY_DELAY, so an error that persists does
+     * not keep the event loop busy.
+     */
+    private SocketChannel acceptConnection( ServerSocketChannel serverChannel ) {
+        try {
+            return serverChannel.accept();
+        }
+        catch( IOException ioe ) {
+            logger.error( "Error accepting {} connection.", sessionClass.getSimpleName(), ioe );
+            acceptKey.interestOps( 0 );
+            acceptPausedUntil = System.currentTimeMillis() + ACCEPT_RETRY_DELAY;
+            return null;
+        }
+    }
+
+    /**
+     * Tells a client that the service is busy and disconnects it, rather than
+     * leaving it waiting for a worker.
+     */
+    private void rejectConnection( SocketChannel channel ) {
+        logger.warn( "All workers busy.  Rejecting {} connection from: {}", sessionClass.getSimpleName(), channel.socket().getInetAddress() );
+        try {
+            channel.configureBlocking( false );
+            channel.write( ByteBuffer.wrap( busyResponse ) );
+        }
+        catch( IOException ioe ) {
+            logger.debug( "Error sending busy message.", ioe );
+        }
+        finally {
+            try {
+                channel.close();
+            }
+            catch( IOException ioe ) {
+                //Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Offers the steps that were waiting for a worker again.  A step that
+     * still does not fit waits for the next call.
+     */
+    private void retryWaiting() {
+        for( int count = waitingConnections.size(); count > 0; count-- ) {
+            waitingConnections.poll().retry();
+        }
+    }
+
+    /**
+     * Registers connections handed to this reactor and starts their sessions.
+     */
+    private void registerPending() {
+        SocketChannel channel;
+        while( ( channel = pendingChannels.poll() ) != null ) {
+            try {
+                channel.configureBlocking( false );
+                NioConnection connection = new NioConnection( channel, sessionClass.getDeclaredConstructor().newInstance(), this, workers );
+                SelectionKey key = channel.register( selector, SelectionKey.OP_READ, connection );
+                openSessionCount.incrementAndGet();
+                totalSessionCount.incrementAndGet();
+                connection.open( key );
+            }
+            catch( IOException | ReflectiveOperationException e ) {
+                logger.error( "Unable to start {} session.", sessionClass.getSimpleName(), e );
+                try {
+                    channel.close();
+                }
+                catch( IOException ioe ) {
+                    //Nothing to do.
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks handed to this reactor by the workers.
+     */
+    private void runTasks() {
+        Runnable task;
+        while( ( task = tasks.poll() ) != null ) {
+            task.run();
+        }
+    }
+
+    /**
+     * Disconnects clients that have exceeded their session's idle timeout.
+     */
+    private void closeIdleConnections( long now ) {
+        for( SelectionKey key : selector.keys() ) {
+            Object attachment = key.attachment();
+            if( attachment instanceof NioConnection && ( (NioConnection) attachment ).isIdle( now ) ) {
+                logger.debug( "Closing idle {} connection.", sessionClass.getSimpleName() );
+                ( (NioConnection) attachment ).requestClose();
+            }
+        }
+    }
+
+    /**
+     * Closes every connection and the selector on shutdown.  Connections
+     * that are running a command are closed by their worker when it is done.
+     */
+    private void closeAll() {
+        for( SelectionKey key : selector.keys() ) {
+            Object attachment = key.attachment();
+            if( attachment instanceof NioConnection ) {
+                ( (NioConnection) attachment ).requestClose();
+            }
+        }
+        retryWaiting();
+        synchronized( tasks ) {
+            stopped = true;
+        }
+        runTasks();
+        SocketChannel channel;
+        while( ( channel = pendingChannels.poll() ) != null ) {
+            try {
+                channel.close();
+            }
+            catch( IOException ioe ) {
+                //Nothing to do.
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch( IOException ioe ) {
+            logger.debug( "Error closing selector.", ioe );
+        }
+    }
+}
+//EOF
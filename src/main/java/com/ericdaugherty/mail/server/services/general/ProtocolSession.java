@@ -0,0 +1,101 @@
+/******************************************************************************
+ * $Workfile: ProtocolSession.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.net.InetAddress;
+
+/**
+ * Defines a single client conversation (SMTP or POP3) as a line driven state
+ * machine.  A session does not own a thread or a socket.  The listener that
+ * accepted the connection feeds it one line at a time, either from a blocking
+ * SessionProcessor thread or from a non-blocking NioReactor event loop.  Lines
+ * are framed by a LineFramer and handed over as bytes.
+ *
+ * @author Eric Daugherty
+ */
+public interface ProtocolSession {
+
+    /**
+     * Called once when the client connects.  Implementations should write
+     * their greeting here.
+     *
+     * @param output the channel used to send responses to the client.
+     * @param clientAddress the address of the remote client.
+     */
+    public void open( SessionOutput output, InetAddress clientAddress );
+
+    /**
+     * Processes a single line received from the client.  The line does not
+     * include the terminating CRLF, and its bytes are only valid until this
+     * method returns.
+     *
+     * @param line the framer holding the line sent by the client.
+     */
+    public void lineReceived( LineFramer line );
+
+    /**
+     * The maximum length, including the CRLF, of the next line the session
+     * expects.  Longer lines are passed to lineReceived truncated and marked
+     * as too long.
+     *
+     * @return the line limit in bytes.
+     */
+    public int getMaxLineLength();
+
+    /**
+     * Returns true once the session has finished (QUIT or a fatal error) and
+     * the connection should be closed after any pending output is sent.
+     *
+     * @return true if the session is finished.
+     */
+    public boolean isClosed();
+
+    /**
+     * Called exactly once when the connection goes away, whether the session
+     * finished normally, the client disconnected, or the server is shutting
+     * down.  Implementations release any resources (mailbox locks) here.
+     */
+    public void close();
+
+    /**
+     * The number of milliseconds the session may wait for client input
+     * before it is disconnected.  Zero disables the timeout.
+     *
+     * @return the idle timeout in milliseconds.
+     */
+    public int getIdleTimeout();
+}
+//EOF
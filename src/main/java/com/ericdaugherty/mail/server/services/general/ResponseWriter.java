@@ -0,0 +1,498 @@
+/******************************************************************************
+ * $Workfile: ResponseWriter.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Collects the responses of a session and writes them to the client in
+ * batches.
+ * <p>
+ * Responses are copied into a reusable (direct) buffer, which is only written
+ * to the channel when it fills up or when flush() is called.  The session
+ * drivers flush when they are about to wait for client input, so a
+ * multi-line response such as a POP3 RETR costs one write per buffer instead
+ * of one per line.
+ * <p>
+ * Files can be sent with transfer(), which uses FileChannel.transferTo so the
+ * file content is copied to the socket by the operating system (sendfile)
+ * without passing through the JVM.  Other streams are read a buffer at a
+ * time as the channel accepts the data.
+ * <p>
+ * When a non-blocking channel can not take all the data, the rest is kept in
+ * an overflow queue.  The buffer is always empty after flush(), so one buffer
+ * can be shared by all the connections of an event loop.  A connection
+ * should stop processing input while isBlocked() is true.  The responses
+ * queued in the overflow are limited to PENDING_LIMIT bytes, exceeding the
+ * limit is treated as a write error.
+ * <p>
+ * Write errors are remembered and reported by the next flush(), so sessions
+ * can write responses without handling IOExceptions.
+ *
+ * @author Eric Daugherty
+ */
+public class ResponseWriter {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The default size of a response buffer. */
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    /** The maximum number of response bytes kept in the overflow queue. */
+    public static final int PENDING_LIMIT = 4 * 1024 * 1024;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    private final WritableByteChannel channel;
+
+    /** The buffer responses are collected in, always in fill mode. */
+    private ByteBuffer buffer;
+
+    /**
+     * Data the channel could not take yet, ByteBuffers and Regions.  Always
+     * follows the buffer contents.
+     */
+    private final Deque<Object> overflow = new ArrayDeque<>();
+
+    /** The number of bytes in the ByteBuffers of the overflow queue. */
+    private long pending = 0;
+
+    /** The charset used for responses that are not precomputed. */
+    private final Charset charset = Charset.defaultCharset();
+
+    /** The first error that occurred while writing. */
+    private IOException error;
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Creates a writer for the channel using the specified buffer.
+     *
+     * @param channel the channel to the client.
+     * @param buffer an empty buffer, which may be shared with other writers
+     * that are used by the same thread.
+     */
+    public ResponseWriter( WritableByteChannel channel, ByteBuffer buffer ) {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    //***************************************************************
+    // Methods
+
+    /**
+     * Switches to another empty buffer.  A writer that is used by different
+     * threads in turn uses the buffer of the current thread.
+     *
+     * @param buffer an empty buffer, which may be shared with other writers
+     * that are used by the same thread.
+     * @throws IllegalStateException if the current buffer has not been
+     * flushed.
+     */
+    public void setBuffer( ByteBuffer buffer ) {
+        if( this.buffer.position() > 0 ) {
+            throw new IllegalStateException( "The response buffer has not been flushed." );
+        }
+        this.buffer = buffer;
+    }
+
+    /**
+     * Converts a fixed response into bytes, including the CRLF, so it can be
+     * written with write(byte[]) without being encoded each time.
+     *
+     * @param response the response text, which must be ASCII.
+     * @return the response bytes.
+     */
+    public static byte[] encode( String response ) {
+        return response.concat( "\r\n" ).getBytes( StandardCharsets.US_ASCII );
+    }
+
+    /**
+     * Queues a complete response.  The array is not copied, so it must not
+     * be changed after it has been written.
+     *
+     * @param response the response bytes, including the CRLF.
+     */
+    public void write( byte[] response ) {
+        if( error != null ) {
+            return;
+        }
+        if( overflow.isEmpty() && response.length > buffer.remaining() ) {
+            drain();
+        }
+        if( overflow.isEmpty() && response.length <= buffer.remaining() ) {
+            buffer.put( response );
+        }
+        else {
+            addPending( ByteBuffer.wrap( response ), false );
+        }
+    }
+
+    /**
+     * Queues a single line, followed by a CRLF.
+     *
+     * @param line the line to write.
+     */
+    public void write( String line ) {
+        write( line.getBytes( charset ) );
+        write( CRLF );
+    }
+
+    /**
+     * Queues part of a file.  The file is sent with FileChannel.transferTo,
+     * after the responses written before it.  The writer takes ownership of
+     * the file channel and closes it once the transfer is finished or the
+     * writer is closed.
+     *
+     * @param file the file to send.
+     * @param position the position of the first byte to send.
+     * @param count the number of bytes to send.
+     */
+    public void transfer( FileChannel file, long position, long count ) {
+        queue( new FileRegion( file, position, count ) );
+    }
+
+    /**
+     * Queues part of a stream.  The stream is read a buffer at a time when
+     * the channel can take more data, after the responses written before
+     * it.  The content is sent as is.  The writer takes ownership of the
+     * stream and closes it once the transfer is finished or the writer is
+     * closed.
+     *
+     * @param in the stream to send.
+     * @param count the maximum number of bytes to send.
+     */
+    public void transfer( InputStream in, long count ) {
+        queue( new StreamRegion( in, count ) );
+    }
+
+    /**
+     * Writes as much of the queued data as the channel accepts.  Anything
+     * left is moved to the overflow queue, leaving the buffer empty.
+     *
+     * @return true if all queued data has been written.
+     * @throws IOException thrown if writing to the channel failed now or
+     * during an earlier write.
+     */
+    public boolean flush() throws IOException {
+        if( error == null ) {
+            drain();
+        }
+        if( error != null ) {
+            close();
+            throw error;
+        }
+        if( buffer.position() > 0 ) {
+            //The channel is full.  Keep the rest so the buffer can be reused.
+            buffer.flip();
+            ByteBuffer rest = ByteBuffer.allocate( buffer.remaining() );
+            rest.put( buffer ).flip();
+            buffer.clear();
+            addPending( rest, true );
+            if( error != null ) {
+                throw error;
+            }
+            return false;
+        }
+        return overflow.isEmpty();
+    }
+
+    /**
+     * Discards any data that has not been written and closes the files
+     * waiting to be transferred.
+     */
+    public void close() {
+        buffer.clear();
+        for( Object next : overflow ) {
+            if( next instanceof Region ) {
+                ( (Region) next ).close();
+            }
+        }
+        overflow.clear();
+        pending = 0;
+    }
+
+    /**
+     * True if there is data that has not been written to the channel.
+     *
+     * @return true if data is pending.
+     */
+    public boolean hasPending() {
+        return buffer.position() > 0 || !overflow.isEmpty();
+    }
+
+    /**
+     * True if the channel did not accept all the data written so far.  Any
+     * further responses are queued in memory, so the connection should not
+     * process more input until a flush() has written everything.
+     *
+     * @return true if data is waiting in the overflow queue.
+     */
+    public boolean isBlocked() {
+        return !overflow.isEmpty();
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Writes the buffer and then the overflow queue until the channel stops
+     * accepting data.
+     */
+    private void drain() {
+        try {
+            buffer.flip();
+            while( buffer.hasRemaining() ) {
+                if( channel.write( buffer ) == 0 ) {
+                    break;
+                }
+            }
+            buffer.compact();
+            if( buffer.position() > 0 ) {
+                return;
+            }
+            while( !overflow.isEmpty() ) {
+                Object next = overflow.peek();
+                if( next instanceof Region ) {
+                    if( !writeRegion( (Region) next ) ) {
+                        return;
+                    }
+                }
+                else {
+                    ByteBuffer bytes = (ByteBuffer) next;
+                    while( bytes.hasRemaining() ) {
+                        if( channel.write( bytes ) == 0 ) {
+                            return;
+                        }
+                    }
+                    pending -= bytes.capacity();
+                }
+                overflow.poll();
+            }
+        }
+        catch( IOException ioe ) {
+            error = ioe;
+        }
+    }
+
+    /**
+     * Sends the region right away if nothing else is waiting, otherwise
+     * adds it to the overflow queue.
+     */
+    private void queue( Region region ) {
+        if( error != null ) {
+            region.close();
+            return;
+        }
+        if( overflow.isEmpty() ) {
+            drain();
+            if( error == null && overflow.isEmpty() && buffer.position() == 0 && writeRegion( region ) ) {
+                return;
+            }
+            if( error != null ) {
+                region.close();
+                return;
+            }
+        }
+        overflow.add( region );
+    }
+
+    /**
+     * Adds bytes the channel could not take to the overflow queue.  If the
+     * queue exceeds PENDING_LIMIT the client is not reading its responses,
+     * which is reported as a write error.
+     */
+    private void addPending( ByteBuffer bytes, boolean first ) {
+        pending += bytes.capacity();
+        if( pending > PENDING_LIMIT ) {
+            error = new IOException( "More than " + PENDING_LIMIT + " bytes of output pending." );
+            close();
+            return;
+        }
+        if( first ) {
+            overflow.addFirst( bytes );
+        }
+        else {
+            overflow.add( bytes );
+        }
+    }
+
+    /**
+     * Writes the region until it is complete or the channel stops accepting
+     * data.  The region is closed once it is complete.
+     *
+     * @return true if the region is complete.
+     */
+    private boolean writeRegion( Region region ) {
+        try {
+            if( !region.writeTo( channel ) ) {
+                return false;
+            }
+        }
+        catch( IOException ioe ) {
+            error = ioe;
+        }
+        region.close();
+        return error == null;
+    }
+
+    /**
+     * Data that is not held in memory, waiting to be written.
+     */
+    private interface Region {
+
+        /**
+         * Writes to the channel until the region is complete or the channel
+         * stops accepting data.
+         *
+         * @return true if the region is complete.
+         */
+        boolean writeTo( WritableByteChannel channel ) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * A part of a file waiting to be transferred.
+     */
+    private static class FileRegion implements Region {
+
+        private final FileChannel file;
+        private long position;
+        private long count;
+
+        FileRegion( FileChannel file, long position, long count ) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        public boolean writeTo( WritableByteChannel channel ) throws IOException {
+            while( count > 0 ) {
+                long written = file.transferTo( position, count, channel );
+                if( written == 0 ) {
+                    //Either the channel is full, or the file is shorter than expected.
+                    return position >= file.size();
+                }
+                position += written;
+                count -= written;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            try {
+                file.close();
+            }
+            catch( IOException ioe ) {
+                //Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * A part of a stream waiting to be sent.  The stream is read into a
+     * small buffer, which is refilled once the channel has taken it.
+     */
+    private static class StreamRegion implements Region {
+
+        private final InputStream in;
+        private long count;
+        private ByteBuffer bytes;
+
+        StreamRegion( InputStream in, long count ) {
+            this.in = in;
+            this.count = count;
+        }
+
+        @Override
+        public boolean writeTo( WritableByteChannel channel ) throws IOException {
+            if( bytes == null ) {
+                bytes = ByteBuffer.allocate( BUFFER_SIZE );
+                bytes.flip();
+            }
+            while( true ) {
+                while( bytes.hasRemaining() ) {
+                    if( channel.write( bytes ) == 0 ) {
+                        return false;
+                    }
+                }
+                if( count == 0 ) {
+                    return true;
+                }
+                int read = in.read( bytes.array(), 0, (int) Math.min( bytes.capacity(), count ) );
+                if( read == -1 ) {
+                    return true;
+                }
+                bytes.clear().limit( read );
+                count -= read;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            }
+            catch( IOException ioe ) {
+                //Nothing to do.
+            }
+        }
+    }
+}
+//EOF
@@ -37,11 +37,21 @@ package com.ericdaugherty.mail.server.services.general;
 //Java imports
 import java.net.*;
 import java.io.*;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 //Log4j imports
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.configuration.ConfigurationParameterContants;
 
 //Local imports
 
@@ -50,6 +60,14 @@ import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
  * starts a new thread to process the request.  This class abstracts common
  * functinality required to start any type of service (POP3 or SMTP), reducing
  * the requirement to duplicate this code in each package.
+ * <p>
+ * Depending on the listener.mode setting, connections are accepted by the
+ * listener thread and handed to a bounded WorkerPool or to a new (virtual)
+ * thread for each connection, or multiplexed over a few non-blocking
+ * NioReactor event loops that hand the session work to a WorkerPool.  In nio
+ * mode the listener can also be sharded, with
+ * each reactor accepting on its own SO_REUSEPORT socket so the kernel spreads
+ * the connections across them.
  *
  * @author Eric Daugherty
  */
@@ -62,24 +80,48 @@ public class ServiceListener implements Runnable {
     /** Logger Category for this class. */
     private static final Logger logger = LogManager.getLogger(ServiceListener.class.getName());
 
-    /** Array of processors */
-    private ConnectionProcessor[] processors;
+    /**
+     * How long (in milliseconds) to wait after a failed accept, such as when
+     * the process is out of file descriptors, before accepting again.
+     */
+    private static final long ACCEPT_RETRY_DELAY = 1000;
+
+    /** Indicates if this listener should continue to accept connections */
+    private volatile boolean running = true;
+
+    /** Processors for the connections currently open */
+    private final Set<ConnectionProcessor> activeProcessors = ConcurrentHashMap.newKeySet();
 
     /** The port to listen on for incoming connections. */
     private final int port;
 
-    /** The type of class to use to handle requests. */
-    private final Class connectionProcessorClass;
+    /** The type of ProtocolSession to use to handle requests. */
+    private final Class<? extends ProtocolSession> sessionClass;
+
+    /** The number of worker threads to keep running for this port */
+    private final int minThreads;
+
+    /** The maximum number of worker threads for this port */
+    private final int maxThreads;
+
+    /** The response sent to clients when all workers are busy, with the CRLF */
+    private final byte[] busyResponse;
 
-    /** The number of threads to create to listen on this port */
-    private final int threads;
+    /** Worker pool used in threads mode, and to run the sessions in nio mode */
+    private WorkerPool workerPool = null;
 
-    /** Thread pool */
-    private Thread[] threadPool = null;
+    /** Event loops used in nio mode */
+    private NioReactor[] reactors;
+
+    /** Event loop threads used in nio mode */
+    private Thread[] reactorThreads = null;
 
     /** server socket */
     private ServerSocket serverSocket;
 
+    /** server channels used in nio mode, one per reactor when sharded */
+    private ServerSocketChannel[] serverChannels;
+
     //***************************************************************
     // Public Interface
     //***************************************************************
@@ -90,14 +132,18 @@ public class ServiceListener implements Runnable {
     /**
      * Creates a new instance and stores the initial paramters.
      * @param port
-     * @param connectionProcessorClass
-     * @param threads
+     * @param sessionClass the ProtocolSession implementation for this service.
+     * @param minThreads the number of worker threads to keep running.
+     * @param maxThreads the maximum number of worker threads.
+     * @param busyMessage the response sent when the connection can not be served.
      */
-    public ServiceListener( int port, Class connectionProcessorClass, int threads ) {
+    public ServiceListener( int port, Class<? extends ProtocolSession> sessionClass, int minThreads, int maxThreads, String busyMessage ) {
 
         this.port = port;
-        this.connectionProcessorClass = connectionProcessorClass;
-        this.threads = threads;
+        this.sessionClass = sessionClass;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.busyResponse = ResponseWriter.encode( busyMessage );
     }
 
     //***************************************************************
@@ -112,15 +158,22 @@ public class ServiceListener implements Runnable {
 
         if( logger.isDebugEnabled() ) logger.debug( "Starting ServiceListener on port: {}", port);
 
-        InetAddress listenAddress = ConfigurationManager.getInstance().getListenAddress();
+        ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+        InetAddress listenAddress = configurationManager.getListenAddress();
+        String mode = configurationManager.getListenerMode();
+        boolean nio = ConfigurationParameterContants.LISTENER_MODE_NIO.equals( mode );
+        int backlog = configurationManager.getListenerBacklog();
         try {
-            if( listenAddress == null ) {
-                // listen to the given port
-                serverSocket = new ServerSocket( port );
+            if( nio ) {
+                int shards = configurationManager.isListenerReusePort() ? configurationManager.getListenerReactorCount() : 1;
+                serverChannels = openServerChannels( new InetSocketAddress( listenAddress, port ), backlog, shards );
             }
             else {
-                // 50 is the default backlog size.
-                serverSocket = new ServerSocket( port, 50, listenAddress );
+                // Accepted sockets are backed by a channel, so responses can
+                // be written from a direct buffer.
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind( new InetSocketAddress( listenAddress, port ), backlog );
+                serverSocket = channel.socket();
             }
         }
         catch (IOException e) {
@@ -135,65 +188,267 @@ public class ServiceListener implements Runnable {
 
         logger.info( "Accepting Connections on port: {}", port );
 
-        ConnectionProcessor processor;
-        long threadCount = 0;
-        String threadNameBase = Thread.currentThread().getName();
+        if( nio ) {
+            startReactors( configurationManager.getListenerReactorCount(), configurationManager.getListenerQueueSize() );
+        }
+        else if( ConfigurationParameterContants.LISTENER_MODE_VIRTUAL.equals( mode ) ) {
+            ThreadFactory threadFactory = VirtualThreads.newThreadFactory( Thread.currentThread().getName() + ":" );
+            logger.info( "Starting a new thread for each connection on port: {}", port );
+            acceptConnections( task -> threadFactory.newThread( task ).start() );
+        }
+        else {
+            workerPool = new WorkerPool( Thread.currentThread().getName() + ":", minThreads, maxThreads,
+                    configurationManager.getListenerQueueSize() );
+            logger.info( "Started {} to {} worker threads on port: {}", minThreads, maxThreads, port );
+            acceptConnections( workerPool );
+        }
+    }
+
+    /**
+     * Stops all processors.
+     */
+    public void shutdown() {
+        running = false;
+        if( reactors != null ) {
+            shutdownReactors();
+        }
+
+        try
+        {
+            if( serverSocket != null ) {
+                serverSocket.close();
+            }
+            if( serverChannels != null ) {
+                for( ServerSocketChannel serverChannel : serverChannels ) {
+                    serverChannel.close();
+                }
+            }
+            logger.info("Server socket succcessfully closed");
+        }
+        catch(IOException e)
+        {
+            logger.error( "Failed to  close server socket {}", e );
+        }
+
+        for( ConnectionProcessor processor : activeProcessors ) {
+            processor.shutdown();
+        }
+        if( workerPool != null ) {
+            shutdownWorkers();
+        }
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Accepts connections until shutdown and hands each one to the executor.
+     * The accept call blocks until a client connects or the server socket is
+     * closed, so an idle listener does not wake up.  After a failed accept
+     * the listener waits ACCEPT_RETRY_DELAY, so an error that persists does
+     * not keep a core busy.
+     */
+    private void acceptConnections( Executor executor ) {
+
+        while( running ) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch( IOException ioe ) {
+                if( !running || serverSocket.isClosed() ) {
+                    break;
+                }
+                logger.error( "Error accepting connection on port: {}", port, ioe );
+                try {
+                    Thread.sleep( ACCEPT_RETRY_DELAY );
+                }
+                catch( InterruptedException ie ) {
+                    break;
+                }
+                continue;
+            }
+
+            final ConnectionProcessor processor = new SessionProcessor( sessionClass );
+            processor.setSocket( socket );
+            activeProcessors.add( processor );
+            try {
+                executor.execute( () -> {
+                    try {
+                        processor.run();
+                    }
+                    finally {
+                        activeProcessors.remove( processor );
+                    }
+                } );
+            }
+            catch( RejectedExecutionException ree ) {
+                activeProcessors.remove( processor );
+                rejectConnection( socket );
+            }
+        }
+        logger.warn( "{} shut down gracefully", Thread.currentThread().getName() );
+    }
+
+    /**
+     * Tells a client that the service is busy and disconnects it, rather than
+     * leaving it waiting for a worker.
+     */
+    private void rejectConnection( Socket socket ) {
+        logger.warn( "All workers busy on port: {}.  Rejecting connection from: {}", port, socket.getInetAddress() );
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write( busyResponse );
+            out.flush();
+        }
+        catch( IOException ioe ) {
+            logger.debug( "Error sending busy message.", ioe );
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch( IOException ioe ) {
+                //Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Opens the server channels for nio mode.  When more than one shard is
+     * requested, each channel is bound to the same address with SO_REUSEPORT.
+     * If the platform does not support that option a single channel is used.
+     */
+    private ServerSocketChannel[] openServerChannels( InetSocketAddress address, int backlog, int shards ) throws IOException {
+
+        ServerSocketChannel first = ServerSocketChannel.open();
+        if( shards > 1 && !first.supportedOptions().contains( StandardSocketOptions.SO_REUSEPORT ) ) {
+            logger.warn( "SO_REUSEPORT is not supported on this platform.  Using a single listening socket on port: {}", port );
+            shards = 1;
+        }
 
-        //Initialize threadpools.
+        ServerSocketChannel[] channels = new ServerSocketChannel[ shards ];
+        channels[0] = first;
         try {
+            for( int index = 0; index < shards; index++ ) {
+                if( index > 0 ) {
+                    channels[index] = ServerSocketChannel.open();
+                }
+                if( shards > 1 ) {
+                    channels[index].setOption( StandardSocketOptions.SO_REUSEPORT, true );
+                }
+                channels[index].bind( address, backlog );
+            }
+        }
+        catch( IOException ioe ) {
+            for( ServerSocketChannel channel : channels ) {
+                if( channel != null ) {
+                    channel.close();
+                }
+            }
+            throw ioe;
+        }
+        if( shards > 1 ) {
+            logger.info( "Bound {} SO_REUSEPORT sockets on port: {}", shards, port );
+        }
+        return channels;
+    }
 
-            processors = new ConnectionProcessor[ threads ];
-            threadPool = new Thread[ threads ];
+    /**
+     * Starts the event loop threads.  If the listener is sharded each reactor
+     * accepts on its own channel, otherwise the first reactor accepts
+     * connections and distributes them over all reactors.
+     */
+    private void startReactors( int count, int queueSize ) {
 
-            for( int index = 0; index < threads; index++ ) {
-                //Create the handler now to speed up connection time.
-                processor = (ConnectionProcessor) connectionProcessorClass.newInstance();
-                processors[index] = processor;
+        String threadNameBase = Thread.currentThread().getName();
 
-                processor.setSocket( serverSocket );
+        //The sessions may block on the disk, so they run on workers.  Each
+        //connection queues at most one step at a time.  While the queue is
+        //full new connections are sent the busy response.
+        workerPool = new WorkerPool( threadNameBase + ":worker", minThreads, maxThreads, queueSize );
 
-                //Create, name, and start a new thread to handle this request.
-                threadPool[index] = new Thread(processor, threadNameBase + ":" + ++threadCount );
-                threadPool[index].start();
+        try {
+            reactors = new NioReactor[ count ];
+            for( int index = 0; index < count; index++ ) {
+                reactors[index] = new NioReactor( sessionClass, workerPool, busyResponse );
+            }
+            if( serverChannels.length == count ) {
+                for( int index = 0; index < count; index++ ) {
+                    reactors[index].accept( serverChannels[index], new NioReactor[]{ reactors[index] } );
+                }
+            }
+            else {
+                reactors[0].accept( serverChannels[0], reactors );
             }
         }
-        catch (IllegalAccessException | InstantiationException e)
-        {
+        catch( IOException e ) {
             logger.error("ServiceListener Connection failed on port: {}.  Error: {}", port, e );
+            reactors = null;
+            workerPool.shutdown();
+            return;
+        }
+
+        reactorThreads = new Thread[ count ];
+        for( int index = 0; index < count; index++ ) {
+            reactorThreads[index] = new Thread( reactors[index], threadNameBase + ":reactor" + ( index + 1 ) );
+            reactorThreads[index].start();
         }
+        logger.info( "Started {} event loop threads and {} to {} worker threads on port: {}", count, minThreads, maxThreads, port );
     }
 
     /**
-     * Stops all processors.
+     * Stops the worker threads once their connections have been closed.
      */
-    public void shutdown() {
-        for( int index = 0; index < processors.length; index++ ) {
+    private void shutdownWorkers() {
+        workerPool.shutdown();
+        try {
+            if( workerPool.awaitTermination( 10, TimeUnit.SECONDS ) ) {
+                logger.info( "Worker threads gracefully terminated" );
+            }
+            else {
+                logger.warn( "Worker threads did not terminate in time" );
+            }
+        }
+        catch( InterruptedException ie ) {
+            logger.error( "Was interrupted while waiting for worker threads to die" );
+        }
+    }
 
-            processors[index].shutdown();
+    /**
+     * Logs the number of sessions each reactor has open and has started, so
+     * the balance across shards can be checked.
+     */
+    private void logSessionCounts() {
+        int[] open = new int[ reactors.length ];
+        long[] total = new long[ reactors.length ];
+        for( int index = 0; index < reactors.length; index++ ) {
+            open[index] = reactors[index].getOpenSessionCount();
+            total[index] = reactors[index].getTotalSessionCount();
+        }
+        logger.info( "Sessions by event loop on port: {}, open: {}, total: {}", port, Arrays.toString( open ), Arrays.toString( total ) );
+    }
 
+    /**
+     * Stops the event loop threads.  Each reactor closes its own connections.
+     */
+    private void shutdownReactors() {
+        logSessionCounts();
+        for( NioReactor reactor : reactors ) {
+            reactor.shutdown();
+        }
+        for( int index = 0; index < reactorThreads.length; index++ ) {
             try{
-                threadPool[index].join(10000);
+                reactorThreads[index].join(10000);
             }
             catch (InterruptedException ie)
             {
                 logger.error("Was interrupted while waiting for thread to die");
             }
-
-            logger.info("Thread gracefully terminated");
-            threadPool[index] = null;
+            reactorThreads[index] = null;
         }
-
-        try
-        {
-            serverSocket.close();
-            logger.info("Server socket succcessfully closed");
-        }
-        catch(IOException e)
-        {
-            logger.error( "Failed to  close server socket {}", e );
-        }
-        serverSocket = null;
+        logger.info("Event loop threads gracefully terminated");
     }
 
 }
-
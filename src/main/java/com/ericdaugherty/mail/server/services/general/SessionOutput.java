@@ -0,0 +1,94 @@
+/******************************************************************************
+ * $Workfile: SessionOutput.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * The output side of a client connection as seen by a ProtocolSession.  The
+ * listener provides the implementation, so a session does not know whether
+ * it is running on a blocking socket or a non-blocking channel.
+ * <p>
+ * Responses are buffered and sent when the session is about to wait for
+ * client input, so a session should write a complete response before
+ * returning.
+ *
+ * @author Eric Daugherty
+ */
+public interface SessionOutput {
+
+    /**
+     * Sends a single line to the client.  The CRLF line terminator is
+     * appended by the implementation.
+     *
+     * @param line the line to send.
+     */
+    public void write( String line );
+
+    /**
+     * Sends a precomputed response.  See ResponseWriter.encode.  The array
+     * may be queued without being copied, so it must not be changed after it
+     * has been written.
+     *
+     * @param response the response bytes, including the CRLF.
+     */
+    public void write( byte[] response );
+
+    /**
+     * Sends part of a file, after the responses written before it.  The
+     * content is sent as is, so it must already be in wire format.  The
+     * implementation closes the file channel when it is done.
+     *
+     * @param file the file to send.
+     * @param position the position of the first byte to send.
+     * @param count the number of bytes to send.
+     */
+    public void transfer( FileChannel file, long position, long count );
+
+    /**
+     * Sends up to count bytes of a stream, after the responses written
+     * before it.  The stream is read as the client accepts the data, so it
+     * is not held in memory.  The content is sent as is, so it must already
+     * be in wire format.  The implementation closes the stream when it is
+     * done.
+     *
+     * @param in the stream to send.
+     * @param count the maximum number of bytes to send.
+     */
+    public void transfer( InputStream in, long count );
+}
+//EOF
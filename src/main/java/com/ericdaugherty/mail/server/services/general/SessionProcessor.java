@@ -0,0 +1,234 @@
+/******************************************************************************
+ * $Workfile: SessionProcessor.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Drives a ProtocolSession over a blocking socket.  Each instance handles
+ * one accepted connection, feeding the session one line at a time until it
+ * is finished or the client goes away.
+ *
+ * @author Eric Daugherty
+ */
+public class SessionProcessor implements ConnectionProcessor, SessionOutput {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(SessionProcessor.class.getName());
+
+    /** The type of session to create for each connection. */
+    private final Class<? extends ProtocolSession> sessionClass;
+
+    /** Socket connection to the client */
+    private Socket socket;
+
+    /** Writer to sent data to the client */
+    private ResponseWriter out;
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Creates a new processor for the specified ProtocolSession class.
+     *
+     * @param sessionClass the ProtocolSession implementation to run.
+     */
+    public SessionProcessor( Class<? extends ProtocolSession> sessionClass ) {
+        this.sessionClass = sessionClass;
+    }
+
+    //***************************************************************
+    // Methods
+
+    /**
+     * Sets the socket used to communicate with the client.
+     * @param socket
+     */
+    @Override
+    public void setSocket( Socket socket ) {
+
+        this.socket = socket;
+    }
+
+    /**
+     * Entrypoint for the Thread, this method runs a new session on the
+     * connected socket until the session finishes or the client goes away.
+     */
+    @Override
+    public void run() {
+
+        ProtocolSession session;
+        try {
+            session = sessionClass.getDeclaredConstructor().newInstance();
+        }
+        catch( ReflectiveOperationException e ) {
+            logger.error( "Unable to create session: {}", sessionClass.getName(), e );
+            closeSocket();
+            return;
+        }
+
+        boolean opened = false;
+        try {
+            socket.setSoTimeout( session.getIdleTimeout() );
+
+            //Prepare the input and output streams.
+            out = new ResponseWriter( socket.getChannel(), ByteBuffer.allocateDirect( ResponseWriter.BUFFER_SIZE ) );
+            InputStream in = socket.getInputStream();
+            LineFramer framer = new LineFramer();
+
+            opened = true;
+            session.open( this, socket.getInetAddress() );
+
+            while( !session.isClosed() ) {
+                framer.setLimit( session.getMaxLineLength() );
+                //Send the responses before waiting for the client.  Pipelined
+                //commands that have already arrived are answered in one batch.
+                if( !framer.hasBufferedInput() ) {
+                    out.flush();
+                }
+                if( !framer.readLine( in ) ) {
+                    logger.debug( "Client closed the connection." );
+                    break;
+                }
+                session.lineReceived( framer );
+            }
+        }
+        //If any exception gets to here uncaught, it means we should just disconnect.
+        catch( IOException e ) {
+            logger.debug( "Disconnecting Exception:", e );
+        }
+        catch( RuntimeException e ) {
+            logger.error( "Unexpected error in {} session.", sessionClass.getSimpleName(), e );
+        }
+        finally {
+            logger.info( "Disconnecting" );
+            if( opened ) {
+                session.close();
+                flushQuietly();
+                out.close();
+            }
+            closeSocket();
+        }
+    }
+
+    /**
+     * Closes the connection, which ends the session the next time it
+     * waits for client input.
+     */
+    @Override
+    public void shutdown() {
+        logger.warn( "Shutting down {} session.", sessionClass.getSimpleName() );
+        closeSocket();
+    }
+
+    /**
+     * Queues the specified output message for the client.
+     */
+    @Override
+    public void write( String message ) {
+        out.write( message );
+    }
+
+    /**
+     * Queues the specified precomputed response for the client.
+     */
+    @Override
+    public void write( byte[] response ) {
+        out.write( response );
+    }
+
+    /**
+     * Queues part of a file for the client.
+     */
+    @Override
+    public void transfer( FileChannel file, long position, long count ) {
+        out.transfer( file, position, count );
+    }
+
+    /**
+     * Queues part of a stream for the client.
+     */
+    @Override
+    public void transfer( InputStream in, long count ) {
+        out.transfer( in, count );
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Sends any remaining output, such as the sign off message, ignoring
+     * any errors.
+     */
+    private void flushQuietly() {
+        try {
+            out.flush();
+        }
+        catch( IOException ioe ) {
+            logger.debug( "Error sending disconnect message.", ioe );
+        }
+    }
+
+    /**
+     * Closes the client socket, ignoring any errors.
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+        }
+        catch( IOException ioe ) {
+            logger.debug( "Error disconnecting.", ioe );
+            //Nothing to do.
+        }
+    }
+}
+//EOF
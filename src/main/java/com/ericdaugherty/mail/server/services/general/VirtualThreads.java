@@ -0,0 +1,129 @@
+/******************************************************************************
+ * $Workfile: VirtualThreads.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Creates thread factories for virtual threads.  The server is built for
+ * Java releases that predate virtual threads, so the Thread.ofVirtual()
+ * builder is looked up at runtime.  On a JVM without virtual threads the
+ * factories create ordinary platform threads instead.
+ *
+ * @author Eric Daugherty
+ */
+public class VirtualThreads {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(VirtualThreads.class.getName());
+
+    /** Thread.ofVirtual(), or null if this JVM does not support virtual threads. */
+    private static final Method OF_VIRTUAL;
+    /** Thread.Builder.name(String, long) */
+    private static final Method BUILDER_NAME;
+    /** Thread.Builder.factory() */
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        try {
+            Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+            ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            builderName = builderClass.getMethod( "name", String.class, long.class );
+            builderFactory = builderClass.getMethod( "factory" );
+        }
+        catch( ClassNotFoundException | NoSuchMethodException e ) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    /**
+     * Returns true if this JVM supports virtual threads.
+     *
+     * @return true if virtual threads are available.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a factory for threads named namePrefix1, namePrefix2, ...  The
+     * threads are virtual threads if the JVM supports them, platform threads
+     * otherwise.
+     *
+     * @param namePrefix the prefix for the thread names.
+     * @return a new ThreadFactory.
+     */
+    public static ThreadFactory newThreadFactory( String namePrefix ) {
+
+        if( OF_VIRTUAL != null ) {
+            try {
+                Object builder = OF_VIRTUAL.invoke( null );
+                builder = BUILDER_NAME.invoke( builder, namePrefix, 1L );
+                return (ThreadFactory) BUILDER_FACTORY.invoke( builder );
+            }
+            catch( ReflectiveOperationException | RuntimeException e ) {
+                logger.warn( "Unable to create virtual thread factory, using platform threads. {}", e.toString() );
+            }
+        }
+        else {
+            logger.warn( "Virtual threads are not supported by this JVM, using platform threads." );
+        }
+
+        final AtomicLong threadCount = new AtomicLong();
+        return runnable -> new Thread( runnable, namePrefix + threadCount.incrementAndGet() );
+    }
+}
+//EOF
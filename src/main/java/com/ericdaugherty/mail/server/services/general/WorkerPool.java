@@ -0,0 +1,182 @@
+/******************************************************************************
+ * $Workfile: WorkerPool.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded, elastic pool of worker threads for a ServiceListener.
+ * <p>
+ * The pool keeps at least the minimum number of workers running.  When a
+ * connection is accepted and no worker is idle, a new worker is started, up
+ * to the maximum.  Only when all workers are busy are connections placed on
+ * the bounded accept queue, and once that is full execute() throws a
+ * RejectedExecutionException so the listener can turn the client away.
+ * Workers above the minimum exit after being idle for a minute.
+ *
+ * @author Eric Daugherty
+ */
+public class WorkerPool extends ThreadPoolExecutor {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** How long (in seconds) a worker above the minimum may stay idle. */
+    private static final long KEEP_ALIVE = 60;
+
+    /** The number of tasks that have been submitted but not finished. */
+    private final AtomicInteger submittedCount = new AtomicInteger();
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Creates and starts the minimum number of workers.
+     *
+     * @param name the prefix for the worker thread names.
+     * @param minWorkers the number of workers to keep running.
+     * @param maxWorkers the maximum number of workers.
+     * @param queueSize the number of connections that may wait for a worker.
+     */
+    public WorkerPool( String name, int minWorkers, int maxWorkers, int queueSize ) {
+        super( minWorkers, maxWorkers, KEEP_ALIVE, TimeUnit.SECONDS, new WorkQueue( queueSize ),
+                new NamedThreadFactory( name ) );
+        ( (WorkQueue) getQueue() ).pool = this;
+        prestartAllCoreThreads();
+    }
+
+    //***************************************************************
+    // Methods
+
+    /**
+     * Runs the task on an idle or new worker, or queues it if the pool is
+     * at its maximum size.
+     *
+     * @throws RejectedExecutionException if the pool and the queue are full.
+     */
+    @Override
+    public void execute( Runnable task ) {
+        submittedCount.incrementAndGet();
+        try {
+            super.execute( task );
+        }
+        catch( RejectedExecutionException ree ) {
+            submittedCount.decrementAndGet();
+            throw ree;
+        }
+    }
+
+    /**
+     * Returns true if all workers are busy and the queue is full, so the
+     * next task would be rejected.
+     *
+     * @return true if the pool is full.
+     */
+    public boolean isFull() {
+        return getQueue().remainingCapacity() == 0;
+    }
+
+    //***************************************************************
+    // Protected Interface
+    //***************************************************************
+
+    @Override
+    protected void afterExecute( Runnable task, Throwable throwable ) {
+        submittedCount.decrementAndGet();
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Bounded queue that refuses tasks while the pool can still grow, which
+     * makes the ThreadPoolExecutor start a new worker instead of queueing.
+     */
+    private static class WorkQueue extends LinkedBlockingQueue<Runnable> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** The pool that takes from the queue.  Queues are not serialized. */
+        private transient WorkerPool pool;
+
+        WorkQueue( int capacity ) {
+            super( Math.max( 1, capacity ) );
+        }
+
+        @Override
+        public boolean offer( Runnable task ) {
+            //An idle worker is waiting, so hand it the task.
+            if( pool.submittedCount.get() <= pool.getPoolSize() ) {
+                return super.offer( task );
+            }
+            //Grow the pool first.
+            if( pool.getPoolSize() < pool.getMaximumPoolSize() ) {
+                return false;
+            }
+            return super.offer( task );
+        }
+    }
+
+    /**
+     * Names the worker threads prefix1, prefix2, ...
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        NamedThreadFactory( String namePrefix ) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread( Runnable runnable ) {
+            return new Thread( runnable, namePrefix + threadCount.incrementAndGet() );
+        }
+    }
+}
+//EOF
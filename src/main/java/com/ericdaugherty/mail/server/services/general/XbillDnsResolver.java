@@ -0,0 +1,78 @@
+/******************************************************************************
+ * $Workfile: XbillDnsResolver.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.IOException;
+
+//DNSLib imports
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * The default DnsResolver, which queries the DNS servers of the system
+ * with the org.xbill.DNS libraries.
+ * <p>
+ * The library's own cache is not used, as the DnsService keeps the
+ * answers.
+ *
+ * @author Eric Daugherty
+ */
+public class XbillDnsResolver implements DnsResolver {
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    @Override
+    public Record[] lookup( String name, int type ) throws IOException {
+
+        Lookup lookup = new Lookup( name, type );
+        lookup.setCache( null );
+        Record[] records = lookup.run();
+
+        switch( lookup.getResult() ) {
+            case Lookup.SUCCESSFUL:
+                return records == null ? new Record[0] : records;
+            case Lookup.HOST_NOT_FOUND:
+            case Lookup.TYPE_NOT_FOUND:
+                return new Record[0];
+            default:
+                throw new IOException( "DNS lookup of " + Type.string( type ) + " " + name + " failed: " + lookup.getErrorString() );
+        }
+    }
+}
+//EOF
@@ -37,6 +37,8 @@ package com.ericdaugherty.mail.server.services.pop3;
 //Java imports
 import java.net.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 //Log imports
 import org.apache.logging.log4j.LogManager;
@@ -45,16 +47,23 @@ import org.apache.logging.log4j.Logger;
 //Local imports
 import com.ericdaugherty.mail.server.info.*;
 import com.ericdaugherty.mail.server.services.general.DeliveryService;
-import com.ericdaugherty.mail.server.services.general.ConnectionProcessor;
+import com.ericdaugherty.mail.server.services.general.DnsService;
+import com.ericdaugherty.mail.server.services.general.LineFramer;
+import com.ericdaugherty.mail.server.services.general.ProtocolSession;
+import com.ericdaugherty.mail.server.services.general.ResponseWriter;
+import com.ericdaugherty.mail.server.services.general.SessionOutput;
 import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
 
 
 /**
  * Handles an incoming Pop3 connection.  See rfc 1939 for details.
+ * <p>
+ * Each instance is the state machine for a single client connection.  The
+ * ServiceListener feeds it one line at a time.
  *
  * @author Eric Daugherty
  */
-public class Pop3Processor extends Thread implements ConnectionProcessor {
+public class Pop3Processor implements ProtocolSession {
 
     //***************************************************************
     // Variables
@@ -66,122 +75,129 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
     /** The ConfigurationManager */
     private static final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
 
-    /** Indicates if this thread should continue to run or shut down */
-    private boolean running = true;
+    /** Indicates if this session has finished */
+    private boolean closed = false;
 
-    /** The server socket used to listen for incoming connections */
-    private ServerSocket serverSocket;
-
-    /** Socket connection to the client */
-    private Socket socket;
+    /** The current state of the session */
+    private int state = STATE_USER;
 
     /** The IP address of the client */
     private String clientIp;
 
+    /** The username and domain sent with the USER command */
+    private String username = "";
+    private String domain = "";
+    private EmailAddress address = null;
+
     /** The user currently logged in */
     private User user = null;
 
-    /** Writer to sent data to the client */
-    private PrintWriter out;
-    /** Reader to read data from the client */
-    private BufferedReader in;
+    /** Used to sent data to the client */
+    private SessionOutput out;
 
     //***************************************************************
     // Public Interface
     //***************************************************************
 
     /**
-     * Sets the socket used to communicate with the client.
-     * @param serverSocket
+     * Starts the session by sending the welcome message to the client.
+     * @param output
+     * @param remoteAddress
      */
     @Override
-    public void setSocket( ServerSocket serverSocket ) {
+    public void open( SessionOutput output, InetAddress remoteAddress ) {
 
-        this.serverSocket = serverSocket;
+        out = output;
+        clientIp = remoteAddress.getHostAddress();
+        if( logger.isInfoEnabled() ) {
+            //The host name is logged once it is known, so the reverse lookup
+            //does not hold up the session.
+            String address = clientIp;
+            DnsService.getDnsService().getHostNameAsync( remoteAddress ).thenAccept( hostName ->
+                    logger.info( "{}({}) socket connected via POP3.", hostName, address ) );
+        }
+
+        //Output the welcome message.
+        write( WELCOME_MESSAGE );
     }
 
     /**
-     * Entrypoint for the Thread, this method handles the interaction with
-     * the client socket.
+     * Handles a single command from the client.  The client must
+     * authenticate before any other commands are accepted.
+     * @param inputLine
      */
     @Override
-    public void run() {
+    public void lineReceived( LineFramer inputLine ) {
 
-        try {
-            //Set the socket to timeout every 10 seconds so it does not
-            //just block forever.
-            serverSocket.setSoTimeout( 1000 );
+        if( inputLine.isTooLong() ) {
+            logger.debug( "Command line too long." );
+            write( MESSAGE_LINE_TOO_LONG );
+            return;
         }
-        catch( SocketException se ) {
-            logger.fatal( "Error initializing Socket Timeout in Pop3Processor" );
+
+        String inputString = inputLine.toString().trim();
+        //Log the input, unless it is a password.
+        if( logger.isDebugEnabled() && !inputString.startsWith( "PASS" ) ) {
+            logger.debug( "Read Input: {}", inputString );
         }
 
-        while( running ) {
-            try {
-                socket = serverSocket.accept();
+        String command = parseCommand( inputString );
+        String argument = parseArgument( inputString );
 
-                //Prepare the input and output streams.
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader( socket.getInputStream() ));
+        if( command.equals( COMMAND_QUIT ) ) {
+            handleQuit();
+        }
+        else if( state == STATE_USER ) {
+            handleUser( command, argument );
+        }
+        else if( state == STATE_PASS ) {
+            handlePass( command, argument );
+        }
+        else {
+            handleCommand( command, argument );
+        }
+    }
 
-                InetAddress remoteAddress = socket.getInetAddress();
-                clientIp = remoteAddress.getHostAddress();
-                if( logger.isInfoEnabled() ) { logger.info( "{}({}) socket connected via POP3.",remoteAddress.getHostName(), clientIp); }
+    /**
+     * Command lines are limited to 512 bytes.
+     * @return
+     */
+    @Override
+    public int getMaxLineLength() {
+        return LineFramer.COMMAND_LINE_LIMIT;
+    }
 
-                //Output the welcome message.
-                write( WELCOME_MESSAGE );
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
 
-                //Forces the client to property authenticate.
-                user = authenticate();
-                user.reset();
-                //Parses the input for commands and delegates to the appropriate methods.
-                handleCommands();
-            }
-            catch( InterruptedIOException iioe ) {
-                //This is fine, it should time out every 10 seconds if
-                //a connection is not made.
-//                if (logger.isFatalEnabled())
-//                logger.fatal("InterruptedIOException:", iioe );
-            }
-            //If any exception gets to here uncaught, it means we should just disconnect.
-            catch( Throwable e ) {
-                logger.debug( "Disconnecting Exception:", e );
-                logger.info( "Disconnecting" );
-
-                //Unlock the user's mailbox
-                if( user != null ) {
-                    EmailAddress userAddress = new EmailAddress( user.getUsername(), user.getDomain() );
-                    DeliveryService.getDeliveryService().unlockMailbox( userAddress );
-                }
+    /**
+     * Sends the disconnect message if the session ended without a QUIT
+     * and unlocks the user's mailbox.
+     */
+    @Override
+    public void close() {
 
-                try {
-                    write( MESSAGE_DISCONNECT );
-                }
-                catch( Exception e1 ) {
-                    logger.debug( "Error sending disconnect message.", e1 );
-                    //Nothing to do.
-                }
-                try {
-                    if( socket != null ) {
-                        socket.close();
-                    }
-                }
-                catch( IOException ioe ) {
-                    logger.debug( "Error disconnecting.", ioe );
-                    //Nothing to do.
-                }
-            }
+        if( !closed && out != null ) {
+            disconnect();
+        }
+        closed = true;
+
+        //Unlock the user's mailbox
+        if( user != null ) {
+            EmailAddress userAddress = new EmailAddress( user.getUsername(), user.getDomain() );
+            DeliveryService.getDeliveryService().unlockMailbox( userAddress );
         }
-        logger.warn( "Pop3Processor shut down gracefully" );
     }
 
     /**
-     * Notifies this thread to stop processing and exit.
+     * POP3 clients are not disconnected for being idle.
+     * @return
      */
     @Override
-    public void shutdown() {
-        logger.warn( "Shutting down Pop3Processor." );
-        running = false;
+    public int getIdleTimeout() {
+        return 0;
     }
 
     //***************************************************************
@@ -189,189 +205,147 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
     //***************************************************************
 
     /**
-     * Checks to verify that the command is not a quit command.  If it is,
-     * the current state is finalized (all messaged marked as deleted are
-     * actually deleted) and closes the connection.
+     * Handles the quit command.  The current state is finalized (all messaged
+     * marked as deleted are actually deleted) and the connection is closed.
      */
-    private void checkQuit( String command ) {
+    private void handleQuit() {
 
-        if( command.equals( COMMAND_QUIT ) ) {
-            logger.debug( "User has QUIT the session." );
-
-            //Delete the messages marked as deleted from disk
-            if( user != null ) {
-                Message[] messages = user.getMessages();
-                int numMessage = messages.length;
-                Message currentMessage = null;
-                for( int index = 0; index < numMessage; index++ ) {
-                    currentMessage = messages[index];
-                    if( currentMessage.isDeleted() ) {
-                        messages[index].getMessageLocation().delete();
-                    }
-                }
-            }
-            // TODO Find a better way to handle user logoffs.
-            throw new RuntimeException();
-        }
+        logger.debug( "User has QUIT the session." );
 
+        //Delete the messages marked as deleted from disk
+        if( user != null ) {
+            user.expungeDeletedMessages();
+        }
+        disconnect();
     }
 
     /**
-     * The user must authenticate before moving on to enter
-     * more commands.  This method will listen to incoming
-     * commands until the user either successfully autheticates
-     * or quits.
+     * Sends the sign off message and marks the session as finished.
      */
-    private User authenticate() {
-
-        //Reusable Variables.
-        String inputString;
-        String command;
-        String argument;
-
-        String username = "";
-        String domain = "";
-        String password = "";
-        EmailAddress address = null;
-        DeliveryService deliveryService = DeliveryService.getDeliveryService();
-
-        //Get the username from the client.
-        boolean userAccepted = false;
+    private void disconnect() {
+        closed = true;
+        write( MESSAGE_DISCONNECT );
+    }
 
-        while( !userAccepted ) {
-            inputString = read();
+    /**
+     * The user must send the USER command before moving on to enter
+     * the password.
+     */
+    private void handleUser( String command, String argument ) {
 
-            command = parseCommand( inputString );
-            argument = parseArgument( inputString );
+        //Check to see if they sent the user command.
+        if( command.equals( COMMAND_USER ) ) {
 
-            //Check to see if they sent the user command.
-            if( command.equals( COMMAND_USER ) ) {
+            //Make sure they sent a username
+            if( argument.equals( "" ) ) {
+                write( MESSAGE_TOO_FEW_ARGUMENTS );
+            }
+            else {
+                int atIndex = argument.indexOf( "@" );
 
-                //Make sure they sent a username
-                if( argument.equals( "" ) ) {
-                    write( MESSAGE_TOO_FEW_ARGUMENTS );
+                //Verify that the username contains the domain.
+                if( atIndex == -1 ) {
+                    write( MESSAGE_NEED_USER_DOMAIN );
                 }
                 else {
-                    int atIndex = argument.indexOf( "@" );
+                    //Accept the user, and proceed to get the password.
+                    username = argument.substring( 0, atIndex );
+                    domain = argument.substring( atIndex + 1 );
 
-                    //Verify that the username contains the domain.
-                    if( atIndex == -1 ) {
-                        write( MESSAGE_NEED_USER_DOMAIN );
+                    address = new EmailAddress( username, domain );
+
+                    //Check to see if the user's mailbox is locked
+                    if( DeliveryService.getDeliveryService().isMailboxLocked( address ) ) {
+                        write( MESSAGE_USER_MAILBOX_LOCKED );
                     }
                     else {
-                        //Accept the user, and proceed to get the password.
-                        username = argument.substring( 0, atIndex );
-                        domain = argument.substring( atIndex + 1 );
-
-                        address = new EmailAddress( username, domain );
-
-                        //Check to see if the user's mailbox is locked
-                        if( deliveryService.isMailboxLocked( address ) ) {
-                            write( MESSAGE_USER_MAILBOX_LOCKED );
-                        }
-                        else {
-                            write( MESSAGE_USER_ACCEPTED.concat(argument) );
-                            userAccepted = true;
-                        }
+                        write( MESSAGE_USER_ACCEPTED.concat(argument) );
+                        state = STATE_PASS;
                     }
                 }
             }
-            else {
-                write( MESSAGE_INVALID_COMMAND.concat(command) );
-            }
         }
+        else {
+            write( MESSAGE_INVALID_COMMAND.concat(command) );
+        }
+    }
 
-        //The user has been accepted, now get the password.
-        boolean passwordAccepted = false;
-
-        while( !passwordAccepted ) {
-            inputString = read();
-
-            command = parseCommand( inputString );
-            argument = parseArgument( inputString );
+    /**
+     * The user has been accepted, now get the password.  If the login
+     * fails the connection is closed.
+     */
+    private void handlePass( String command, String argument ) {
 
-            //Check to see if they sent the user command.
-            if( command.equals( COMMAND_PASS ) ) {
+        //Check to see if they sent the pass command.
+        if( !command.equals( COMMAND_PASS ) ) {
+            write( MESSAGE_INVALID_COMMAND.concat(command) );
+            return;
+        }
 
-                //Make sure they sent a password
-                if( argument.equals( "" ) ) {
-                    write( MESSAGE_TOO_FEW_ARGUMENTS );
-                }
-                else {
-                    password = argument;
-                    passwordAccepted = true;
-                }
-            }
-            else {
-                write( MESSAGE_INVALID_COMMAND.concat(command) );
-            }
+        //Make sure they sent a password
+        if( argument.equals( "" ) ) {
+            write( MESSAGE_TOO_FEW_ARGUMENTS );
+            return;
         }
 
-        User user = configurationManager.getUser( address );
-        if( user != null && user.isPasswordValid( password ) )
+        DeliveryService deliveryService = DeliveryService.getDeliveryService();
+        User loginUser = configurationManager.getUser( address );
+        if( loginUser != null && loginUser.isPasswordValid( argument ) )
         {
             deliveryService.ipAuthenticated( clientIp );
-            deliveryService.lockMailbox( address );
+            if( !deliveryService.lockMailbox( address ) ) {
+                //Another session logged in since the USER command.
+                write( MESSAGE_USER_MAILBOX_LOCKED );
+                state = STATE_USER;
+                return;
+            }
             write( MESSAGE_LOGIN_SUCCESSFUL );
             if( logger.isInfoEnabled() ) logger.info( "User: {} logged in successfully.", address.getAddress());
-            return user;
+            user = loginUser;
+            user.reset();
+            state = STATE_TRANSACTION;
         }
         else
         {
             //The login failed, display a message to the user and disconnect.
             write( MESSAGE_INVALID_LOGIN.concat(username) );
             logger.info( "Login failed for user: {}@{}", username, domain );
-            throw new RuntimeException();
+            disconnect();
         }
     }
 
     /**
      * Handles all the commands related the the retrieval of mail.
      */
-    private void handleCommands() {
+    private void handleCommand( String command, String argument ) {
 
-        //Reusable Variables.
-        String inputString;
-        String command;
-        String argument;
-
-        //This just runs until a SystemException is thrown, which
-        //signals us to disconnect.
-        while( true ) {
-
-            inputString = read();
-
-            command = parseCommand( inputString );
-            argument = parseArgument( inputString );
-
-            //Identify the command and call the appropriate helper method.
-            if( command.equals( COMMAND_STAT ) ) {
-                handleStat();
-            }
-            else if( command.equals( COMMAND_LIST ) ) {
-                handleList( argument );
-            }
-            else if( command.equals( COMMAND_RETR ) ) {
-                handleRetr( argument );
-            }
-            else if( command.equals( COMMAND_DELE ) ) {
-                handleDele( argument );
-            }
-            else if( command.equals( COMMAND_NOOP ) ) {
-                write( MESSAGE_OK );
-            }
-            else if( command.equals( COMMAND_RSET ) ) {
-                handleRset();
-            } 
-            else if( command.equals( COMMAND_TOP ) ) {
-                    handleTop( argument );
-            }
-            else if( command.equals( COMMAND_UIDL ) ) {
-                    handleUidl( argument );
-            }
-            else {
-                write(MESSAGE_INVALID_COMMAND.concat(command));
-            }
+        //Identify the command and call the appropriate helper method.
+        if( command.equals( COMMAND_STAT ) ) {
+            handleStat();
+        }
+        else if( command.equals( COMMAND_LIST ) ) {
+            handleList( argument );
+        }
+        else if( command.equals( COMMAND_RETR ) ) {
+            handleRetr( argument );
+        }
+        else if( command.equals( COMMAND_DELE ) ) {
+            handleDele( argument );
+        }
+        else if( command.equals( COMMAND_NOOP ) ) {
+            write( MESSAGE_OK );
+        }
+        else if( command.equals( COMMAND_RSET ) ) {
+            handleRset();
+        } 
+        else if( command.equals( COMMAND_TOP ) ) {
+                handleTop( argument );
+        }
+        else if( command.equals( COMMAND_UIDL ) ) {
+                handleUidl( argument );
+        }
+        else {
+            write(MESSAGE_INVALID_COMMAND.concat(command));
         }
     }
 
@@ -396,9 +370,9 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
             write(String.format("+OK %d messages (%d octets)", numMessages, sizeMessage));
 
             for( int index = 0; index < numMessages; index++ ) {
-                write(String.format("%d %d", (index + 1), user.getMessage( index + 1 ).getMessageLocation().length()));
+                write(String.format("%d %d", (index + 1), user.getMessage( index + 1 ).getOctetCount()));
             }
-            write( "." );
+            write( MESSAGE_END );
         }
         else {
             int messageNumber = 0;
@@ -417,7 +391,7 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
                 write( MESSAGE_NO_SUCH_MESSAGE );
                 return;
             }
-            write( String.format("+OK %d %d", messageNumber, user.getMessage( messageNumber ).getMessageLocation().length()));
+            write( String.format("+OK %d %d", messageNumber, user.getMessage( messageNumber ).getOctetCount()));
         }
     }
 
@@ -447,39 +421,22 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
             return;
         }
 
-        write( MESSAGE_OK );
-
-        BufferedReader fileIn = null;
+        Message message = user.getMessage( messageNumber );
         try {
-            //Open an reader to read the file.
-            fileIn = new BufferedReader( new FileReader( user.getMessage( messageNumber ).getMessageLocation() ) );
-
-            //Write the file to the client.
-            String currentLine = fileIn.readLine();
-            while (currentLine != null) {
-                write( currentLine );
-                currentLine = fileIn.readLine();
-            }
-            write( "." );
+            //The store returns the message exactly as it is sent,
+            //including the terminating line.
+            InputStream messageIn = configurationManager.getMailboxStore().open( message );
+            write( MESSAGE_OK );
+            send( messageIn, Long.MAX_VALUE );
         }
         catch( FileNotFoundException fnfe ) {
             logger.error( "Requested message for user {} could not be found on disk.", user.getFullUsername(), fnfe );
+            write( "-ERR Error retrieving message" );
         }
         catch( IOException ioe ) {
             logger.error( "Error retrieving message.", ioe );
             write( "-ERR Error retrieving message" );
         }
-        finally {
-            //Make sure the input stream gets closed.
-            try {
-                if( fileIn != null ) {
-                    fileIn.close();
-                }
-            }
-            catch( IOException ioe ) {
-                //Nothing to do...
-            }
-        }
     }
 
     /**
@@ -566,37 +523,55 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
             return;
         }
 
-        write( MESSAGE_OK );
-
+        Message message = user.getMessage( messageNumber );
+        long bodyOffset = message.getBodyOffset();
+        MailboxStore store = configurationManager.getMailboxStore();
         BufferedReader fileIn = null;
         try {
-            //Open an reader to read the file.
-            fileIn = new BufferedReader( new FileReader( user.getMessage( messageNumber ).getMessageLocation() ) );
+            InputStream messageIn = store.open( message );
+            write( MESSAGE_OK );
 
-            //Write the Message Header.
-            String currentLine = fileIn.readLine();
-            while (currentLine != null && !currentLine.equals( "" ) ) {
-                write( currentLine );
-                currentLine = fileIn.readLine();
+            String currentLine;
+            if( bodyOffset >= 0 ) {
+                //The header, including the empty line after it, is sent as
+                //is, and the body is read from its indexed offset.
+                send( messageIn, bodyOffset );
+                messageIn = store.open( message );
+                fileIn = new BufferedReader( new InputStreamReader( messageIn ) );
+                skip( messageIn, bodyOffset );
+                currentLine = readMessageLine( fileIn );
             }
+            else {
+                fileIn = new BufferedReader( new InputStreamReader( messageIn ) );
 
-            //Write an empty line to seperate header from body.
-            write( currentLine );
-            currentLine = fileIn.readLine();
+                //Write the Message Header.
+                currentLine = readMessageLine( fileIn );
+                while (currentLine != null && !currentLine.equals( "" ) ) {
+                    write( currentLine );
+                    currentLine = readMessageLine( fileIn );
+                }
+
+                //Write an empty line to seperate header from body.
+                if( currentLine != null ) {
+                    write( currentLine );
+                    currentLine = readMessageLine( fileIn );
+                }
+            }
 
             //Write the requested number of lines from the body of the
             //message, or until the entire message has been written.
             int index = 0;
             while( index < numLines && currentLine != null ) {
                 write( currentLine );
-                currentLine = fileIn.readLine();
+                currentLine = readMessageLine( fileIn );
                 index++;
             }
 
-            write( "." );
+            write( MESSAGE_END );
         }
         catch( FileNotFoundException fnfe ) {
             logger.error( "Requested message for user {} could not be found on disk.", user.getFullUsername(), fnfe );
+            write( "-ERR Error retrieving message" );
         }
         catch( IOException ioe ) {
             logger.error( "Error retrieving message.", ioe );
@@ -634,7 +609,7 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
                     write( String.format("%d %s", index + 1, message.getUniqueId()) );
                 }
             }
-            write( "." );
+            write( MESSAGE_END );
         }
         //Ouput a single messages unique id.
         else {
@@ -654,25 +629,55 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
                 write( MESSAGE_NO_SUCH_MESSAGE );
                 return;
             }
-            write( String.format("%s %d %s", MESSAGE_OK, messageNumber, user.getMessage( messageNumber ).getUniqueId()));
+            write( String.format("+OK %d %s", messageNumber, user.getMessage( messageNumber ).getUniqueId()));
         }
     }
 
     /**
-     * Reads a line from the input stream and returns it.
+     * Reads the next line of a message, returning null at the terminating
+     * line.  Messages from the store are in wire format, so the lines are
+     * already dot-stuffed.
      */
-    private String read() {
-        try {
-            String inputLine = in.readLine().trim();
-            //Log the input, unless it is a password.
-            if( logger.isDebugEnabled() && !inputLine.startsWith( "PASS" ) ) {
-                logger.debug( "Read Input: {}", inputLine );
+    private String readMessageLine( BufferedReader fileIn ) throws IOException {
+        String line = fileIn.readLine();
+        if( ".".equals( line ) ) {
+            return null;
+        }
+        return line;
+    }
+
+    /**
+     * Sends up to count bytes of a message stream to the client and closes
+     * the stream.  Streams of message files are sent with transferTo, other
+     * streams are read as the client accepts the data.
+     */
+    private void send( InputStream in, long count ) throws IOException {
+        if( in instanceof FileInputStream ) {
+            //Closing the channel also closes the stream.
+            FileChannel file = ( (FileInputStream) in ).getChannel();
+            try {
+                long position = file.position();
+                out.transfer( file, position, Math.min( count, file.size() - position ) );
+            }
+            catch( IOException ioe ) {
+                file.close();
+                throw ioe;
             }
-            return inputLine;
+            return;
         }
-        catch( IOException ioe ) {
-            logger.error( "Error reading from socket.", ioe );
-            throw new RuntimeException();
+        out.transfer( in, count );
+    }
+
+    /**
+     * Skips count bytes of a message stream.
+     */
+    private static void skip( InputStream in, long count ) throws IOException {
+        while( count > 0 ) {
+            long skipped = in.skip( count );
+            if( skipped <= 0 ) {
+                throw new EOFException( "Message is shorter than its body offset." );
+            }
+            count -= skipped;
         }
     }
 
@@ -681,8 +686,15 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
      */
     private void write( String message ) {
         if( logger.isDebugEnabled() ) { logger.debug( "Writing Output: {}", message ); }
-        out.print(message.concat("\r\n"));
-        out.flush();
+        out.write( message );
+    }
+
+    /**
+     * Writes the specified precomputed response to the client.
+     */
+    private void write( byte[] response ) {
+        if( logger.isDebugEnabled() ) { logger.debug( "Writing Output: {}", new String( response, 0, response.length - 2, StandardCharsets.US_ASCII ) ); }
+        out.write( response );
     }
 
     /**
@@ -692,24 +704,16 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
      * <p>
      * This method converts the returned command to uppercase to allow
      * for easier comparison.
-     * <p>
-     * Additinally, this method checks to verify that the quit command
-     * was not issued.  If it was, a SystemException is thrown to terminate
-     * the connection.
      */
     private String parseCommand( String inputString ) {
 
         int index = inputString.indexOf( " " );
 
         if( index == -1 ) {
-            String command = inputString.toUpperCase();
-            checkQuit( command );
-            return command;
+            return inputString.toUpperCase();
         }
         else {
-            String command = inputString.substring( 0, index ).toUpperCase();
-            checkQuit( command );
-            return command;
+            return inputString.substring( 0, index ).toUpperCase();
         }
     }
 
@@ -738,25 +742,30 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
 
     //Message Constants
     //General Message
-    private static final String MESSAGE_OK = "+OK";
-    private static final String WELCOME_MESSAGE = "+OK Pop Server Ready";
-    private static final String MESSAGE_DISCONNECT = "+OK Pop server signing off.";
+    private static final byte[] MESSAGE_OK = ResponseWriter.encode( "+OK" );
+    private static final byte[] WELCOME_MESSAGE = ResponseWriter.encode( "+OK Pop Server Ready" );
+    private static final byte[] MESSAGE_DISCONNECT = ResponseWriter.encode( "+OK Pop server signing off." );
+    /** Terminates a multi-line response */
+    private static final byte[] MESSAGE_END = ResponseWriter.encode( "." );
+    /** Sent by the ServiceListener when no worker is available for a new connection. */
+    public static final String MESSAGE_SERVICE_BUSY = "-ERR Server busy, too many connections.";
     
 //    private static final String MESSAGE_ERROR = "-ERR";
     private static final String MESSAGE_INVALID_COMMAND = "-ERR Unknown command: ";
-    private static final String MESSAGE_TOO_FEW_ARGUMENTS = "-ERR Too few arguments for this command.";
+    private static final byte[] MESSAGE_TOO_FEW_ARGUMENTS = ResponseWriter.encode( "-ERR Too few arguments for this command." );
+    private static final byte[] MESSAGE_LINE_TOO_LONG = ResponseWriter.encode( "-ERR Line too long." );
 
     //Authentication Messages
-    private static final String MESSAGE_NEED_USER_DOMAIN = "-ERR User names must contain the username and domain.  ex: \"root@mydomain.com\"";
+    private static final byte[] MESSAGE_NEED_USER_DOMAIN = ResponseWriter.encode( "-ERR User names must contain the username and domain.  ex: \"root@mydomain.com\"" );
     private static final String MESSAGE_USER_ACCEPTED = "+OK Password required for ";
-    private static final String MESSAGE_LOGIN_SUCCESSFUL = "+OK Login successful";
-    private static final String MESSAGE_USER_MAILBOX_LOCKED = "-ERR User's Mailbox is locked";
+    private static final byte[] MESSAGE_LOGIN_SUCCESSFUL = ResponseWriter.encode( "+OK Login successful" );
+    private static final byte[] MESSAGE_USER_MAILBOX_LOCKED = ResponseWriter.encode( "-ERR User's Mailbox is locked" );
     private static final String MESSAGE_INVALID_LOGIN = "-ERR Password supplied is incorrect for user: ";
 
     //Other Messages
-    private static final String MESSAGE_NOT_A_NUMBER = "-ERR Command requires a valid number as an argument.";
-    private static final String MESSAGE_NO_SUCH_MESSAGE = "-ERR No such message.";
-    private static final String MESSAGE_ALREADY_DELETED = "-ERR Message already deleted.";
+    private static final byte[] MESSAGE_NOT_A_NUMBER = ResponseWriter.encode( "-ERR Command requires a valid number as an argument." );
+    private static final byte[] MESSAGE_NO_SUCH_MESSAGE = ResponseWriter.encode( "-ERR No such message." );
+    private static final byte[] MESSAGE_ALREADY_DELETED = ResponseWriter.encode( "-ERR Message already deleted." );
 
     //Command Constants
     private static final String COMMAND_QUIT = "QUIT";
@@ -771,5 +780,10 @@ public class Pop3Processor extends Thread implements ConnectionProcessor {
     private static final String COMMAND_TOP = "TOP";
     private static final String COMMAND_UIDL = "UIDL";
 
+    //Session States
+    private static final int STATE_USER = 0;
+    private static final int STATE_PASS = 1;
+    private static final int STATE_TRANSACTION = 2;
+
 }
 
@@ -0,0 +1,655 @@
+/******************************************************************************
+ * $Workfile: DeliveryQueue.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//Local imports
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.errors.InvalidSpoolFileException;
+import com.ericdaugherty.mail.server.info.EmailAddress;
+import com.ericdaugherty.mail.server.services.general.DeliveryService;
+import com.ericdaugherty.mail.server.services.general.DnsService;
+
+/**
+ * The queue of spooled messages waiting for delivery, ordered by their
+ * scheduled delivery time and then by the order they were queued in.
+ * <p>
+ * The spool directory is the persistent copy of the queue.  It is scanned
+ * when the queue is first used and then every smtpdelivery.interval
+ * seconds, which picks up the messages left from a previous run and
+ * messages placed in the directory by other programs.  Messages accepted
+ * by this server are added with schedule() as soon as they are saved, and
+ * messages whose delivery failed are added back by release() with their
+ * new delivery time, so take() returns each message when it is due
+ * without polling the disk.
+ * <p>
+ * Remote deliveries are also partitioned by destination domain.  A
+ * delivery thread must call acquireConnection() before it sends to a
+ * domain.  If the domain already has its maximum number of connections
+ * open, the message waits outside the queue until one of them is
+ * released.  If the domain is backing off after failures, the message is
+ * queued again for the end of the backoff.  Neither counts as a delivery
+ * attempt.  The state of each domain is logged after each scan of the
+ * spool directory, when it has changed.
+ * <p>
+ * The mail servers of the remote domains are looked up as soon as a
+ * message is queued, so the answers are usually cached by the time the
+ * message is delivered.
+ * <p>
+ * A spool file that is not in a format SMTPMessage can load is moved to
+ * the failed directory.  A spool file that could not be read is tried
+ * again after the delivery interval.
+ *
+ * @author Eric Daugherty
+ */
+public class DeliveryQueue {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(DeliveryQueue.class.getName());
+
+    /** The ConfigurationManager */
+    private static final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+
+    /** Singleton Instance */
+    private static DeliveryQueue instance = null;
+
+    /** Returned by next() when the spool directory should be scanned. */
+    private static final Entry SCAN = new Entry( null, 0, 0, new String[0] );
+
+    private final File spoolDirectory;
+
+    /** The messages waiting for their delivery time. */
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+
+    /** The entries in the queue by spool file name. */
+    private final Map<String, Entry> queued = new HashMap<>();
+
+    /**
+     * The spool files that are being delivered, or that could not be
+     * delivered and are left alone until the server is restarted.
+     */
+    private final Set<String> active = new HashSet<>();
+
+    /** The delivery state of each destination domain. */
+    private final Map<String, DomainQueue> domains = new TreeMap<>();
+
+    /**
+     * The messages waiting for a connection to a domain, by spool file
+     * name.  Messages that are still being delivered are only added when
+     * they are released.
+     */
+    private final Map<String, Entry> parked = new HashMap<>();
+
+    /** The domain each parked or active message is waiting for a connection to. */
+    private final Map<String, DomainQueue> parkedOn = new HashMap<>();
+
+    /**
+     * The time active messages should be queued again for recipients that
+     * could not be attempted, because the domain was backing off or a
+     * connection was released to them.
+     */
+    private final Map<String, Long> deferred = new HashMap<>();
+
+    /** Keeps messages with the same delivery time in order. */
+    private long sequence = 0;
+
+    private long nextScan = 0;
+    private boolean scanning = false;
+    private boolean shutdown = false;
+
+    /** The domain status that was logged last. */
+    private List<String> loggedStatus = new ArrayList<>();
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor
+
+    protected DeliveryQueue() {
+        spoolDirectory = new File( configurationManager.getMailDirectory(), "smtp" );
+    }
+
+    //***************************************************************
+    // Methods
+
+    /**
+     * accessory for the singleton instance for this class.
+     * @return the queue.
+     */
+    public static synchronized DeliveryQueue getDeliveryQueue() {
+        if( instance == null ) {
+            instance = new DeliveryQueue();
+        }
+        return instance;
+    }
+
+    /**
+     * Adds a message that has just been saved to the spool directory.
+     *
+     * @param message the saved message.
+     */
+    public synchronized void schedule( SMTPMessage message ) {
+        File file = message.getMessageLocation();
+        if( !queued.containsKey( file.getName() ) && !active.contains( file.getName() ) && !parked.containsKey( file.getName() ) ) {
+            String[] remoteDomains = getRemoteDomains( message );
+            add( file, message.getScheduledDelivery().getTime(), remoteDomains );
+            prefetch( remoteDomains );
+        }
+    }
+
+    /**
+     * Waits until a message is due for delivery and loads it.  The message
+     * must be passed to release() once the delivery attempt is complete.
+     *
+     * @return the message, or null if the queue has been shut down.
+     * @throws InterruptedException thrown if the thread was interrupted.
+     */
+    public SMTPMessage take() throws InterruptedException {
+        while( true ) {
+            Entry entry = next();
+            if( entry == null ) {
+                return null;
+            }
+            if( entry == SCAN ) {
+                try {
+                    scan();
+                }
+                catch( RuntimeException exception ) {
+                    logger.error( "Error scanning the spool directory.", exception );
+                }
+                continue;
+            }
+            try {
+                return SMTPMessage.load( entry.file.getPath() );
+            }
+            catch( InvalidSpoolFileException exception ) {
+                logger.error( "Spooled message {} is invalid and will not be delivered.  {}", entry.name, exception.getMessage() );
+                //A file that could not be moved stays active, so it is not
+                //picked up again.
+                if( moveToFailedFolder( entry.file ) ) {
+                    forget( entry.name );
+                }
+            }
+            catch( Exception exception ) {
+                if( entry.file.exists() ) {
+                    logger.warn( "Unable to read spooled message {}.  Trying again in {} seconds.", entry.name, configurationManager.getDeliveryIntervealMilliseconds() / 1000, exception );
+                    retry( entry );
+                }
+                else {
+                    forget( entry.name );
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes a delivery attempt.  A message that has been rescheduled is
+     * added back to the queue.  A message with recipients that were put off
+     * by acquireConnection() is added back when their domain is available.
+     * A message whose attempt ended with an error is tried again after the
+     * delivery interval.
+     *
+     * @param message a message returned by take().
+     * @param completed false if the delivery attempt ended with an error.
+     */
+    public synchronized void release( SMTPMessage message, boolean completed ) {
+        File file = message.getMessageLocation();
+        String name = file.getName();
+        Long deferredUntil = deferred.remove( name );
+        DomainQueue waitingFor = parkedOn.get( name );
+
+        if( !file.exists() ) {
+            active.remove( name );
+            unpark( name );
+        }
+        else if( !completed ) {
+            active.remove( name );
+            unpark( name );
+            long due = System.currentTimeMillis() + configurationManager.getDeliveryIntervealMilliseconds();
+            add( file, Math.max( due, message.getScheduledDelivery().getTime() ), getRemoteDomains( message ) );
+        }
+        else if( message.getScheduledDelivery().getTime() > System.currentTimeMillis() ) {
+            active.remove( name );
+            unpark( name );
+            add( file, message.getScheduledDelivery().getTime(), getRemoteDomains( message ) );
+        }
+        else if( waitingFor != null ) {
+            active.remove( name );
+            parked.put( name, new Entry( file, 0, 0, getRemoteDomains( message ) ) );
+        }
+        else if( deferredUntil != null ) {
+            active.remove( name );
+            add( file, deferredUntil, getRemoteDomains( message ) );
+        }
+        else {
+            //Delivered, but the spool file could not be removed.  Leave it
+            //alone rather than delivering it again.
+            logger.warn( "Spooled message {} was not rescheduled and will not be delivered again.", name );
+        }
+    }
+
+    /**
+     * Reserves a connection to a domain for the recipients of a message in
+     * that domain.  If the domain is backing off, or already has its
+     * maximum number of connections open, the recipients must be left
+     * undelivered and release() adds the message back to the queue when
+     * the domain is available.
+     *
+     * @param domain the destination domain.
+     * @param message a message returned by take().
+     * @return true if a connection may be opened.  It must be returned with
+     * releaseConnection().
+     */
+    public synchronized boolean acquireConnection( String domain, SMTPMessage message ) {
+        DomainQueue domainQueue = getDomainQueue( domain );
+        String name = message.getMessageLocation().getName();
+        long now = System.currentTimeMillis();
+        if( domainQueue.isBackingOff( now ) ) {
+            defer( name, domainQueue.getBackoffUntil() );
+            return false;
+        }
+        if( domainQueue.isBusy() ) {
+            if( !parkedOn.containsKey( name ) ) {
+                parkedOn.put( name, domainQueue );
+                domainQueue.park( name );
+            }
+            return false;
+        }
+        domainQueue.connect();
+        return true;
+    }
+
+    /**
+     * Returns a connection reserved with acquireConnection().  A successful delivery
+     * lets the message that has waited longest for the domain continue.
+     * A failure starts or extends the backoff of the domain, and the
+     * waiting messages are queued again for the end of the backoff.
+     *
+     * @param domain the destination domain.
+     * @param failed true if nothing could be delivered to the domain.
+     */
+    public synchronized void releaseConnection( String domain, boolean failed ) {
+        DomainQueue domainQueue = getDomainQueue( domain );
+        long now = System.currentTimeMillis();
+        boolean backingOff = domainQueue.isBackingOff( now );
+        domainQueue.disconnect( failed, now );
+        if( failed ) {
+            if( !backingOff && logger.isInfoEnabled() ) {
+                logger.info( "Delivery to {} failed.  Backing off for {} seconds.", domain, ( domainQueue.getBackoffUntil() - now ) / 1000 );
+            }
+            String name;
+            while( ( name = domainQueue.unparkNext() ) != null ) {
+                wake( name, domainQueue.getBackoffUntil() );
+            }
+        }
+        else {
+            String name = domainQueue.unparkNext();
+            if( name != null ) {
+                wake( name, now );
+            }
+        }
+    }
+
+    /**
+     * Describes the delivery state of each destination domain that has
+     * messages waiting, connections open, or is backing off.
+     *
+     * @return one line per domain.
+     */
+    public synchronized List<String> getDomainStatus() {
+        long now = System.currentTimeMillis();
+        List<String> status = new ArrayList<>();
+        for( Iterator<DomainQueue> iterator = domains.values().iterator(); iterator.hasNext(); ) {
+            DomainQueue domainQueue = iterator.next();
+            if( domainQueue.isIdle( now ) ) {
+                iterator.remove();
+                continue;
+            }
+            StringBuilder line = new StringBuilder()
+                    .append( domainQueue.getDomain() ).append( ": " )
+                    .append( domainQueue.getQueued() + domainQueue.getWaiting() ).append( " queued (" )
+                    .append( domainQueue.getWaiting() ).append( " waiting for a connection), " )
+                    .append( domainQueue.getConnections() ).append( " in flight" );
+            if( domainQueue.isBackingOff( now ) ) {
+                line.append( String.format( ", backing off until %tT", domainQueue.getBackoffUntil() ) );
+            }
+            status.add( line.toString() );
+        }
+        return status;
+    }
+
+    /**
+     * Wakes up the threads waiting in take(), which return null.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * The number of messages waiting for their delivery time.
+     *
+     * @return the queue length.
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    private synchronized void forget( String name ) {
+        active.remove( name );
+    }
+
+    /**
+     * Queues a message that could not be loaded again after the delivery
+     * interval.
+     */
+    private synchronized void retry( Entry entry ) {
+        active.remove( entry.name );
+        add( entry.file, System.currentTimeMillis() + configurationManager.getDeliveryIntervealMilliseconds(), entry.domains );
+    }
+
+    /**
+     * Moves a spool file that can not be loaded to the failed directory.
+     *
+     * @return false if the file could not be moved.
+     */
+    private static boolean moveToFailedFolder( File file ) {
+        SMTPMessage message = new SMTPMessage();
+        message.setMessageLocation( file );
+        try {
+            message.moveToFailedFolder();
+            logger.info( "Moved spooled message {} to the failed directory.", file.getName() );
+            return true;
+        }
+        catch( Exception exception ) {
+            logger.error( "Unable to move spooled message {} to the failed directory.  It is left alone until the server is restarted.", file.getName() );
+            return false;
+        }
+    }
+
+    private void add( File file, long due, String[] remoteDomains ) {
+        Entry entry = new Entry( file, due, sequence++, remoteDomains );
+        queue.add( entry );
+        queued.put( entry.name, entry );
+        count( entry, 1 );
+        notifyAll();
+    }
+
+    /**
+     * Adds the entry to the queued count of its domains, or removes it.
+     */
+    private void count( Entry entry, int count ) {
+        for( String domain : entry.domains ) {
+            getDomainQueue( domain ).addQueued( count );
+        }
+    }
+
+    private DomainQueue getDomainQueue( String domain ) {
+        DomainQueue domainQueue = domains.get( domain );
+        if( domainQueue == null ) {
+            domainQueue = new DomainQueue( domain, configurationManager.getDeliveryConnections( domain ) );
+            domains.put( domain, domainQueue );
+        }
+        return domainQueue;
+    }
+
+    /**
+     * Records the earliest time an active message should be queued again.
+     */
+    private void defer( String name, long due ) {
+        Long current = deferred.get( name );
+        if( current == null || due < current ) {
+            deferred.put( name, due );
+        }
+    }
+
+    /**
+     * Lets a message that was waiting for a connection continue at the
+     * specified time.
+     */
+    private void wake( String name, long due ) {
+        parkedOn.remove( name );
+        Entry entry = parked.remove( name );
+        if( entry != null ) {
+            add( entry.file, due, entry.domains );
+        }
+        else if( active.contains( name ) ) {
+            //Still being delivered.  release() queues it.
+            defer( name, due );
+        }
+    }
+
+    /**
+     * Removes a message from the domain it is waiting for.
+     */
+    private void unpark( String name ) {
+        DomainQueue domainQueue = parkedOn.remove( name );
+        if( domainQueue != null ) {
+            domainQueue.unpark( name );
+        }
+        parked.remove( name );
+    }
+
+    /**
+     * Returns the domains of the recipients that still have to be
+     * delivered to a remote server.
+     */
+    private static String[] getRemoteDomains( SMTPMessage message ) {
+        DeliveryService deliveryService = DeliveryService.getDeliveryService();
+        List<EmailAddress> toAddresses = message.getToAddresses();
+        Set<String> remoteDomains = new LinkedHashSet<>();
+        for( int index = 0; index < toAddresses.size(); index++ ) {
+            EmailAddress address = toAddresses.get( index );
+            if( !message.isDelivered( index ) && !deliveryService.isLocalAddress( address ) ) {
+                remoteDomains.add( address.getDomain() );
+            }
+        }
+        return remoteDomains.toArray( new String[remoteDomains.size()] );
+    }
+
+    /**
+     * Starts the MX lookups of the remote domains without waiting for
+     * them.  Not needed if all mail goes to the default smtp servers.
+     */
+    private static void prefetch( String[] remoteDomains ) {
+        if( !configurationManager.isDefaultSmtpServerEnabled() ) {
+            for( String domain : remoteDomains ) {
+                DnsService.getDnsService().getMXEntriesAsync( domain );
+            }
+        }
+    }
+
+    /**
+     * Waits until the first message is due or the spool directory should be
+     * scanned, whichever comes first.
+     */
+    private synchronized Entry next() throws InterruptedException {
+        while( !shutdown ) {
+            long now = System.currentTimeMillis();
+            if( !scanning && now >= nextScan ) {
+                scanning = true;
+                return SCAN;
+            }
+            long wait = scanning ? Long.MAX_VALUE : nextScan - now;
+            Entry head = queue.peek();
+            if( head != null ) {
+                if( head.due <= now ) {
+                    queue.poll();
+                    queued.remove( head.name );
+                    count( head, -1 );
+                    active.add( head.name );
+                    return head;
+                }
+                wait = Math.min( wait, head.due - now );
+            }
+            wait( wait == Long.MAX_VALUE ? 0 : wait );
+        }
+        return null;
+    }
+
+    /**
+     * Adds the spool files that are not known to the queue.  Only the
+     * envelopes are read, so the scan does not depend on the message sizes.
+     */
+    private void scan() {
+
+        Set<String> known;
+        synchronized( this ) {
+            known = new HashSet<>( queued.keySet() );
+            known.addAll( active );
+            known.addAll( parked.keySet() );
+        }
+
+        List<Entry> found = new ArrayList<>();
+        List<String> invalid = new ArrayList<>();
+        List<String> status;
+        try {
+            String[] names = spoolDirectory.list();
+            if( names != null ) {
+                for( String name : names ) {
+                    if( !name.endsWith( SMTPMessage.SPOOL_SUFFIX ) || known.contains( name ) ) {
+                        continue;
+                    }
+                    File file = new File( spoolDirectory, name );
+                    try {
+                        SMTPMessage message = SMTPMessage.load( file.getPath() );
+                        String[] remoteDomains = getRemoteDomains( message );
+                        found.add( new Entry( file, message.getScheduledDelivery().getTime(), 0, remoteDomains ) );
+                        prefetch( remoteDomains );
+                    }
+                    catch( InvalidSpoolFileException exception ) {
+                        logger.error( "Spooled message {} is invalid and will not be delivered.  {}", name, exception.getMessage() );
+                        if( !moveToFailedFolder( file ) ) {
+                            invalid.add( name );
+                        }
+                    }
+                    catch( Exception exception ) {
+                        //Picked up again by the next scan.
+                        if( file.exists() ) {
+                            logger.warn( "Unable to read spooled message {}.  Trying again with the next scan.", name, exception );
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            //The next scan is scheduled even if this one failed.
+            synchronized( this ) {
+                for( Entry entry : found ) {
+                    if( !queued.containsKey( entry.name ) && !active.contains( entry.name ) && !parked.containsKey( entry.name ) ) {
+                        add( entry.file, entry.due, entry.domains );
+                    }
+                }
+                active.addAll( invalid );
+                scanning = false;
+                nextScan = System.currentTimeMillis() + configurationManager.getDeliveryIntervealMilliseconds();
+                notifyAll();
+
+                status = getDomainStatus();
+                if( status.equals( loggedStatus ) ) {
+                    status = null;
+                }
+                else {
+                    loggedStatus = status;
+                }
+            }
+        }
+        if( !found.isEmpty() && logger.isInfoEnabled() ) {
+            logger.info( "Queued {} messages found in the spool directory.", found.size() );
+        }
+        if( status != null && logger.isInfoEnabled() ) {
+            logger.info( "Delivery queue: {} messages queued, {} remote domains active.", size(), status.size() );
+            for( String line : status ) {
+                logger.info( "Delivery queue for {}", line );
+            }
+        }
+    }
+
+    /**
+     * A spool file, the time it is due for delivery and the domains of its
+     * undelivered remote recipients.
+     */
+    private static class Entry implements Comparable<Entry> {
+
+        private final File file;
+        private final String name;
+        private final long due;
+        private final long sequence;
+        private final String[] domains;
+
+        Entry( File file, long due, long sequence, String[] domains ) {
+            this.file = file;
+            this.name = file == null ? null : file.getName();
+            this.due = due;
+            this.sequence = sequence;
+            this.domains = domains;
+        }
+
+        @Override
+        public int compareTo( Entry other ) {
+            if( due != other.due ) {
+                return due < other.due ? -1 : 1;
+            }
+            return Long.compare( sequence, other.sequence );
+        }
+    }
+}
+//EOF
@@ -0,0 +1,174 @@
+/******************************************************************************
+ * $Workfile: DomainQueue.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The delivery state of one destination domain: the connections that are
+ * open to it, the messages waiting for a connection and the backoff after
+ * failed deliveries.
+ * <p>
+ * Each domain may only have a limited number of connections open
+ * (smtpdelivery.connections), so one slow or large domain can not occupy
+ * all the delivery threads.  When a domain fails, further deliveries to it
+ * are put off for a time that doubles with each consecutive failure.
+ * <p>
+ * Instances are only used by the DeliveryQueue, which synchronizes all
+ * access.
+ *
+ * @author Eric Daugherty
+ */
+class DomainQueue {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The backoff after the first failure, in milliseconds. */
+    private static final long BACKOFF_MINIMUM = 30 * 1000;
+
+    /** The longest backoff, in milliseconds. */
+    private static final long BACKOFF_MAXIMUM = 30 * 60 * 1000;
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    private final String domain;
+    private final int maximumConnections;
+
+    /** The connections that are open to the domain. */
+    private int connections = 0;
+
+    /** The number of entries in the delivery queue with recipients in the domain. */
+    private int queued = 0;
+
+    /** The spool file names of the messages waiting for a connection. */
+    private final Deque<String> waiting = new ArrayDeque<>();
+
+    private int failures = 0;
+    private long backoffUntil = 0;
+
+    //***************************************************************
+    // Constructor(s)
+    //***************************************************************
+
+    DomainQueue( String domain, int maximumConnections ) {
+        this.domain = domain;
+        this.maximumConnections = maximumConnections;
+    }
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    String getDomain() { return domain; }
+
+    int getConnections() { return connections; }
+
+    int getQueued() { return queued; }
+
+    int getWaiting() { return waiting.size(); }
+
+    long getBackoffUntil() { return backoffUntil; }
+
+    boolean isBackingOff( long now ) {
+        return backoffUntil > now;
+    }
+
+    /**
+     * True if no more connections may be opened to the domain.
+     */
+    boolean isBusy() {
+        return connections >= maximumConnections;
+    }
+
+    /**
+     * True if the domain has no state worth keeping.
+     */
+    boolean isIdle( long now ) {
+        return connections == 0 && queued == 0 && waiting.isEmpty() && !isBackingOff( now );
+    }
+
+    void addQueued( int count ) {
+        queued += count;
+    }
+
+    void connect() {
+        connections++;
+    }
+
+    /**
+     * Closes a connection and updates the backoff.  A failure extends the
+     * backoff, a successful delivery ends it.
+     *
+     * @param failed true if nothing could be delivered over the connection.
+     * @param now the current time.
+     */
+    void disconnect( boolean failed, long now ) {
+        connections--;
+        if( failed ) {
+            failures++;
+            backoffUntil = now + Math.min( BACKOFF_MINIMUM << Math.min( failures - 1, 16 ), BACKOFF_MAXIMUM );
+        }
+        else {
+            failures = 0;
+            backoffUntil = 0;
+        }
+    }
+
+    void park( String name ) {
+        if( !waiting.contains( name ) ) {
+            waiting.add( name );
+        }
+    }
+
+    void unpark( String name ) {
+        waiting.remove( name );
+    }
+
+    /**
+     * Removes the message that has waited longest for a connection.
+     *
+     * @return the spool file name, or null if no message is waiting.
+     */
+    String unparkNext() {
+        return waiting.poll();
+    }
+}
+//EOF
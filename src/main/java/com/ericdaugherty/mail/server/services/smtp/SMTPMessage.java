@@ -36,11 +36,18 @@ package com.ericdaugherty.mail.server.services.smtp;
 
 //Java imports
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.StringTokenizer;
 
 //Log imports
@@ -51,10 +58,44 @@ import org.apache.logging.log4j.Logger;
 import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
 import com.ericdaugherty.mail.server.info.EmailAddress;
 import com.ericdaugherty.mail.server.errors.InvalidAddressException;
+import com.ericdaugherty.mail.server.errors.InvalidSpoolFileException;
 
 /**
- * Bean class used to store incoming SMTP message on disk (via Java Serialization)
- * for delivery by the SMTPSender thread.
+ * Bean class used to store incoming SMTP message on disk, in the spool file
+ * format described below, for delivery by the SMTPSender thread.
+ * <p>
+ * The data of an incoming message is not kept in memory.  startData() writes
+ * the envelope to a temporary spool file, each line is appended as it
+ * arrives, and save() renames the file to its final name, so the SMTPSender
+ * never sees a partly written message.
+ * <p>
+ * load() only reads the envelope of a spooled message.  The data is read
+ * from the spool file when openData() is called, so messages that are not
+ * due for delivery yet cost a few hundred bytes to load, whatever their
+ * size.
+ * <p>
+ * Spool files are written in version 2 of the format:
+ * <pre>
+ * offset  size  field
+ *  0       4    magic "JES" followed by the version byte 2
+ *  4       4    offset of the data
+ *  8       8    time received (milliseconds)
+ * 16       4    flags, bit 0 is set if the data contains 8-bit bytes,
+ *               bit 1 if the client declared BODY=8BITMIME
+ * 20       4    number of recipients (n)
+ * 24       8    scheduled delivery (milliseconds)
+ * 32       4    delivery attempts
+ * 36  (n+7)/8   recipient status bitmap, a set bit marks a delivered recipient
+ *        ...    sender and n recipients, each as modified UTF-8 with a
+ *               two byte length (DataOutput.writeUTF)
+ * data   ...    the data lines as received, CRLF terminated and not
+ *               dot-stuffed
+ * </pre>
+ * The scheduled delivery, the attempts and the bitmap have a fixed size, so
+ * a failed delivery is recorded by saveDeliveryState() with one positioned
+ * write instead of copying the message.  Text files of version 1.0 are
+ * still loaded, and are converted when their state is saved.  Their data
+ * is scanned for 8-bit bytes when isEightBit() is first called.
  *
  * @author Eric Daugherty
  */
@@ -64,9 +105,46 @@ public class SMTPMessage implements Serializable {
     // Constants
     //***************************************************************
 
-    private static final String DELIMITER = "\r\n";
+    private static final byte[] CRLF = { '\r', '\n' };
 
-    private static final String FILE_VERSION = "1.0";
+    /** The suffix of spool files that are ready for delivery. */
+    public static final String SPOOL_SUFFIX = ".ser";
+
+    /** The suffix of spool files that are still being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** The size of the buffer used to write the spool file. */
+    private static final int SPOOL_BUFFER_SIZE = 8 * 1024;
+
+    /** The size of the buffer used to read the envelope of a spool file. */
+    private static final int ENVELOPE_BUFFER_SIZE = 1024;
+
+    /** The charset the envelope of a text spool file is written in. */
+    private static final Charset TEXT_CHARSET = Charset.defaultCharset();
+
+    /** The first bytes of a version 2 spool file. */
+    private static final byte[] FILE_MAGIC = { 'J', 'E', 'S', 2 };
+
+    /** The position of the data offset in a version 2 spool file. */
+    private static final int DATA_OFFSET_POSITION = 4;
+
+    /** The position of the flags in a version 2 spool file. */
+    private static final int FLAGS_POSITION = 16;
+
+    /** The flag that is set if the data contains 8-bit bytes. */
+    private static final int FLAG_EIGHT_BIT = 1;
+
+    /** The flag that is set if the client declared BODY=8BITMIME. */
+    private static final int FLAG_EIGHT_BIT_MIME = 2;
+
+    /** The position of the fields saveDeliveryState() updates. */
+    private static final int STATE_POSITION = 24;
+
+    /** The size of the scheduled delivery and attempts fields. */
+    private static final int STATE_LENGTH = 12;
+
+    /** Version 1.0 stored the data lines as received, still dot-stuffed. */
+    private static final String FILE_VERSION_1_0 = "1.0";
 
     //***************************************************************
     // Variables
@@ -81,11 +159,39 @@ public class SMTPMessage implements Serializable {
     private Date scheduledDelivery;
     private int deliveryAttempts;
     private EmailAddress fromAddress;
-    private List toAddresses = new ArrayList();
-    private final List dataLines = new ArrayList();
+    private List<EmailAddress> toAddresses = new ArrayList<>();
     private File messageLocation = null;
     private long size = 0;
 
+    /** The recipients that have been delivered to. */
+    private BitSet delivered = new BitSet();
+
+    /** True if the spool file is in version 2 of the format. */
+    private boolean binarySpool = false;
+
+    /** True if the data contains bytes outside US-ASCII. */
+    private boolean eightBit = false;
+
+    /** False if the data of a version 1.0 spool file has not been scanned yet. */
+    private boolean eightBitKnown = true;
+
+    /** True if the client declared the data as 8BITMIME. */
+    private boolean eightBitMime = false;
+
+    /** The flags written with the envelope by startData(). */
+    private int envelopeFlags;
+
+    /** The position of the data in the spool file, or -1 if it has none yet. */
+    private long dataOffset = -1;
+
+    /** True if the data in the spool file is still dot-stuffed (version 1.0). */
+    private boolean dataStuffed = false;
+
+    /** The temporary spool file the data is written to. */
+    private File dataFile = null;
+    private OutputStream dataOut = null;
+    private long dataFileOffset;
+
     //***************************************************************
     // Constructor
     //***************************************************************
@@ -132,33 +238,188 @@ public class SMTPMessage implements Serializable {
 
     public void setFromAddress(EmailAddress fromAddress){ this.fromAddress = fromAddress; }
 
-    public List getToAddresses() { return toAddresses; }
+    public List<EmailAddress> getToAddresses() { return toAddresses; }
 
-    public void setToAddresses( List toAddresses ) { this.toAddresses = toAddresses; }
+    public void setToAddresses( List<EmailAddress> toAddresses ) {
+        this.toAddresses = toAddresses;
+        delivered = new BitSet();
+    }
 
     public void addToAddress( EmailAddress toAddress ) { toAddresses.add( toAddress ); }
 
-    public List getDataLines() { return dataLines; }
+    /**
+     * Returns true if the recipient has been delivered to, in which case it
+     * is skipped by later delivery attempts.
+     *
+     * @param index the position of the recipient in getToAddresses().
+     * @return true if the recipient has been delivered to.
+     */
+    public boolean isDelivered( int index ) { return delivered.get( index ); }
+
+    public void setDelivered( int index ) { delivered.set( index ); }
 
-    public void addDataLine( String line ) {
-        size += line.length();
-        dataLines.add( line );
+    /**
+     * True if the data contains bytes outside US-ASCII, in which case it may
+     * only be relayed to servers that support 8BITMIME (RFC 6152).  The data
+     * of a version 1.0 spool file is scanned on the first call.
+     *
+     * @return true if the data is 8-bit.
+     * @throws IOException thrown if the data could not be scanned.
+     */
+    public boolean isEightBit() throws IOException {
+        if( !eightBitKnown ) {
+            byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+            try( InputStream data = openData() ) {
+                int count;
+                while( !eightBit && ( count = data.read( buffer ) ) != -1 ) {
+                    checkEightBit( buffer, 0, count );
+                }
+            }
+            eightBitKnown = true;
+        }
+        return eightBit;
     }
 
-    public File getMessageLocation(){ return messageLocation; }
+    /**
+     * True if the client declared the data as 8BITMIME with the BODY
+     * parameter of MAIL FROM (RFC 6152).  The declaration is kept so the
+     * message is relayed with it, whatever bytes the data contains.
+     *
+     * @return true if BODY=8BITMIME was declared.
+     */
+    public boolean isEightBitMime() { return eightBitMime; }
 
-    public void setMessageLocation(File messageLocation){ this.messageLocation = messageLocation; }
+    public void setEightBitMime( boolean eightBitMime ) { this.eightBitMime = eightBitMime; }
 
-    public long getSize() {
-        if( size == 0 )
-        {
-            Iterator i = dataLines.iterator();
-            while( i.hasNext() )
-            {
-                size += ( (String)i.next() ).length();
+    /**
+     * Opens the data of a message that has been saved or loaded.  The
+     * bytes are returned as they were received: CRLF terminated lines that
+     * are not dot-stuffed.
+     *
+     * @return a stream of the data, which must be closed.
+     * @throws IOException thrown if the message has not been saved, or the
+     * spool file could not be opened.
+     */
+    public InputStream openData() throws IOException {
+
+        if( dataOffset < 0 ) {
+            throw new IOException( "The message has not been saved." );
+        }
+
+        FileInputStream in = new FileInputStream( messageLocation );
+        try {
+            in.getChannel().position( dataOffset );
+        }
+        catch( IOException ioe ) {
+            in.close();
+            throw ioe;
+        }
+        return dataStuffed ? new UnstuffingInputStream( in ) : in;
+    }
+
+    /**
+     * Creates the temporary spool file and writes the envelope to it.  The
+     * sender and recipients must be set.  The data lines are then written
+     * with writeDataLine(), and the message is stored with save() or
+     * removed with discardData().
+     *
+     * @throws IOException thrown if the spool file could not be created.
+     */
+    public void startData() throws IOException {
+
+        dataFile = File.createTempFile( "smtp", TEMP_SUFFIX, getSpoolDirectory() );
+        size = 0;
+        eightBit = false;
+        eightBitKnown = true;
+        try {
+            envelopeFlags = getFlags();
+            byte[] envelope = getEnvelope();
+            dataOut = new BufferedOutputStream( new FileOutputStream( dataFile ), SPOOL_BUFFER_SIZE );
+            dataOut.write( envelope );
+            dataFileOffset = envelope.length;
+        }
+        catch( IOException ioe ) {
+            discardData();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Appends a line to the spool file started by startData().
+     *
+     * @param line the buffer holding the line, without the CRLF.
+     * @param offset the position of the line in the buffer.
+     * @param length the number of bytes in the line.
+     * @throws IOException thrown if the line could not be written.
+     */
+    public void writeDataLine( byte[] line, int offset, int length ) throws IOException {
+        dataOut.write( line, offset, length );
+        dataOut.write( CRLF );
+        checkEightBit( line, offset, length );
+        size += length + CRLF.length;
+    }
+
+    /**
+     * Appends a line to the spool file started by startData().
+     *
+     * @param line the line, without the CRLF, which is encoded in UTF-8.
+     * @throws IOException thrown if the line could not be written.
+     */
+    public void writeDataLine( String line ) throws IOException {
+        byte[] bytes = line.getBytes( StandardCharsets.UTF_8 );
+        writeDataLine( bytes, 0, bytes.length );
+    }
+
+    /**
+     * Appends data to the spool file started by startData().  The bytes are
+     * copied unchanged, and should be CRLF terminated lines that are not
+     * dot-stuffed, such as the data of another message.
+     *
+     * @param data the data to copy, which is read to the end.
+     * @throws IOException thrown if the data could not be copied.
+     */
+    public void writeData( InputStream data ) throws IOException {
+        byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+        int count;
+        while( ( count = data.read( buffer ) ) != -1 ) {
+            dataOut.write( buffer, 0, count );
+            checkEightBit( buffer, 0, count );
+            size += count;
+        }
+    }
+
+    /**
+     * Closes and deletes the temporary spool file, if there is one.
+     */
+    public void discardData() {
+        if( dataOut != null ) {
+            try {
+                dataOut.close();
+            }
+            catch( IOException ioe ) {
+                //Nothing to do, the file is deleted anyway.
+            }
+            dataOut = null;
+        }
+        if( dataFile != null ) {
+            if( !dataFile.delete() ) {
+                logger.warn( "Unable to delete temporary spool file {}", dataFile.getAbsolutePath() );
             }
+            dataFile = null;
         }
+    }
+
+    public File getMessageLocation(){ return messageLocation; }
 
+    public void setMessageLocation(File messageLocation){ this.messageLocation = messageLocation; }
+
+    /**
+     * Returns the size of the message data in bytes, counting a CRLF for
+     * each line.
+     *
+     * @return the size.
+     */
+    public long getSize() {
         return size;
     }
 
@@ -167,7 +428,7 @@ public class SMTPMessage implements Serializable {
      * @throws java.lang.Exception
      */
     public void moveToFailedFolder() throws Exception {
-        File failedDir = new File( File.separator.join(configurationManager.getMailDirectory(), "failed") );
+        File failedDir = new File( configurationManager.getMailDirectory(), "failed" );
 
         // If the directory does not exist, create it.
         if( !failedDir.exists() ) {
@@ -180,8 +441,8 @@ public class SMTPMessage implements Serializable {
         }
 
        File messageLocation = getMessageLocation();
-       String newLocation= File.separator.join(configurationManager.getMailDirectory(),"failed", messageLocation.getName());
-       if( !messageLocation.renameTo( new File(newLocation ) ) )
+       File newLocation = new File( failedDir, messageLocation.getName() );
+       if( !messageLocation.renameTo( newLocation ) )
        {
            logger.error( "moveToFailedFolder failed.  Message was not renamed." );
            throw new Exception( "moveToFailedFolder failed.  Message was not renamed." );
@@ -189,150 +450,305 @@ public class SMTPMessage implements Serializable {
     }
 
     /**
-     * Saves the message to the Mail Spool Directory.
+     * Saves the message to the Mail Spool Directory.  If the data was not
+     * written with writeDataLine(), the envelope is written now and the
+     * data of the loaded message is copied from its spool file.  The
+     * file is written under a temporary name and renamed, replacing the
+     * previous version of the message if it has been saved before.
      * @throws java.lang.Exception
      */
     public void save() throws Exception {
 
-        File smtpDirectory = new File( configurationManager.getMailDirectory() + File.separator + "smtp" );
-
-        // If the directory does not exist, create it.
-        if( !smtpDirectory.exists() ) {
-            logger.info( "SMTP Mail directory does not exist.  Creating: {}", smtpDirectory.getAbsolutePath() );
-            if( !smtpDirectory.mkdirs() )
-            {
-                logger.error( "Error creating SMTP Mail directory: {}.  No incoming mail will be accepted!", smtpDirectory.getAbsolutePath());
-                throw new Exception( "Unable to create SMTP Mail Directory." );
+        try {
+            if( dataOut == null ) {
+                startData();
+                copyData();
+            }
+            dataOut.close();
+            dataOut = null;
+            if( getFlags() != envelopeFlags ) {
+                saveFlags();
             }
-        }
-
-        File messageFile = getMessageLocation();
 
-        if( messageFile == null ) {
-            messageFile = File.createTempFile( "smtp", ".ser", smtpDirectory );
+            File messageFile = getMessageLocation();
+            if( messageFile == null ) {
+                String name = dataFile.getName();
+                name = name.substring( 0, name.length() - TEMP_SUFFIX.length() ).concat( SPOOL_SUFFIX );
+                messageFile = new File( dataFile.getParentFile(), name );
+            }
+            Files.move( dataFile.toPath(), messageFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            dataFile = null;
             setMessageLocation( messageFile );
-        }
 
-        FileWriter writer = new FileWriter( messageFile );
-        try
-        {
-            writer.write( FILE_VERSION );
-            writer.write( DELIMITER );
-            writer.write( getFromAddress().toString() );
-            writer.write( DELIMITER );
-            writer.write( flattenAddresses( getToAddresses() ) );
-            writer.write( DELIMITER );
-            writer.write( String.valueOf( getTimeReceived().getTime() ) );
-            writer.write( DELIMITER );
-            writer.write( String.valueOf( getScheduledDelivery().getTime() ) );
-            writer.write( DELIMITER );
-            writer.write( String.valueOf( getDeliveryAttempts() ) );
-            writer.write( DELIMITER );
-            List dataLines = getDataLines();
-            for( int index = 0; index < dataLines.size(); index++ )
-            {
-                writer.write( (String) dataLines.get( index ) );
-                writer.write( DELIMITER );
-            }
+            //The data is now read from the new spool file.
+            dataOffset = dataFileOffset;
+            dataStuffed = false;
+            binarySpool = true;
         }
         finally
         {
-            try
-            {
-                if( writer != null )
-                {
-                    writer.close();
-                }
-            }
-            catch( IOException e )
-            {
-                logger.warn( "Unable to close spool file for SMTPMessage {}" + messageLocation.getAbsolutePath() );
+            //Removes the temporary file if the message was not saved.
+            discardData();
+        }
+    }
+
+    /**
+     * Saves the delivery attempts, the scheduled delivery and the delivered
+     * recipients of a message that has been saved or loaded.  A version 2
+     * spool file is updated in place, older files are rewritten.
+     * @throws java.lang.Exception
+     */
+    public void saveDeliveryState() throws Exception {
+
+        if( !binarySpool ) {
+            save();
+            return;
+        }
+
+        ByteBuffer state = ByteBuffer.allocate( STATE_LENGTH + getBitmapLength( toAddresses.size() ) );
+        state.putLong( scheduledDelivery.getTime() );
+        state.putInt( deliveryAttempts );
+        state.put( getBitmap() );
+        state.flip();
+        try( FileChannel file = FileChannel.open( messageLocation.toPath(), StandardOpenOption.WRITE ) ) {
+            while( state.hasRemaining() ) {
+                file.write( state, STATE_POSITION + state.position() );
             }
         }
     }
 
     /**
-     * Loads an individual message from disk.
+     * Loads the envelope of an individual message from disk.  The data is
+     * not read until openData() is called.
      *
      * @param filename the filename of the message.
      * @return 
+     * @throws InvalidSpoolFileException thrown if the file is not a spool file
+     * that can be loaded.
      * @throws IOException thrown if there is any IO error while reading the message.
      */
     public static SMTPMessage load( String filename ) throws Exception {
 
         File messageFile = new File( filename );
-        FileReader fileReader = new FileReader( messageFile );
-        BufferedReader reader = new BufferedReader( fileReader );
+        InputStream reader = new BufferedInputStream( new FileInputStream( messageFile ), ENVELOPE_BUFFER_SIZE );
 
         try
         {
-            String version = reader.readLine();
-            if( logger.isDebugEnabled() ) logger.debug( "Loading SMTP Message {} version {}", messageFile.getName(), version );
-            if( !FILE_VERSION.equals( version ) )
-            {
-                logger.error( "Error loading SMTP Message.  Can not handle file version: {}", version );
-                throw new IOException( "Invalid file version: ".concat(version) );
-            }
             // Initialize a new message with the right file location
             SMTPMessage message = new SMTPMessage();
             message.setMessageLocation( messageFile );
 
-            // Load each variable
-            message.setFromAddress( new EmailAddress( reader.readLine() ) );
-            message.setToAddresses( inflateAddresses( reader.readLine() ) );
-            message.setTimeReceived( new Date( Long.parseLong( reader.readLine() ) ) );
-            message.setScheduledDelivery( new Date( Long.parseLong( reader.readLine() ) ) );
-            message.setDeliveryAttempts( Integer.parseInt( reader.readLine() ) );
-
-            String inputLine = reader.readLine();
-            while( inputLine != null )
+            reader.mark( FILE_MAGIC.length );
+            byte[] magic = new byte[FILE_MAGIC.length];
+            if( reader.readNBytes( magic, 0, magic.length ) == magic.length && Arrays.equals( magic, FILE_MAGIC ) )
             {
-                message.addDataLine( inputLine );
-                inputLine = reader.readLine();
+                if( logger.isDebugEnabled() ) logger.debug( "Loading SMTP Message {} version 2", messageFile.getName() );
+                message.readEnvelope( new DataInputStream( reader ) );
             }
+            else
+            {
+                reader.reset();
+                message.readTextEnvelope( reader );
+            }
+            message.size = messageFile.length() - message.dataOffset;
 
             return message;
         }
         catch( InvalidAddressException invalidAddressException )
         {
-            throw new IOException( "Unable to parse the address from the stored file." );
+            throw new InvalidSpoolFileException( "Unable to parse the address from the stored file." );
         }
         catch( NumberFormatException numberFormatException )
         {
-            throw new IOException( String.format("Unable to parse the data from the stored file into a number.  %s", numberFormatException.toString()) );
+            throw new InvalidSpoolFileException( String.format("Unable to parse the data from the stored file into a number.  %s", numberFormatException.toString()) );
+        }
+        catch( EOFException | UTFDataFormatException formatException )
+        {
+            throw new InvalidSpoolFileException( "The envelope of the stored file is incomplete.  ".concat( formatException.toString() ) );
         }
         finally
         {
-            if( reader != null )
+            reader.close();
+        }
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Copies the data of the message into the spool file started by
+     * startData().
+     */
+    private void copyData() throws IOException {
+
+        try( InputStream data = openData() ) {
+            writeData( data );
+        }
+    }
+
+    /**
+     * Reads the envelope of a version 2 spool file, after the magic bytes.
+     */
+    private void readEnvelope( DataInputStream in ) throws IOException, InvalidAddressException, InvalidSpoolFileException {
+
+        dataOffset = in.readInt();
+        timeReceived = new Date( in.readLong() );
+        int flags = in.readInt();
+        eightBit = ( flags & FLAG_EIGHT_BIT ) != 0;
+        eightBitMime = ( flags & FLAG_EIGHT_BIT_MIME ) != 0;
+        int count = in.readInt();
+        if( count < 0 || count > dataOffset ) {
+            throw new InvalidSpoolFileException( "Invalid number of recipients: " + count );
+        }
+        scheduledDelivery = new Date( in.readLong() );
+        deliveryAttempts = in.readInt();
+        byte[] bitmap = new byte[getBitmapLength( count )];
+        in.readFully( bitmap );
+
+        fromAddress = new EmailAddress( in.readUTF() );
+        List<EmailAddress> addresses = new ArrayList<>();
+        for( int index = 0; index < count; index++ ) {
+            addresses.add( new EmailAddress( in.readUTF() ) );
+        }
+        setToAddresses( addresses );
+        delivered = BitSet.valueOf( bitmap );
+        binarySpool = true;
+    }
+
+    /**
+     * Reads the envelope of a version 1.0 spool file, which is a line per
+     * field.
+     */
+    private void readTextEnvelope( InputStream reader ) throws IOException, InvalidAddressException, InvalidSpoolFileException {
+
+        long[] offset = new long[1];
+        String version = readEnvelopeLine( reader, offset );
+        if( logger.isDebugEnabled() ) logger.debug( "Loading SMTP Message {} version {}", messageLocation.getName(), version );
+        if( !FILE_VERSION_1_0.equals( version ) )
+        {
+            logger.error( "Error loading SMTP Message.  Can not handle file version: {}", version );
+            throw new InvalidSpoolFileException( "Invalid file version: ".concat(String.valueOf(version)) );
+        }
+
+        // Load each variable
+        setFromAddress( new EmailAddress( readEnvelopeLine( reader, offset ) ) );
+        setToAddresses( inflateAddresses( readEnvelopeLine( reader, offset ) ) );
+        setTimeReceived( new Date( Long.parseLong( readEnvelopeLine( reader, offset ) ) ) );
+        setScheduledDelivery( new Date( Long.parseLong( readEnvelopeLine( reader, offset ) ) ) );
+        setDeliveryAttempts( Integer.parseInt( readEnvelopeLine( reader, offset ) ) );
+
+        // The data follows the envelope.
+        dataOffset = offset[0];
+        dataStuffed = true;
+        eightBitKnown = false;
+    }
+
+    /**
+     * Reads a line of the envelope, which ends with a LF or CRLF, and adds
+     * the number of bytes read to offset[0].
+     */
+    private static String readEnvelopeLine( InputStream in, long[] offset ) throws IOException {
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int next;
+        while( ( next = in.read() ) != -1 ) {
+            offset[0]++;
+            if( next == '\n' ) {
+                break;
+            }
+            line.write( next );
+        }
+        if( next == -1 && line.size() == 0 ) {
+            throw new EOFException( "Spool file ends in the envelope." );
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String( bytes, 0, length, TEXT_CHARSET );
+    }
+
+    /**
+     * Returns the SMTP spool directory, creating it if it does not exist.
+     */
+    private static File getSpoolDirectory() throws IOException {
+
+        File smtpDirectory = new File( configurationManager.getMailDirectory() + File.separator + "smtp" );
+
+        // If the directory does not exist, create it.
+        if( !smtpDirectory.exists() ) {
+            logger.info( "SMTP Mail directory does not exist.  Creating: {}", smtpDirectory.getAbsolutePath() );
+            if( !smtpDirectory.mkdirs() )
             {
-                reader.close();
+                logger.error( "Error creating SMTP Mail directory: {}.  No incoming mail will be accepted!", smtpDirectory.getAbsolutePath());
+                throw new IOException( "Unable to create SMTP Mail Directory." );
             }
         }
+        return smtpDirectory;
     }
 
     /**
-     * Converts a <code>List</code> of <code>EmailAddress</code>
-     * instances into a comma delimited string.
-     *
-     * @param addresses Collection of Address instances.
-     * @return Comma delimited String of the addresses.
+     * Formats the version 2 envelope that precedes the data in the spool
+     * file.
      */
-    private static String flattenAddresses( Collection addresses )
-    {
-        StringBuilder toAddresses = new StringBuilder();
-        EmailAddress address;
-        Iterator addressIterator = addresses.iterator();
-        while( addressIterator.hasNext() )
-        {
-            address = (EmailAddress) addressIterator.next();
-            toAddresses.append( address.toString() );
-            toAddresses.append( "," );
+    private byte[] getEnvelope() throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.write( FILE_MAGIC );
+        //The data offset is filled in below.
+        out.writeInt( 0 );
+        out.writeLong( timeReceived.getTime() );
+        out.writeInt( envelopeFlags );
+        out.writeInt( toAddresses.size() );
+        out.writeLong( scheduledDelivery.getTime() );
+        out.writeInt( deliveryAttempts );
+        out.write( getBitmap() );
+        out.writeUTF( fromAddress.toString() );
+        for( int index = 0; index < toAddresses.size(); index++ ) {
+            out.writeUTF( toAddresses.get( index ).toString() );
         }
+        out.flush();
 
-        // Remove the last comma.
-        toAddresses.deleteCharAt( toAddresses.length() - 1 );
+        byte[] envelope = bytes.toByteArray();
+        ByteBuffer.wrap( envelope ).putInt( DATA_OFFSET_POSITION, envelope.length );
+        return envelope;
+    }
 
-        return toAddresses.toString();
+    private int getFlags() {
+        return ( eightBit ? FLAG_EIGHT_BIT : 0 ) | ( eightBitMime ? FLAG_EIGHT_BIT_MIME : 0 );
+    }
+
+    /**
+     * Updates the flags in the envelope of the temporary spool file, which
+     * were not known when the envelope was written.
+     */
+    private void saveFlags() throws IOException {
+        ByteBuffer flags = ByteBuffer.allocate( 4 ).putInt( 0, getFlags() );
+        try( FileChannel file = FileChannel.open( dataFile.toPath(), StandardOpenOption.WRITE ) ) {
+            while( flags.hasRemaining() ) {
+                file.write( flags, FLAGS_POSITION + flags.position() );
+            }
+        }
+    }
+
+    /**
+     * Sets eightBit if any of the bytes is outside US-ASCII.
+     */
+    private void checkEightBit( byte[] bytes, int offset, int length ) {
+        for( int index = offset; !eightBit && index < offset + length; index++ ) {
+            eightBit = bytes[index] < 0;
+        }
+    }
+
+    /**
+     * Returns the recipient status bitmap, padded to its full length.
+     */
+    private byte[] getBitmap() {
+        return Arrays.copyOf( delivered.toByteArray(), getBitmapLength( toAddresses.size() ) );
+    }
+
+    private static int getBitmapLength( int recipients ) {
+        return ( recipients + 7 ) / 8;
     }
 
     /**
@@ -341,11 +757,12 @@ public class SMTPMessage implements Serializable {
      *
      * @param addresses Comma delimited String of addresses.
      * @return List of Address instances.
+     * @throws InvalidAddressException thrown if an address can not be parsed.
      */
-    private static List inflateAddresses( String addresses )
+    private static List<EmailAddress> inflateAddresses( String addresses ) throws InvalidAddressException
     {
         StringTokenizer addressTokenizer = new StringTokenizer( addresses, "," );
-        List addressList = new ArrayList();
+        List<EmailAddress> addressList = new ArrayList<>();
         EmailAddress address;
 
         try
@@ -361,8 +778,61 @@ public class SMTPMessage implements Serializable {
         catch( InvalidAddressException invalidAddressException )
         {
             logger.error( "Unable to parse to address read from database.  Full String is: {}", addresses, invalidAddressException );
-            throw new RuntimeException( "Error parsing address.  Message Delivery Failed." );
+            throw invalidAddressException;
+        }
+    }
+
+    /**
+     * Removes the period that version 1.0 spool files kept at the start of
+     * lines that begin with a period.
+     */
+    private static class UnstuffingInputStream extends FilterInputStream {
+
+        /** True if the next byte starts a line. */
+        private boolean lineStart = true;
+
+        UnstuffingInputStream( InputStream in ) {
+            super( new BufferedInputStream( in, SPOOL_BUFFER_SIZE ) );
+        }
+
+        @Override
+        public int read() throws IOException {
+            int next = super.read();
+            if( next == '.' && lineStart ) {
+                next = super.read();
+            }
+            lineStart = next == '\n';
+            return next;
+        }
+
+        @Override
+        public int read( byte[] bytes, int offset, int length ) throws IOException {
+            while( true ) {
+                int count = super.read( bytes, offset, length );
+                if( count <= 0 ) {
+                    return count;
+                }
+                //Remove the periods in place.
+                int end = offset;
+                for( int index = offset; index < offset + count; index++ ) {
+                    if( lineStart && bytes[index] == '.' ) {
+                        lineStart = false;
+                        continue;
+                    }
+                    bytes[end++] = bytes[index];
+                    lineStart = bytes[index] == '\n';
+                }
+                if( end > offset ) {
+                    return end - offset;
+                }
+            }
+        }
+
+        @Override
+        public long skip( long count ) throws IOException {
+            //The skipped bytes are read, to follow the line starts.
+            return Math.max( 0, read( new byte[(int) Math.min( count, SPOOL_BUFFER_SIZE )] ) );
         }
     }
 }
-//EOF
\ No newline at end of file
+//EOF
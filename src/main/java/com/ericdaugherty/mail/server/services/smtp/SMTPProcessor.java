@@ -35,8 +35,9 @@
 package com.ericdaugherty.mail.server.services.smtp;
 
 //Java imports
+import java.io.IOException;
 import java.net.*;
-import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 //Log imports
@@ -48,16 +49,30 @@ import com.ericdaugherty.mail.server.info.EmailAddress;
 import com.ericdaugherty.mail.server.info.User;
 import com.ericdaugherty.mail.server.errors.InvalidAddressException;
 import com.ericdaugherty.mail.server.services.general.DeliveryService;
-import com.ericdaugherty.mail.server.services.general.ConnectionProcessor;
+import com.ericdaugherty.mail.server.services.general.DnsService;
+import com.ericdaugherty.mail.server.services.general.LineFramer;
+import com.ericdaugherty.mail.server.services.general.ProtocolSession;
+import com.ericdaugherty.mail.server.services.general.ResponseWriter;
+import com.ericdaugherty.mail.server.services.general.SessionOutput;
 import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
 
 
 /**
  * Handles an incoming SMTP connection.  See rfc821 for details.
+ * <p>
+ * Each instance is the state machine for a single client connection.  The
+ * ServiceListener feeds it one line at a time.
+ * <p>
+ * Clients that greet with EHLO are offered PIPELINING (RFC 2920), SIZE
+ * (RFC 1870) and 8BITMIME (RFC 6152).  Pipelined commands are answered in
+ * order, and the listener only sends the responses once every command that
+ * has arrived has been handled, so a batch is answered in one write.  A
+ * message declared larger than smtp.messagesize with the SIZE parameter of
+ * MAIL FROM is refused before any data is sent.
  *
  * @author Eric Daugherty
  */
-public class SMTPProcessor implements ConnectionProcessor {
+public class SMTPProcessor implements ProtocolSession {
 
     //***************************************************************
     // Variables
@@ -69,14 +84,8 @@ public class SMTPProcessor implements ConnectionProcessor {
     /** The ConfigurationManager */
     private static final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
 
-    /** Indicates if this thread should continue to run or shut down */
-    private boolean running = true;
-
-    /** The server socket used to listen for incoming connections */
-    private ServerSocket serverSocket;
-
-    /** Socket connection to the client */
-    private Socket socket;
+    /** Indicates if this session has finished */
+    private boolean closed = false;
 
     /** The IP address of the client */
     private String clientIp;
@@ -84,10 +93,23 @@ public class SMTPProcessor implements ConnectionProcessor {
     /** The incoming SMTP Message */
     private SMTPMessage message;
 
-    /** Writer to sent data to the client */
-    private PrintWriter out;
-    /** Reader to read data from the client */
-    private BufferedReader in;
+    /** The last command that changed the state of the session */
+    private int lastCommand;
+
+    /** True while the message data is being received */
+    private boolean receivingData = false;
+
+    /** The maximum message size (in bytes) for the message being received */
+    private long maxSize;
+
+    /**
+     * The response sent at the end of the data if the message being received
+     * has been rejected, for example because a line was too long.
+     */
+    private byte[] dataRejection = null;
+
+    /** Used to sent data to the client */
+    private SessionOutput out;
 
 
     //***************************************************************
@@ -95,92 +117,90 @@ public class SMTPProcessor implements ConnectionProcessor {
     //***************************************************************
 
     /**
-     * Sets the socket used to communicate with the client.
-     * @param serverSocket
+     * Starts the session by sending the welcome message to the client.
+     * @param output
+     * @param remoteAddress
      */
     @Override
-    public void setSocket( ServerSocket serverSocket ) {
+    public void open( SessionOutput output, InetAddress remoteAddress ) {
+
+        out = output;
+        clientIp = remoteAddress.getHostAddress();
+        if( logger.isInfoEnabled() ) {
+            //The host name is logged once it is known, so the reverse lookup
+            //does not hold up the session.
+            String address = clientIp;
+            DnsService.getDnsService().getHostNameAsync( remoteAddress ).thenAccept( hostName ->
+                    logger.info("{}({}) socket connected via SMTP.", hostName, address ) );
+        }
 
-        this.serverSocket = serverSocket;
-    }
+        write( WELCOME_MESSAGE );
 
+        //Initialize the input message.
+        message = new SMTPMessage();
+        lastCommand = NONE;
+    }
 
     /**
-     * Entrypoint for the Thread, this method handles the interaction with
-     * the client socket.
+     * Handles a single line from the client, which is either a command or
+     * a line of message data.
+     * @param inputLine
      */
     @Override
-    public void run() {
+    public void lineReceived( LineFramer inputLine ) {
 
-        try {
-            //Set the socket to timeout every 10 seconds so it does not
-            //just block forever.
-            serverSocket.setSoTimeout( 10 * 1000 );
+        if( receivingData ) {
+            handleDataLine( inputLine );
         }
-        catch( SocketException se ) {
-            logger.fatal( "Error initializing Socket Timeout in SMTPProcessor" );
+        else if( inputLine.isTooLong() ) {
+            logger.debug( "Command line too long." );
+            write( MESSAGE_LINE_TOO_LONG );
         }
+        else {
+            String inputString = inputLine.toString().trim();
+            if( logger.isDebugEnabled() ) { logger.debug( "Read Input: {}", inputString ); }
+            handleCommand( inputString );
+        }
+    }
 
-        while( running ) {
-            try {
-                socket = serverSocket.accept();
-
-                //Set the socket to timeout after 10 seconds
-                socket.setSoTimeout( 10 * 1000 );
-
-                //Prepare the input and output streams.
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader( socket.getInputStream() ));
-
-                InetAddress remoteAddress = socket.getInetAddress();
-                clientIp = remoteAddress.getHostAddress();
-                if( logger.isInfoEnabled() ) { logger.info("{}({}) socket connected via SMTP.", remoteAddress.getHostName(), clientIp ); }
-
-                write( WELCOME_MESSAGE );
-
-                //Initialize the input message.
-                message = new SMTPMessage();
+    /**
+     * Commands are limited to 512 bytes and message text lines to 1000 bytes
+     * (RFC 5321 4.5.3.1).
+     * @return
+     */
+    @Override
+    public int getMaxLineLength() {
+        return receivingData ? LineFramer.TEXT_LINE_LIMIT : LineFramer.COMMAND_LINE_LIMIT;
+    }
 
-                //Parses the input for commands and delegates to the appropriate methods.
-                handleCommands();
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
 
-            }
-            catch( InterruptedIOException iioe ) {
-                //This is fine, it should time out every 10 seconds if
-                //a connection is not made.
-            }
-            //If any exception gets to here uncaught, it means we should just disconnect.
-            catch( IOException e ) {
-                logger.debug( "Disconnecting Exception:", e );
-                logger.info( "Disconnecting" );
-                try {
-                    write( MESSAGE_DISCONNECT );
-                }
-                catch( Exception e1 ) {
-                    logger.debug( "Error sending disconnect message.", e1 );
-                    //Nothing to do.
-                }
-                try {
-                    if( socket != null ) {
-                        socket.close();
-                    }
-                }
-                catch( IOException ioe ) {
-                    logger.debug( "Error disconnecting.", ioe );
-                    //Nothing to do.
-                }
-            }
+    /**
+     * Sends the disconnect message if the session ended without a QUIT.
+     */
+    @Override
+    public void close() {
+        if( receivingData ) {
+            message.discardData();
+            receivingData = false;
         }
-        logger.warn( "SMTPProcessor shut down gracefully" );
+        if( !closed && out != null ) {
+            closed = true;
+            write( MESSAGE_DISCONNECT );
+        }
+        closed = true;
     }
 
     /**
-     * Notifies this thread to stop processing and exit.
+     * Clients are disconnected after 10 seconds without input.
+     * @return
      */
     @Override
-    public void shutdown() {
-        logger.warn( "Shutting down SMTPProcessor." );
-        running = false;
+    public int getIdleTimeout() {
+        return 10 * 1000;
     }
 
     //***************************************************************
@@ -188,96 +208,82 @@ public class SMTPProcessor implements ConnectionProcessor {
     //***************************************************************
 
     /**
-     * Checks to make sure that the incoming command is not a quit.  If so,
-     * the connection is terminated.
+     * Handles all the commands related the the sending of mail.
      */
-    private void checkQuit( String command ) {
+    private void handleCommand( String inputString ) {
+
+        String command = parseCommand( inputString );
+        String argument = parseArgument( inputString );
 
         if( command.equals( COMMAND_QUIT ) ) {
             logger.debug( "User has QUIT the session." );
-            throw new RuntimeException();
+            write( MESSAGE_DISCONNECT );
+            closed = true;
         }
-    }
-
-    /**
-     * Handles all the commands related the the sending of mail.
-     */
-    private void handleCommands() {
-
-        //Reusable Variables.
-        String inputString;
-        String command;
-        String argument;
-
-        int lastCommand = NONE;
-
-        //This just runs until a SystemException is thrown, which
-        //signals us to disconnect.
-        while( true ) {
-
-            inputString = read();
-
-            command = parseCommand( inputString );
-            argument = parseArgument( inputString );
-
-            if( command.equals( COMMAND_HELO ) ) {
-                write( "250 Hello ".concat(argument) );
-                lastCommand = HELO;
-            }
-            //NOOP - Do Nothing.
-            else if( command.equals( COMMAND_NOOP ) ) {
-                    write( MESSAGE_OK );
-            }
-            //Resets the state of the server back to the initial
-            //state.
-            else if( command.equals( COMMAND_RSET ) ) {
-                message = new SMTPMessage();
+        else if( command.equals( COMMAND_HELO ) ) {
+            write( "250 Hello ".concat(argument) );
+            lastCommand = HELO;
+        }
+        //EHLO also lists the supported extensions, and starts a new
+        //transaction like RSET (RFC 5321 4.1.4).
+        else if( command.equals( COMMAND_EHLO ) ) {
+            message = new SMTPMessage();
+            write( "250-" + configurationManager.getLocalDomains()[0] + " Hello " + argument );
+            write( MESSAGE_EHLO_PIPELINING );
+            write( "250-SIZE " + getMaximumSize() );
+            write( MESSAGE_EHLO_8BITMIME );
+            lastCommand = EHLO;
+        }
+        //NOOP - Do Nothing.
+        else if( command.equals( COMMAND_NOOP ) ) {
                 write( MESSAGE_OK );
-                lastCommand = RSET;
-            }
-            //Not only check the command, but the full string, since the prepare command
-            //method only returns the text before the first string, and this is a two
-            //word command.
-            else if( command.equals( COMMAND_MAIL_FROM ) && inputString.toUpperCase().startsWith( "MAIL FROM:" ) ) {
-
-                if( lastCommand == HELO || lastCommand == NONE || lastCommand == RSET || lastCommand == EHLO) {
-                    if( handleMailFrom( inputString ) ) {
-                        lastCommand = MAIL_FROM;
-                    }
-                }
-                else {
-                    write( MESSAGE_COMMAND_ORDER_INVALID );
+        }
+        //Resets the state of the server back to the initial
+        //state.
+        else if( command.equals( COMMAND_RSET ) ) {
+            message = new SMTPMessage();
+            write( MESSAGE_OK );
+            lastCommand = RSET;
+        }
+        //Not only check the command, but the full string, since the prepare command
+        //method only returns the text before the first string, and this is a two
+        //word command.
+        else if( command.equals( COMMAND_MAIL_FROM ) && inputString.toUpperCase().startsWith( "MAIL FROM:" ) ) {
+
+            if( lastCommand == HELO || lastCommand == NONE || lastCommand == RSET || lastCommand == EHLO) {
+                if( handleMailFrom( inputString ) ) {
+                    lastCommand = MAIL_FROM;
                 }
             }
-            //Not only check the command, but the full string, since the prepare command
-            //method only returns the text before the first string, and this is a two
-            //word command.
-            else if( command.equals( COMMAND_RCPT_TO ) && inputString.toUpperCase().startsWith( "RCPT TO:" ) ) {
-
-                if( lastCommand == MAIL_FROM || lastCommand == RCPT_TO ) {
-                    handleRcptTo( inputString );
-                    lastCommand = RCPT_TO;
-                }
-                else {
-                    write( MESSAGE_COMMAND_ORDER_INVALID );
-                }
+            else {
+                write( MESSAGE_COMMAND_ORDER_INVALID );
+            }
+        }
+        //Not only check the command, but the full string, since the prepare command
+        //method only returns the text before the first string, and this is a two
+        //word command.
+        else if( command.equals( COMMAND_RCPT_TO ) && inputString.toUpperCase().startsWith( "RCPT TO:" ) ) {
+
+            if( lastCommand == MAIL_FROM || lastCommand == RCPT_TO ) {
+                handleRcptTo( inputString );
+                lastCommand = RCPT_TO;
             }
-            else if( command.equals( COMMAND_DATA ) ) {
+            else {
+                write( MESSAGE_COMMAND_ORDER_INVALID );
+            }
+        }
+        else if( command.equals( COMMAND_DATA ) ) {
 
-                if( lastCommand == RCPT_TO && message.getToAddresses().size() > 0 ) {
-                    handleData();
-                    // Reset for another message
-                    message = new SMTPMessage();
-                    lastCommand = RSET;
-                }
-                else {
-                    write( MESSAGE_COMMAND_ORDER_INVALID );
-                }
+            if( lastCommand == RCPT_TO && message.getToAddresses().size() > 0 ) {
+                handleData();
             }
             else {
-                write(MESSAGE_INVALID_COMMAND.concat(command));
+                write( MESSAGE_COMMAND_ORDER_INVALID );
             }
         }
+        else {
+            write(MESSAGE_INVALID_COMMAND.concat(command));
+        }
     }
 
     /**
@@ -286,7 +292,22 @@ public class SMTPProcessor implements ConnectionProcessor {
      */
     private boolean handleMailFrom( String inputString ) {
 
-        String fromAddress = parseAddress( inputString.substring( 10 ) );
+        //The ESMTP parameters follow the address.
+        String path = inputString.substring( 10 ).trim();
+        String parameters = "";
+        int end = path.indexOf( '>' );
+        if( end == -1 ) {
+            end = path.indexOf( ' ' ) - 1;
+        }
+        if( end >= 0 ) {
+            parameters = path.substring( end + 1 ).trim();
+            path = path.substring( 0, end + 1 );
+        }
+        if( !checkMailParameters( parameters ) ) {
+            return false;
+        }
+
+        String fromAddress = parseAddress( path );
 
         try {
             //It is legal for the MAIL FROM address to be empty.
@@ -311,6 +332,53 @@ public class SMTPProcessor implements ConnectionProcessor {
         }
     }
 
+    /**
+     * Checks the parameters of a MAIL FROM command.  SIZE declares the size
+     * of the message (RFC 1870) and BODY its content (RFC 6152), which is
+     * recorded in the message so it is relayed with the same BODY.
+     *
+     * @return true if the parameters are acceptable.  Otherwise the response
+     * has been written.
+     */
+    private boolean checkMailParameters( String parameters ) {
+
+        boolean eightBitMime = false;
+        for( String parameter : parameters.split( " +" ) ) {
+            if( parameter.length() == 0 ) {
+                continue;
+            }
+            int equals = parameter.indexOf( '=' );
+            String name = ( equals == -1 ? parameter : parameter.substring( 0, equals ) ).toUpperCase();
+            String value = equals == -1 ? "" : parameter.substring( equals + 1 );
+
+            if( name.equals( "SIZE" ) ) {
+                long size;
+                try {
+                    size = Long.parseLong( value );
+                }
+                catch( NumberFormatException nfe ) {
+                    write( MESSAGE_PARAMETER_SYNTAX );
+                    return false;
+                }
+                if( size > getMaximumSize() ) {
+                    logger.info( "Message Rejected.  Declared size of {} bytes larger than max allowed size ({} MB)", size, configurationManager.getMaximumMessageSize() );
+                    write( MESSAGE_MESSAGE_TOO_LARGE );
+                    return false;
+                }
+            }
+            else if( name.equals( "BODY" ) && ( value.equalsIgnoreCase( "7BIT" ) || value.equalsIgnoreCase( "8BITMIME" ) ) ) {
+                eightBitMime = value.equalsIgnoreCase( "8BITMIME" );
+            }
+            else {
+                if( logger.isDebugEnabled() ) { logger.debug( "Unsupported MAIL FROM parameter: {}", parameter ); }
+                write( MESSAGE_PARAMETER_INVALID );
+                return false;
+            }
+        }
+        message.setEightBitMime( eightBitMime );
+        return true;
+    }
+
     /**
      * Handle the "RCPT TO:" command, which defines one of the recieving addresses.
      */
@@ -351,70 +419,126 @@ public class SMTPProcessor implements ConnectionProcessor {
     }
 
     /**
-     * Accepts the data being written to the socket.
+     * Accepts the data command.  The following lines are message data until
+     * the terminating ".".  They are written to the spool file as they
+     * arrive, so only one line of the message is held in memory.
      */
     private void handleData() {
 
         // Get the current maxSize setting and convert to bytes.
-        long maxSize = configurationManager.getMaximumMessageSize() * 1024 * 1024;
+        maxSize = getMaximumSize();
 
-        write( MESSAGE_SEND_DATA );
+        try {
+            message.startData();
+            //Add a datestamp to the message to track when the message arrived.
+            message.writeDataLine( "X-RecievedDate: ".concat(new Date().toString()) );
+            //Add a line to the message to track that the message when through this server.
+            message.writeDataLine( String.format("Received: SMTP Server %s from client: %s", configurationManager.getLocalDomains()[0], clientIp ) );
+        }
+        catch( IOException ioe ) {
+            logger.error( "Error saving message: {}", ioe.getMessage() );
+            message.discardData();
+            write( MESSAGE_SAVE_MESSAGE_ERROR );
+            closed = true;
+            return;
+        }
 
-        //Add a datestamp to the message to track when the message arrived.
-        message.addDataLine( "X-RecievedDate: ".concat(new Date().toString()) );
-        //Add a line to the message to track that the message when through this server.
-        message.addDataLine( String.format("Received: SMTP Server %s from client: %s", configurationManager.getLocalDomains()[0], clientIp ) );
+        write( MESSAGE_SEND_DATA );
 
-        try {
-            String inputString = in.readLine();
+        receivingData = true;
+        dataRejection = null;
+    }
 
-            while( !inputString.equals( "." ) ) {
-                if( logger.isDebugEnabled() ) { logger.debug( "Read Data: {}", inputString ); }
-                message.addDataLine( inputString );
-                inputString = in.readLine();
+    /**
+     * Accepts a single line of message data.
+     */
+    private void handleDataLine( LineFramer inputLine ) {
 
-                // Check message size
-                if( message.getSize() > maxSize )
-                {
-                    logger.warn( "Message Rejected.  Message larger than max allowed size ({} MB)", configurationManager.getMaximumMessageSize());
-                    write( MESSAGE_MESSAGE_TOO_LARGE );
-                    throw new RuntimeException( "Aborting Connection.  Message size too large." );
-                }
-            }
+        if( inputLine.length() == 1 && inputLine.byteAt( 0 ) == '.' ) {
             logger.debug( "Data Input Complete." );
+            receivingData = false;
+            if( dataRejection != null ) {
+                write( dataRejection );
+            }
+            else {
+                saveMessage();
+            }
+            // Reset for another message
+            message = new SMTPMessage();
+            lastCommand = RSET;
+            return;
+        }
+
+        //Keep reading to the end of the data, but do not store a message
+        //that will be rejected.
+        if( dataRejection != null ) {
+            return;
+        }
+        if( inputLine.isTooLong() ) {
+            logger.info( "Message Rejected.  A line exceeded the maximum length of {} bytes.", LineFramer.TEXT_LINE_LIMIT );
+            rejectData( MESSAGE_LINE_TOO_LONG );
+            return;
+        }
+
+        //The line is stored as received.  The period the client added to
+        //lines starting with a period is removed (RFC 5321 4.5.2).
+        int start = inputLine.length() > 0 && inputLine.byteAt( 0 ) == '.' ? 1 : 0;
+        if( logger.isDebugEnabled() ) { logger.debug( "Read Data: {}", inputLine.toString( start, StandardCharsets.ISO_8859_1 ) ); }
+        try {
+            message.writeDataLine( inputLine.getBytes(), start, inputLine.length() - start );
         }
         catch( IOException ioe ) {
-            logger.error( "An error occured while retrieving the message data.", ioe );
-            throw new RuntimeException();
+            logger.error( "Error saving message: {}", ioe.getMessage() );
+            rejectData( MESSAGE_SAVE_MESSAGE_ERROR );
+            return;
         }
 
-        //Write the message to disk.
+        // Check message size
+        if( message.getSize() > maxSize )
+        {
+            logger.warn( "Message Rejected.  Message larger than max allowed size ({} MB)", configurationManager.getMaximumMessageSize());
+            message.discardData();
+            write( MESSAGE_MESSAGE_TOO_LARGE );
+            // Aborting Connection.  Message size too large.
+            receivingData = false;
+            closed = true;
+        }
+    }
+
+    /**
+     * Discards the data received so far.  The rest of the data is read and
+     * ignored, and the response is sent at the end of the data.
+     */
+    private void rejectData( byte[] response ) {
+        message.discardData();
+        dataRejection = response;
+    }
+
+    /**
+     * Writes the message to disk.
+     */
+    private void saveMessage() {
 
         try {
             message.save();
+            DeliveryQueue.getDeliveryQueue().schedule( message );
             write( MESSAGE_OK );
         }
         catch ( Exception se ) {
+            logger.error( "Error saving message: {}", se.getMessage() );
             write( MESSAGE_SAVE_MESSAGE_ERROR );
-            throw new RuntimeException( se.getMessage() );
+            closed = true;
+            return;
         }
 
         if( logger.isInfoEnabled() ) logger.info( "Message {} accepted for delivery.", message.getMessageLocation().getName());
     }
 
     /**
-     * Reads a line from the input stream and returns it.
+     * Returns the smtp.messagesize setting in bytes.
      */
-    private String read() {
-        try {
-            String inputLine = in.readLine().trim();
-            if( logger.isDebugEnabled() ) { logger.debug( "Read Input: {}", inputLine ); }
-            return inputLine;
-        }
-        catch( IOException ioe ) {
-            logger.error( "Error reading from socket.", ioe );
-            throw new RuntimeException();
-        }
+    private static long getMaximumSize() {
+        return configurationManager.getMaximumMessageSize() * 1024L * 1024L;
     }
 
     /**
@@ -422,8 +546,15 @@ public class SMTPProcessor implements ConnectionProcessor {
      */
     private void write( String message ) {
         if( logger.isDebugEnabled() ) { logger.debug( "Writing: {}", message ); }
-        out.print( message.concat("\r\n"));
-        out.flush();
+        out.write( message );
+    }
+
+    /**
+     * Writes the specified precomputed response to the client.
+     */
+    private void write( byte[] response ) {
+        if( logger.isDebugEnabled() ) { logger.debug( "Writing: {}", new String( response, 0, response.length - 2, StandardCharsets.US_ASCII ) ); }
+        out.write( response );
     }
 
     /**
@@ -433,24 +564,16 @@ public class SMTPProcessor implements ConnectionProcessor {
      * <p>
      * This method converts the returned command to uppercase to allow
      * for easier comparison.
-     * <p>
-     * Additinally, this method checks to verify that the quit command
-     * was not issued.  If it was, a SystemException is thrown to terminate
-     * the connection.
      */
     private String parseCommand( String inputString ) {
 
         int index = inputString.indexOf( " " );
 
         if( index == -1 ) {
-            String command = inputString.toUpperCase();
-            checkQuit( command );
-            return command;
+            return inputString.toUpperCase();
         }
         else {
-            String command = inputString.substring( 0, index ).toUpperCase();
-            checkQuit( command );
-            return command;
+            return inputString.substring( 0, index ).toUpperCase();
         }
     }
 
@@ -496,20 +619,27 @@ public class SMTPProcessor implements ConnectionProcessor {
 
     //Message Constants
     //General Message
-    private static final String WELCOME_MESSAGE = "220 Welcome to SMTP Server.";
-    private static final String MESSAGE_DISCONNECT = "221 SMTP server signing off.";
-    private static final String MESSAGE_OK = "250 OK";
-    private static final String MESSAGE_COMMAND_ORDER_INVALID = "503 Command not allowed here.";
-    private static final String MESSAGE_USER_NOT_LOCAL = "550 User does not exist.";
-    private static final String MESSAGE_USER_INVALID = "451 Address is invalid.";
-    private static final String MESSAGE_SEND_DATA = "354 Start mail input; end with <CRLF>.<CRLF>";
-    private static final String MESSAGE_SAVE_MESSAGE_ERROR = "500 Error handling message.";
+    private static final byte[] WELCOME_MESSAGE = ResponseWriter.encode( "220 Welcome to SMTP Server." );
+    private static final byte[] MESSAGE_DISCONNECT = ResponseWriter.encode( "221 SMTP server signing off." );
+    /** Sent by the ServiceListener when no worker is available for a new connection. */
+    public static final String MESSAGE_SERVICE_BUSY = "421 Service not available, too many connections.";
+    private static final byte[] MESSAGE_OK = ResponseWriter.encode( "250 OK" );
+    private static final byte[] MESSAGE_COMMAND_ORDER_INVALID = ResponseWriter.encode( "503 Command not allowed here." );
+    private static final byte[] MESSAGE_USER_NOT_LOCAL = ResponseWriter.encode( "550 User does not exist." );
+    private static final byte[] MESSAGE_USER_INVALID = ResponseWriter.encode( "451 Address is invalid." );
+    private static final byte[] MESSAGE_SEND_DATA = ResponseWriter.encode( "354 Start mail input; end with <CRLF>.<CRLF>" );
+    private static final byte[] MESSAGE_SAVE_MESSAGE_ERROR = ResponseWriter.encode( "500 Error handling message." );
     private static final String MESSAGE_INVALID_COMMAND = "500 Command Unrecognized: ";
-    private static final String MESSAGE_MESSAGE_TOO_LARGE = "552 Message size exceeds fixed maximum message size.";
+    private static final byte[] MESSAGE_MESSAGE_TOO_LARGE = ResponseWriter.encode( "552 Message size exceeds fixed maximum message size." );
+    private static final byte[] MESSAGE_LINE_TOO_LONG = ResponseWriter.encode( "500 Line too long." );
+    private static final byte[] MESSAGE_PARAMETER_SYNTAX = ResponseWriter.encode( "501 Syntax error in parameters or arguments." );
+    private static final byte[] MESSAGE_PARAMETER_INVALID = ResponseWriter.encode( "555 MAIL FROM parameters not recognized or not implemented." );
+    private static final byte[] MESSAGE_EHLO_PIPELINING = ResponseWriter.encode( "250-PIPELINING" );
+    private static final byte[] MESSAGE_EHLO_8BITMIME = ResponseWriter.encode( "250 8BITMIME" );
 
     //Commands
     private static final String COMMAND_HELO = "HELO";
-//    private static final String COMMAND_EHLO = "EHLO";
+    private static final String COMMAND_EHLO = "EHLO";
     private static final String COMMAND_RSET = "RSET";
     private static final String COMMAND_NOOP = "NOOP";
     private static final String COMMAND_QUIT = "QUIT";
@@ -37,7 +37,10 @@ package com.ericdaugherty.mail.server.services.smtp;
 //Java Imports
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //Log imports
 //Log4j2 imports
@@ -46,22 +49,71 @@ import org.apache.logging.log4j.LogManager;
 
 import org.apache.commons.codec.binary.Base64;
 
-//DNS imports
-import org.xbill.DNS.*;
-
 //Local Imports
 import com.ericdaugherty.mail.server.info.EmailAddress;
 import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.configuration.ConfigurationParameterContants;
 import com.ericdaugherty.mail.server.configuration.DefaultSmtpServer;
-import com.ericdaugherty.mail.server.errors.NotFoundException;
+import com.ericdaugherty.mail.server.services.general.DnsService;
+import com.ericdaugherty.mail.server.services.general.LineFramer;
 
 /**
  * This class handles sending messages to external SMTP servers for delivery.
+ * All the recipients of a message in one domain are sent in a single
+ * transaction, so the message data is only transferred once per domain.
+ * <p>
+ * The extensions a server lists in its reply to EHLO are kept with the
+ * connection.  If the server supports PIPELINING (RFC 2920), the MAIL FROM,
+ * RCPT TO and DATA commands of a transaction are sent together and their
+ * replies read afterwards, which saves a round trip per command.
+ * <p>
+ * The message data is sent as it was received.  The MAIL FROM command
+ * declares the size of the message if the server supports SIZE (RFC 1870),
+ * and BODY=8BITMIME if the server supports 8BITMIME (RFC 6152) and the
+ * client declared it or the data contains 8-bit bytes.  A server that does not support 8BITMIME
+ * is sent the data unchanged, as it always was, rather than refusing the
+ * message or converting it to 7-bit MIME.
+ * <p>
+ * The state of a connection is kept in a Session, which is used by one
+ * sendMessage() call at a time, so one instance can be used by all the
+ * delivery threads at the same time.
+ * <p>
+ * Connections are kept open after a transaction, so the next message to
+ * the same server does not have to connect, wait for the greeting and
+ * authenticate again.  A reused connection is reset with RSET before each
+ * transaction.  Connections are closed once they have been idle for
+ * smtpdelivery.connection.idle seconds or have carried
+ * smtpdelivery.connection.messages messages, and after any error.
+ * <p>
+ * New connections are opened to the servers of one MX priority at a time,
+ * or to all the default smtp servers, and to all their addresses.  An attempt is given
+ * smtpdelivery.connect.delay milliseconds before the next address is tried
+ * alongside it, so a server that does not answer only delays the delivery
+ * by that much instead of the connect timeout.  The first connection to
+ * receive a greeting is used and the other attempts are abandoned.
+ * <p>
+ * How the connections to each server went is kept in a ServerHealth
+ * shared by the deliveries.  Servers that failed recently are tried last,
+ * or skipped after repeated failures, and equally preferred MX hosts are
+ * tried fastest first.
+ * <p>
+ * Deliveries are spread over the default smtp servers by a ServerBalancer,
+ * as set by defaultsmtpservers.balance.
  *
  * @author Eric Daugherty
  */
 public class SMTPRemoteSender {
 
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The size of the buffer the commands and the data are written to. */
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+
+    /** The number of connect threads for each delivery thread. */
+    private static final int CONNECT_THREADS_PER_DELIVERY = 4;
+
     //***************************************************************
     // Variables
     //***************************************************************
@@ -72,15 +124,23 @@ public class SMTPRemoteSender {
     /** ConfigurationManager */
     private static final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
 
-    /** Writer to sent data to the client */
-    private PrintWriter out;
-    /** Reader to read data from the client */
-    private BufferedReader in;
+    /**
+     * The idle connections by server, with the most recently used
+     * connection first.
+     */
+    private final Map<String, Deque<Session>> idleSessions = new HashMap<>();
 
-    // Credentials for authentication with the default SMTP server
-    private String username = "";
-    private String password = "";
+    /** The outcome of recent connections to each server. */
+    private final ServerHealth serverHealth = new ServerHealth();
 
+    /** Chooses the default smtp server for each delivery. */
+    private final ServerBalancer serverBalancer = new ServerBalancer( serverHealth );
+
+    /**
+     * Runs the connection attempts, which end with the server's greeting.
+     * The threads are limited, and attempts beyond them wait their turn.
+     */
+    private final ExecutorService connectExecutor;
 
     //***************************************************************
     // Public Interface
@@ -90,7 +150,15 @@ public class SMTPRemoteSender {
     // Constructor(s)
 
     public SMTPRemoteSender() {
-
+        AtomicInteger threadNumber = new AtomicInteger();
+        int threads = Math.max( 1, configurationManager.getDeliveryThreadCount() ) * CONNECT_THREADS_PER_DELIVERY;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread( runnable, "SMTPConnect-" + threadNumber.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        executor.allowCoreThreadTimeOut( true );
+        connectExecutor = executor;
     }
 
     //***************************************************************
@@ -98,258 +166,770 @@ public class SMTPRemoteSender {
 
     /**
      * Handles delivery of messages to addresses not handled by this server.
-     * @param address
-     * @param message
-     * @throws com.ericdaugherty.mail.server.errors.NotFoundException
+     * The message is sent to all the addresses in one transaction, with a
+     * RCPT TO command for each address.  The data is only sent if the
+     * server accepts at least one of them.
+     *
+     * @param addresses the recipients, which must all be in the same domain.
+     * @param message the message to send.
+     * @return the reply code the server gave to the RCPT TO command of
+     * each address, or to the MAIL FROM command if it was rejected
+     * permanently.  The message was delivered to the addresses with a 2xx
+     * code.
+     * @throws RuntimeException thrown if the transaction failed, in which
+     * case the message was not delivered to any of the addresses.
      */
-    public void sendMessage( EmailAddress address, SMTPMessage message ) throws NotFoundException, RuntimeException {
+    public String[] sendMessage( List<EmailAddress> addresses, SMTPMessage message ) throws RuntimeException {
 
-        //Open the connection to the server.
-        Socket socket = connect( address );
+        String domain = addresses.get( 0 ).getDomain();
 
-        // Set the timeout so reads do not hang forever.
-        try
-        {
-            socket.setSoTimeout( 60 * 1000 );
-        }
-        catch( SocketException e )
-        {
-            throw new RuntimeException("Unable to set the Socket SO Timeout: ".concat(e.getMessage()) );
-        }
+        //Open the connection to the server, or reuse an idle one.
+        Session session = connect( domain );
+        serverBalancer.connected( session.server );
 
+        boolean completed = false;
         try {
-            try {
-                //Get the input and output streams.
-                out = new PrintWriter( socket.getOutputStream(), true);
-                in = new BufferedReader( new InputStreamReader( socket.getInputStream() ));
-
-                //Perform initial commands
-                sendIntro( address, message );
-
-                //Send message data
-                sendData( message );
-
-                //Close the connection.
-                sendClose();
+            String[] replies;
+            if( session.extensions.contains( "PIPELINING" ) ) {
+                replies = sendPipelined( session, message, addresses );
             }
-            catch( IOException ioe ) {
-                throw new RuntimeException( "IOException occured while talking to remote domain: ".concat(address.getDomain()) );
+            else if( ( replies = sendMailFrom( session, message, addresses.size() ) ) == null ) {
+                replies = sendRecipients( session, addresses );
+
+                //Send message data, unless every recipient was rejected.
+                for( String reply : replies ) {
+                    if( reply.startsWith( "2" ) ) {
+                        sendData( session, message );
+                        break;
+                    }
+                }
             }
+            session.messages++;
+            completed = true;
+
+            return replies;
         }
         finally {
-            if( socket != null )  {
-                try {
-                    socket.close();
-                }
-                catch( IOException ioe ) {
-                    logger.error( "Error closing socket: ", ioe );
-                }
+            serverBalancer.released( session.server );
+            if( completed ) {
+                release( session );
+            }
+            else {
+                close( session );
             }
         }
     }
 
+    /**
+     * Closes the connections that have been idle for longer than
+     * smtpdelivery.connection.idle seconds.
+     */
+    public void closeIdleConnections() {
+        closeIdleConnections( System.currentTimeMillis() - configurationManager.getDeliveryConnectionIdleMilliseconds() );
+    }
+
+    /**
+     * Closes all the idle connections.
+     */
+    public void closeAllConnections() {
+        closeIdleConnections( Long.MAX_VALUE );
+    }
+
     //***************************************************************
     // Private Interface
     //***************************************************************
 
     /**
-     * Determines the MX entries for this domain and attempts to open
-     * a socket.  If no connections can be opened, a SystemException is thrown.
+     * Determines the servers for this domain and returns a connection to
+     * the first one that is available.  An idle connection to one of the
+     * servers is reused if it still responds.  Otherwise a new connection
+     * is opened to the most preferred servers that answer, and introduced.
+     * A server that fails the introduction, such as EHLO or AUTH, is
+     * recorded as failed and the next server is tried.  If no connections
+     * can be opened, a RuntimeException is thrown.
      */
-    private Socket connect( EmailAddress address ) {
+    private Session connect( String domain ) {
 
-        Socket socket = null;
+        List<DefaultSmtpServer[]> groups = getServers( domain );
 
-        String[] mxEntries = null;
+        //When the default smtp servers are balanced, only a connection to
+        //the chosen server is reused.
+        boolean balanced = configurationManager.isDefaultSmtpServerEnabled() &&
+                !ConfigurationParameterContants.BALANCE_ORDER.equals( configurationManager.getDefaultSmtpServerBalance() );
+        reuse:
+        for( DefaultSmtpServer[] group : groups ) {
+            for( DefaultSmtpServer server : group ) {
+                Session session;
+                while( ( session = takeIdle( getKey( server ) ) ) != null ) {
+                    if( reset( session ) ) {
+                        if( logger.isDebugEnabled() ) { logger.debug( "Reusing connection to SMTP Server: {} for domain: {}", server, domain ); }
+                        return session;
+                    }
+                }
+                if( balanced ) {
+                    break reuse;
+                }
+            }
+        }
 
-        String domain = address.getDomain();
+        for( DefaultSmtpServer[] group : groups ) {
+            List<DefaultSmtpServer> servers = new ArrayList<>( Arrays.asList( group ) );
+            Session session;
+            while( !servers.isEmpty() && ( session = open( servers.toArray( new DefaultSmtpServer[servers.size()] ) ) ) != null ) {
+                try {
+                    //Perform initial commands
+                    sendIntro( session );
+                    return session;
+                }
+                catch( RuntimeException exception ) {
+                    logger.info( "Introduction to SMTP Server: {} failed, trying the next server.  {}", session.server, exception.toString() );
+                    close( session );
+                    serverHealth.failed( session.server, System.currentTimeMillis() );
+                    String failed = session.server;
+                    servers.removeIf( server -> server.toString().equals( failed ) );
+                }
+            }
+        }
+        throw new RuntimeException( "Could not connect to any SMTP server for domain: ".concat(domain) );
+    }
+
+    /**
+     * Returns the servers to deliver the domain's mail to, in groups that
+     * are tried one after the other: the default smtp servers, in one group
+     * in the order of the ServerBalancer, if they are configured, otherwise
+     * the MX entries of the domain grouped by priority.
+     */
+    private List<DefaultSmtpServer[]> getServers( String domain ) {
+
+        List<DefaultSmtpServer[]> groups = new ArrayList<>();
 
         //Check to see if a default smtp server is configured before performing
         //the DNS lookup.
         if( configurationManager.isDefaultSmtpServerEnabled() )
         {
-            DefaultSmtpServer[] defaultMXEntries = configurationManager.getDefaultSmtpServers();
-            for (DefaultSmtpServer mxEntry : defaultMXEntries) {
-                try {
-                    socket = new Socket( mxEntry.getHost(), mxEntry.getPort() );
-                    username = mxEntry.getUsername();
-                    password = mxEntry.getPassword();
-                    return socket;
+            groups.add( serverBalancer.order( configurationManager.getDefaultSmtpServers() ) );
+            return groups;
+        }
+
+        // Lookup the MX Entries, which are grouped in order of priority.
+        List<String[]> mxGroups;
+        try
+        {
+            mxGroups = DnsService.getDnsService().getMXGroups( domain );
+        }
+        catch( IOException e )
+        {
+            throw new RuntimeException( "DNS Lookup for domain: " + domain + " failed: " + e.getMessage() );
+        }
+        if( mxGroups.isEmpty() )
+        {
+            logger.warn( "No mail servers found for domain: {}", domain );
+        }
+
+        for( String[] mxEntries : mxGroups ) {
+            DefaultSmtpServer[] servers = new DefaultSmtpServer[mxEntries.length];
+            for( int index = 0; index < mxEntries.length; index++ ) {
+
+                String mxEntry = mxEntries[index];
+                int port = 25;
+
+                // Extract the server and the port if the syntax server:port is used
+                int indexPort = mxEntry.indexOf(":");
+                if (indexPort >= 0) {
+                    try {
+                        port = Integer.parseInt(mxEntry.substring(indexPort+1));
+                    }
+                    catch( NumberFormatException e ) {
+                        logger.error("Invalid defaultsmtpserver port: {}", mxEntry.substring(indexPort+1), e);
+                    }
+                    if (indexPort==0) {
+                        mxEntry = "localhost";
+                    }
+                    else {
+                        mxEntry = mxEntry.substring(0, indexPort);
+                    }
                 }
-                catch( IOException e ) {
-                    logger.debug( "Connection to SMTP Server: {} failed with exception: {}", mxEntry, e ) ;
+
+                // Doing a general lookup, no DNS passwords.
+                servers[index] = new DefaultSmtpServer();
+                servers[index].setHost( mxEntry );
+                servers[index].setPort( port );
+            }
+            groups.add( servers );
+        }
+        return groups;
+    }
+
+    /**
+     * Opens a new connection to one of a group of equally preferred servers.
+     * Servers that are being skipped after repeated failures are left out,
+     * and servers that failed recently are tried after the others.  The
+     * outcome is recorded in the ServerHealth.
+     *
+     * @return the connection, or null if none of the servers answered.
+     */
+    private Session open( DefaultSmtpServer[] group ) {
+
+        long now = System.currentTimeMillis();
+        List<DefaultSmtpServer> servers = new ArrayList<>();
+        for( DefaultSmtpServer server : group ) {
+            if( serverHealth.allow( server.toString(), now ) ) {
+                servers.add( server );
+            }
+            else if( logger.isDebugEnabled() ) {
+                logger.debug( "Skipping SMTP Server: {} after {} failed connections.", server, serverHealth.getFailures( server.toString() ) );
+            }
+        }
+
+        //The sort is stable, so the default smtp servers keep their order
+        //unless they have failed.
+        Comparator<DefaultSmtpServer> order = Comparator.comparingInt( server -> serverHealth.getFailures( server.toString() ) );
+        if( !configurationManager.isDefaultSmtpServerEnabled() ) {
+            order = order.thenComparingLong( server -> serverHealth.getLatency( server.toString() ) );
+        }
+        servers.sort( order );
+
+        List<Attempt> attempts = getAttempts( servers.toArray( new DefaultSmtpServer[servers.size()] ) );
+        Attempt connected = race( attempts );
+
+        now = System.currentTimeMillis();
+        for( DefaultSmtpServer server : servers ) {
+            if( connected != null && connected.server == server ) {
+                serverHealth.succeeded( server.toString(), connected.latency );
+                continue;
+            }
+            //A server failed if the attempts that were started all ended
+            //without a greeting, or it has no addresses.  Addresses that
+            //were not tried because another server answered first do not
+            //count.
+            int addresses = 0;
+            int started = 0;
+            int failed = 0;
+            for( Attempt attempt : attempts ) {
+                if( attempt.server == server ) {
+                    addresses++;
+                    started += attempt.started ? 1 : 0;
+                    failed += attempt.started && attempt.finished ? 1 : 0;
                 }
             }
+            if( addresses == 0 || ( started > 0 && failed == started ) ) {
+                serverHealth.failed( server.toString(), now );
+            }
+            else {
+                serverHealth.abandoned( server.toString() );
+            }
         }
-        else {
-            try
-            {
-                // Lookup the MX Entries
+        return connected == null ? null : connected.session;
+    }
 
-                // Doing a general lookup, clear DNS passwords.
-                username = null;
-                password = null;
+    /**
+     * Looks up the addresses of a group of servers and returns a connection
+     * attempt for each, in the order they should be started.  The servers
+     * take turns, so the second address of a server is only tried after
+     * the first address of every server in the group.  The addresses of a
+     * server alternate between IPv4 and IPv6.
+     */
+    private List<Attempt> getAttempts( DefaultSmtpServer[] group ) {
+
+        //The MX hosts are looked up at the same time, default smtp servers
+        //are resolved by the system, which also knows the hosts file.
+        boolean system = configurationManager.isDefaultSmtpServerEnabled();
+        List<CompletableFuture<InetAddress[]>> lookups = new ArrayList<>();
+        for( DefaultSmtpServer server : group ) {
+            lookups.add( system ? null : DnsService.getDnsService().getAddressesAsync( server.getHost() ) );
+        }
 
-                Record [] records = new Lookup(domain, Type.MX).run();
-                if( records == null )
-                {
-                    records = new Record[0];
-                    logger.warn( "DNS Lookup for domain: {} failed.", domain);
+        List<List<InetAddress>> addresses = new ArrayList<>();
+        for( int index = 0; index < group.length; index++ ) {
+            InetAddress[] found;
+            try {
+                found = system ? InetAddress.getAllByName( group[index].getHost() ) : lookups.get( index ).join();
+            }
+            catch( IOException | CompletionException exception ) {
+                logger.debug( "Address lookup of SMTP Server: {} failed with exception: {}", group[index], exception );
+                found = new InetAddress[0];
+            }
+            addresses.add( interleave( found ) );
+        }
+
+        List<Attempt> attempts = new ArrayList<>();
+        for( int round = 0; attempts.size() < count( addresses ); round++ ) {
+            for( int index = 0; index < group.length; index++ ) {
+                if( round < addresses.get( index ).size() ) {
+                    attempts.add( new Attempt( group[index], addresses.get( index ).get( round ) ) );
                 }
+            }
+        }
+        return attempts;
+    }
+
+    /**
+     * Orders addresses so IPv4 and IPv6 addresses alternate, starting with
+     * the family of the first address.
+     */
+    private static List<InetAddress> interleave( InetAddress[] addresses ) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for( InetAddress address : addresses ) {
+            ( first.isEmpty() || first.get( 0 ).getClass() == address.getClass() ? first : second ).add( address );
+        }
+        List<InetAddress> ordered = new ArrayList<>();
+        for( int index = 0; index < Math.max( first.size(), second.size() ); index++ ) {
+            if( index < first.size() ) {
+                ordered.add( first.get( index ) );
+            }
+            if( index < second.size() ) {
+                ordered.add( second.get( index ) );
+            }
+        }
+        return ordered;
+    }
+
+    private static int count( List<List<InetAddress>> addresses ) {
+        int count = 0;
+        for( List<InetAddress> list : addresses ) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    /**
+     * Starts the connection attempts one after the other, each
+     * smtpdelivery.connect.delay milliseconds after the previous one or as
+     * soon as the previous one fails, and returns the first connection
+     * that receives a greeting.  The other attempts are abandoned.
+     *
+     * @return the attempt that connected, or null if every attempt failed.
+     */
+    private Attempt race( List<Attempt> attempts ) {
 
-                // Convert the MX Entries to strings and sort them in order
-                // of priority.
-                mxEntries = new String[records.length];
-                short priority = 0;
-                short nextPriority = Short.MAX_VALUE;
-                int mxIndex = 0;
-                while( mxIndex < mxEntries.length )
-                {
-                    for (Record record : records) {
-                        MXRecord mx = (MXRecord) record;
-                        if( mx.getPriority() == priority )
-                        {
-                            mxEntries[mxIndex++] = mx.getTarget().toString();
-                            if(mxIndex >= mxEntries.length) break;
-                        }
-                        else if( mx.getPriority() < nextPriority && mx.getPriority() > priority )
-                        {
-                            nextPriority = (short) mx.getPriority();
-                        }
+        BlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+        long delay = configurationManager.getDeliveryConnectDelayMilliseconds();
+        int started = 0;
+        int running = 0;
+        Attempt connected = null;
+        try {
+            while( connected == null && ( started < attempts.size() || running > 0 ) ) {
+                if( started < attempts.size() ) {
+                    Attempt attempt = attempts.get( started++ );
+                    attempt.started = true;
+                    connectExecutor.execute( () -> {
+                        connect( attempt );
+                        finished.add( attempt );
+                    } );
+                    running++;
+                }
+                Attempt attempt = started < attempts.size() ? finished.poll( delay, TimeUnit.MILLISECONDS ) : finished.take();
+                if( attempt != null ) {
+                    running--;
+                    attempt.finished = true;
+                    if( attempt.greeted ) {
+                        connected = attempt;
                     }
-                    priority = nextPriority;
-                    nextPriority = Short.MAX_VALUE;
                 }
             }
-            catch( TextParseException e )
-            {
-                throw new RuntimeException( "TextParseException while looking up domian MX Entry: ".concat(e.getMessage()));
+        }
+        catch( InterruptedException interruptedException ) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            for( int index = 0; index < started; index++ ) {
+                Attempt attempt = attempts.get( index );
+                if( attempt != connected ) {
+                    attempt.abandoned = true;
+                    close( attempt.session );
+                }
             }
+        }
 
+        if( connected != null && logger.isDebugEnabled() ) {
+            logger.debug( "Connected to SMTP Server: {} at {} in {} ms", connected.server, connected.address.getHostAddress(), connected.latency );
         }
+        return connected;
+    }
 
-        for( int index = 0; index < mxEntries.length; index++ ) {
+    /**
+     * Connects to the address of an attempt and reads the greeting.  Runs on
+     * a connect thread.
+     */
+    private void connect( Attempt attempt ) {
 
-            String mxEntry = mxEntries[index];
-            int port = 25;
+        Session session = attempt.session;
+        long start = System.currentTimeMillis();
+        try {
+            session.socket.connect( new InetSocketAddress( attempt.address, attempt.server.getPort() ),
+                    configurationManager.getDeliveryConnectTimeoutMilliseconds() );
 
-            // Extract the server and the port if the syntax server:port is used
-            int indexPort = mxEntry.indexOf(":");
-            if (indexPort >= 0) {
-                try {
-                    port = Integer.parseInt(mxEntry.substring(indexPort+1));
-                }
-                catch( NumberFormatException e ) {
-                    logger.error("Invalid defaultsmtpserver port: {}", mxEntry.substring(indexPort+1), e);
+            // Set the timeout so reads do not hang forever.
+            session.socket.setSoTimeout( 60 * 1000 );
+
+            //Get the input and output streams.
+            session.out = new BufferedOutputStream( session.socket.getOutputStream(), OUTPUT_BUFFER_SIZE );
+            session.in = session.socket.getInputStream();
+
+            //Check to make sure remote server introduced itself with appropriate message.
+            String lastCode = null;
+            if( !(lastCode = read( session )).startsWith( "220" ) ) {
+                throw new RuntimeException("Error talking to remote Server, code=".concat(lastCode));
+            }
+            attempt.latency = System.currentTimeMillis() - start;
+            attempt.greeted = true;
+        }
+        catch( IOException | RuntimeException exception ) {
+            if( !attempt.abandoned ) {
+                logger.debug( "Connection to SMTP Server: {} at {} failed with exception: {}", attempt.server, attempt.address.getHostAddress(), exception );
+            }
+            close( session );
+        }
+    }
+
+    /**
+     * Identifies the connections that can be reused for a server.
+     */
+    private static String getKey( DefaultSmtpServer server ) {
+        return server.getUsername() == null ? server.toString() : server.toString() + "/" + server.getUsername();
+    }
+
+    /**
+     * Removes the most recently used idle connection to a server from the
+     * pool.  Connections that have been idle too long are closed.
+     *
+     * @return the connection, or null if there is none.
+     */
+    private Session takeIdle( String key ) {
+        long idleBefore = System.currentTimeMillis() - configurationManager.getDeliveryConnectionIdleMilliseconds();
+        while( true ) {
+            Session session;
+            synchronized( idleSessions ) {
+                Deque<Session> sessions = idleSessions.get( key );
+                session = sessions == null ? null : sessions.pollFirst();
+                if( sessions != null && sessions.isEmpty() ) {
+                    idleSessions.remove( key );
                 }
-                if (indexPort==0) {
-                    mxEntry = "localhost";
-                    mxEntries[index] = mxEntry + mxEntries[index];
+            }
+            if( session == null || session.idleSince >= idleBefore ) {
+                return session;
+            }
+            sendClose( session );
+        }
+    }
+
+    /**
+     * Returns a connection to the pool after a transaction, or closes it if
+     * it has carried the maximum number of messages or connections are not
+     * kept.
+     */
+    private void release( Session session ) {
+        if( configurationManager.getDeliveryConnectionIdleMilliseconds() <= 0 ||
+                session.messages >= configurationManager.getDeliveryConnectionMessages() ) {
+            sendClose( session );
+            return;
+        }
+        session.idleSince = System.currentTimeMillis();
+        synchronized( idleSessions ) {
+            idleSessions.computeIfAbsent( session.key, key -> new ArrayDeque<>() ).addFirst( session );
+        }
+    }
+
+    /**
+     * Closes the idle connections that were returned to the pool before the
+     * specified time.
+     */
+    private void closeIdleConnections( long idleBefore ) {
+        List<Session> expired = new ArrayList<>();
+        synchronized( idleSessions ) {
+            for( Iterator<Deque<Session>> iterator = idleSessions.values().iterator(); iterator.hasNext(); ) {
+                Deque<Session> sessions = iterator.next();
+                //The least recently used connections are at the end.
+                while( !sessions.isEmpty() && sessions.peekLast().idleSince < idleBefore ) {
+                    expired.add( sessions.pollLast() );
                 }
-                else {
-                    mxEntry = mxEntry.substring(0, indexPort);
+                if( sessions.isEmpty() ) {
+                    iterator.remove();
                 }
             }
+        }
+        for( Session session : expired ) {
+            sendClose( session );
+        }
+    }
 
-            try {
-                socket = new Socket( mxEntry, port );
-                return socket;
-            }
-            catch( IOException e ) {
-                logger.debug( "Connection to SMTP Server: {} failed with exception: {}", mxEntries[index], e) ;
+    /**
+     * Resets an idle connection for a new transaction.  The connection is
+     * closed if the server does not accept the RSET.
+     *
+     * @return true if the connection can be used.
+     */
+    private boolean reset( Session session ) {
+        try {
+            write( session, "RSET" );
+            if( read( session ).startsWith( "250" ) ) {
+                return true;
             }
         }
-        throw new RuntimeException( "Could not connect to any SMTP server for domain: ".concat(domain) );
+        catch( RuntimeException exception ) {
+            if( logger.isDebugEnabled() ) { logger.debug( "Idle connection {} could not be reset: {}", session.key, exception.toString() ); }
+        }
+        close( session );
+        return false;
+    }
+
+    /**
+     * Closes the socket of a connection.
+     */
+    private void close( Session session ) {
+        try {
+            session.socket.close();
+        }
+        catch( IOException ioe ) {
+            logger.error( "Error closing socket: ", ioe );
+        }
     }
 
     /**
-     * This method sends all the commands neccessary to prepare the remote server
-     * to recieve the data command.
+     * This method sends all the commands neccessary to introduce this server to
+     * the remote server on a new connection, after its greeting.
      */
-    private void sendIntro( EmailAddress address, SMTPMessage message ) {
+    private void sendIntro( Session session ) {
 
-        //Check to make sure remote server introduced itself with appropriate message.
         String lastCode = null;
-        if( !(lastCode = read()).startsWith( "220" ) ) {
-            throw new RuntimeException("Error talking to remote Server, code=".concat(lastCode));
-        }
 
         // First try ehlo
-        write( "EHLO " + configurationManager.getLocalDomains()[0] );
-        if( !(lastCode = read()).startsWith( "250" ) ) {
+        write( session, "EHLO " + configurationManager.getLocalDomains()[0] );
+        List<String> ehloLines = new ArrayList<>();
+        if( !(lastCode = read( session, ehloLines )).startsWith( "250" ) ) {
             //Send HELO command to remote server.
-            write( "HELO " + configurationManager.getLocalDomains()[0] );
-            if( !(lastCode = read()).startsWith( "250" ) ) {
+            write( session, "HELO " + configurationManager.getLocalDomains()[0] );
+            if( !(lastCode = read( session )).startsWith( "250" ) ) {
                 throw new RuntimeException( "Error talking to remote Server, code=".concat(lastCode) );
             }
+            return;
         }
-        else if (username != null) {
-            // The EHLO was ok.
-            write( "AUTH LOGIN" );
-            if( !(lastCode = read()).startsWith( "334" ) ) {
+
+        // The EHLO was ok.  The first line greets, each further line names an
+        // extension and its parameters.
+        for( int index = 1; index < ehloLines.size(); index++ ) {
+            String[] words = ehloLines.get( index ).split( " " );
+            session.extensions.add( words[0].toUpperCase( Locale.ENGLISH ) );
+        }
+        if( logger.isDebugEnabled() ) { logger.debug( "SMTP Server: {} supports {}", session.server, session.extensions ); }
+
+        if (session.username != null) {
+            write( session, "AUTH LOGIN" );
+            if( !(lastCode = read( session )).startsWith( "334" ) ) {
                 throw new RuntimeException( "Error talking to remote Server, code=".concat(lastCode) );
             }
 
             // Write the username.
-            write( new String(Base64.encodeBase64(username.getBytes())) );
-            if( !(lastCode = read()).startsWith( "334" ) ) {
+            write( session, new String(Base64.encodeBase64(session.username.getBytes())) );
+            if( !(lastCode = read( session )).startsWith( "334" ) ) {
                 throw new RuntimeException( "Error talking to remote Server, code=".concat(lastCode) );
             }
 
             // Write the password.
-            write( new String(Base64.encodeBase64(password.getBytes())) );
-            if( !(lastCode = read()).startsWith( "235" ) ) {
+            write( session, new String(Base64.encodeBase64(session.password.getBytes())) );
+            if( !(lastCode = read( session )).startsWith( "235" ) ) {
                 throw new RuntimeException( "Error talking to remote Server, code=".concat(lastCode) );
             }
         }
 
+    }
+
+    /**
+     * Starts a transaction.
+     *
+     * @return null if the server accepted the sender, or the reply code
+     * for each recipient if it was rejected permanently, such as a message
+     * that exceeds the SIZE limit of the server.
+     */
+    private String[] sendMailFrom( Session session, SMTPMessage message, int recipients ) {
+
+        String lastCode;
+
         //Send MAIL FROM: command
-        write( "MAIL FROM:<" + message.getFromAddress().getAddress() + ">" );
-        if( !(lastCode = read()).startsWith( "250" ) ) {
+        write( session, getMailFrom( session, message ) );
+        if( (lastCode = read( session )).startsWith( "5" ) ) {
+            return rejectAll( lastCode, recipients );
+        }
+        if( !lastCode.startsWith( "250" ) ) {
             throw new RuntimeException( "Error talking to remote Server, code=".concat(lastCode) );
         }
+        return null;
+    }
+
+    /**
+     * Returns the MAIL FROM command, with the SIZE and BODY parameters the
+     * server supports.
+     */
+    private String getMailFrom( Session session, SMTPMessage message ) {
+
+        StringBuilder command = new StringBuilder( "MAIL FROM:<" ).append( message.getFromAddress().getAddress() ).append( '>' );
+        if( session.extensions.contains( "SIZE" ) ) {
+            command.append( " SIZE=" ).append( message.getSize() );
+        }
+        if( session.extensions.contains( "8BITMIME" ) && ( message.isEightBitMime() || isEightBit( message ) ) ) {
+            command.append( " BODY=8BITMIME" );
+        }
+        return command.toString();
+    }
+
+    /**
+     * Returns the same reply code for each recipient, after the server
+     * rejected the sender.
+     */
+    private static String[] rejectAll( String code, int recipients ) {
+        if( logger.isInfoEnabled() ) { logger.info( "Remote server rejected the sender with code {}", code ); }
+        String[] replies = new String[recipients];
+        Arrays.fill( replies, code );
+        return replies;
+    }
 
-        //Send RCTP TO: command
-        write( "RCPT TO:<" + address.getAddress() + ">" );
-        if( !(lastCode = read()).startsWith( "250" ) ) {
+    /**
+     * Returns true if the message data contains 8-bit bytes.
+     */
+    private static boolean isEightBit( SMTPMessage message ) {
+        try {
+            return message.isEightBit();
+        }
+        catch( IOException ioe ) {
+            logger.error( "Error reading message data.", ioe );
+            throw new RuntimeException( "Error reading message data: ".concat( ioe.getMessage() ) );
+        }
+    }
+
+    /**
+     * Sends a RCPT TO command for each address and returns the reply codes.
+     * A rejected recipient does not end the transaction.
+     */
+    private String[] sendRecipients( Session session, List<EmailAddress> addresses ) {
+
+        String[] replies = new String[addresses.size()];
+        for( int index = 0; index < replies.length; index++ ) {
+            //Send RCTP TO: command
+            write( session, "RCPT TO:<" + addresses.get( index ).getAddress() + ">" );
+            replies[index] = read( session );
+            if( !replies[index].startsWith( "25" ) && logger.isInfoEnabled() ) {
+                logger.info( "Remote server rejected recipient {} with code {}", addresses.get( index ), replies[index] );
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * Sends a transaction to a server that supports PIPELINING: the MAIL
+     * FROM, RCPT TO and DATA commands in one write, then their replies,
+     * then the message data if any recipient was accepted.
+     *
+     * @return the reply code to the RCPT TO command of each address, or to
+     * the MAIL FROM command if it was rejected permanently.  If no address
+     * has a 2xx code the message was not sent.
+     */
+    private String[] sendPipelined( Session session, SMTPMessage message, List<EmailAddress> addresses ) {
+
+        send( session, getMailFrom( session, message ) );
+        for( EmailAddress address : addresses ) {
+            send( session, "RCPT TO:<" + address.getAddress() + ">" );
+        }
+        write( session, "DATA" );
+
+        String lastCode = read( session );
+        String[] replies = new String[addresses.size()];
+        boolean accepted = false;
+        for( int index = 0; index < replies.length; index++ ) {
+            replies[index] = read( session );
+            if( !replies[index].startsWith( "25" ) && logger.isInfoEnabled() ) {
+                logger.info( "Remote server rejected recipient {} with code {}", addresses.get( index ), replies[index] );
+            }
+            accepted |= replies[index].startsWith( "2" );
+        }
+        String dataCode = read( session );
+
+        //The connection is closed after a failure, so the replies do not
+        //have to be in step.
+        if( !lastCode.startsWith( "250" ) && !lastCode.startsWith( "5" ) ) {
             throw new RuntimeException( "Error talking to remote Server, code=".concat(lastCode) );
         }
+        if( lastCode.startsWith( "5" ) ) {
+            //The recipients were refused because the sender was.
+            replies = rejectAll( lastCode, replies.length );
+            accepted = false;
+        }
+        if( !accepted ) {
+            //No recipient was accepted.  The server should have refused
+            //DATA, but the client can not assume it did (RFC 2920 3.1): if
+            //it answered 354, the command can not be withdrawn, and a lone
+            //period ends the transaction cleanly so the connection can be
+            //reused.  Nothing is delivered whatever the reply to the
+            //period, so it is ignored, and each recipient is bounced or
+            //deferred according to the reply to its RCPT TO command.
+            if( dataCode.startsWith( "354" ) ) {
+                write( session, "." );
+                read( session );
+            }
+            return replies;
+        }
+        if( !dataCode.startsWith( "354" ) ) {
+            throw new RuntimeException( "Error talking to remote Server, code=".concat(dataCode) );
+        }
+
+        sendContent( session, message );
+        return replies;
     }
 
     /**
      * This method sends the data command and all the message data to the
      * remote server.
      */
-    private void sendData( SMTPMessage message ) {
+    private void sendData( Session session, SMTPMessage message ) {
 
         //Send Data command
-        write( "DATA" );
-        if( !read().startsWith( "354" ) ) {
+        write( session, "DATA" );
+        if( !read( session ).startsWith( "354" ) ) {
             throw new RuntimeException( "Error talking to remote Server" );
         }
 
-        //Get the data to write.
-        List dataLines = message.getDataLines();
-        int numDataLines = dataLines.size();
+        sendContent( session, message );
+    }
 
-        //Write the data.
-        for( int index = 0; index < numDataLines; index++ ) {
-            write( (String) dataLines.get( index ) );
-        }
+    /**
+     * Sends the message data after the server accepted the DATA command,
+     * and the period that ends it.
+     */
+    private void sendContent( Session session, SMTPMessage message ) {
 
-        //Send the command end data transmission.
-        write( "." );
+        //Write the bytes of the spool file unchanged, adding a period to
+        //lines that start with one (RFC 5321 4.5.2) and the final period.
+        try( InputStream data = new WireFormatInputStream( message.openData() ) ) {
+            data.transferTo( session.out );
+            session.out.flush();
+        }
+        catch( IOException ioe ) {
+            logger.error( "Error sending message data.", ioe );
+            throw new RuntimeException( "Error sending message data: ".concat( String.valueOf( ioe.getMessage() ) ) );
+        }
 
-        if( !read().startsWith( "250" ) ) {
+        if( !read( session ).startsWith( "250" ) ) {
             throw new RuntimeException( "Error talking to remote Server" );
         }
     }
 
-    private void sendClose() {
+    /**
+     * Ends the session and closes the connection.  The connection is not
+     * used again, so a failed QUIT is ignored.
+     */
+    private void sendClose( Session session ) {
 
-        write( "QUIT" );
-        if( !read().startsWith( "221" ) ) {
-            throw new RuntimeException( "Error talking to remote Server" );
+        try {
+            write( session, "QUIT" );
+            if( !read( session ).startsWith( "221" ) && logger.isDebugEnabled() ) {
+                logger.debug( "Unexpected reply to QUIT from {}", session.key );
+            }
+        }
+        catch( RuntimeException exception ) {
+            if( logger.isDebugEnabled() ) { logger.debug( "Error closing connection to {}: {}", session.key, exception.toString() ); }
+        }
+        finally {
+            close( session );
         }
     }
 
@@ -361,21 +941,28 @@ public class SMTPRemoteSender {
      *
      * @return 3 digit response string.
      */
-    private String read() {
+    private String read( Session session ) {
+        return read( session, null );
+    }
+
+    /**
+     * Returns the response code generated by the server, and adds the text
+     * of each line of the response, after the code, to the list.
+     *
+     * @return 3 digit response string.
+     */
+    private String read( Session session, List<String> lines ) {
         try {
             String responseCode;
 
             //Read in the first line.  This is the only line
             //we really care about, since the response code
             //must be the same on all lines.
-            String inputText = in.readLine();
-            if( inputText == null )
+            String inputText = "";
+            LineFramer framer = session.framer;
+            if( framer.readLine( session.in ) )
             {
-                inputText = "";
-            }
-            else
-            {
-                inputText = inputText.trim();
+                inputText = framer.toString().trim();
             }
 
             if( logger.isDebugEnabled() ) { logger.debug( "Read Input: {}", inputText ); }
@@ -385,17 +972,30 @@ public class SMTPRemoteSender {
 
             //Strip of the response code.
             responseCode = inputText.substring( 0, 3 );
+            if( lines != null ) {
+                lines.add( inputText.length() > 4 ? inputText.substring( 4 ) : "" );
+            }
 
             //Handle Multi-Line Responses.
-            while( ( inputText.length() >= 4 ) && inputText.substring( 3, 4 ).equals( "-" ) ) {
-                inputText = in.readLine().trim();
-                if( logger.isDebugEnabled() ) { logger.debug( "Read Input: {}", inputText ); }
+            while( framer.length() >= 4 && framer.byteAt( 3 ) == '-' ) {
+                if( !framer.readLine( session.in ) ) {
+                    throw new RuntimeException( "Connection closed during a multi-line response. Aborting Send." );
+                }
+                if( logger.isDebugEnabled() ) { logger.debug( "Read Input: {}", framer.toString() ); }
+                if( lines != null ) {
+                    String text = framer.toString().trim();
+                    lines.add( text.length() > 4 ? text.substring( 4 ) : "" );
+                }
             }
 
             return responseCode;
         }
         catch( IOException ioe ) {
-            logger.error( "Error reading from socket.", ioe );
+            //A connection closed by this side, such as an abandoned
+            //connection attempt, is not an error.
+            if( !session.socket.isClosed() ) {
+                logger.error( "Error reading from socket.", ioe );
+            }
             throw new RuntimeException();
         }
     }
@@ -403,9 +1003,104 @@ public class SMTPRemoteSender {
     /**
      * Writes the specified output message to the client.
      */
-    private void write( String message ) {
-        out.print( message.concat("\r\n"));
-        out.flush();
+    private void write( Session session, String message ) {
+        send( session, message );
+        try {
+            session.out.flush();
+        }
+        catch( IOException ioe ) {
+            logWriteError( session, ioe );
+        }
+    }
+
+    /**
+     * Buffers a line for the client, which is sent with the next write()
+     * or when the buffer is full.
+     */
+    private void send( Session session, String message ) {
+        try {
+            session.out.write( message.concat( "\r\n" ).getBytes( StandardCharsets.UTF_8 ) );
+        }
+        catch( IOException ioe ) {
+            logWriteError( session, ioe );
+        }
+    }
+
+    /**
+     * Logs an error writing to the server, and ends the transaction.
+     */
+    private void logWriteError( Session session, IOException ioe ) {
+        //A connection closed by this side is not an error.
+        if( !session.socket.isClosed() ) {
+            logger.error( "Error writing to socket.", ioe );
+        }
+        throw new RuntimeException();
+    }
+
+    /**
+     * The state of one connection to a remote server.
+     */
+    private static class Session {
+
+        private final Socket socket;
+        /** The host:port of the server. */
+        private final String server;
+        /** The server the connection can be reused for. */
+        private final String key;
+        /** Stream to send commands and data to the server */
+        private OutputStream out;
+        /** Stream to read data from the server */
+        private InputStream in;
+        /** Frames the server replies, which are limited to 512 bytes per line */
+        private final LineFramer framer = new LineFramer( LineFramer.COMMAND_LINE_LIMIT );
+
+        // Credentials for authentication with the default SMTP server
+        private String username = "";
+        private String password = "";
+
+        /** The extensions the server listed in its reply to EHLO, in upper case. */
+        private final Set<String> extensions = new HashSet<>();
+
+        /** The number of messages sent over the connection. */
+        private int messages = 0;
+        /** When the connection was returned to the pool. */
+        private long idleSince;
+
+        Session( Socket socket, DefaultSmtpServer server ) {
+            this.socket = socket;
+            this.server = server.toString();
+            this.key = getKey( server );
+        }
+    }
+
+    /**
+     * An attempt to connect to one address of a server.
+     */
+    private static class Attempt {
+
+        private final DefaultSmtpServer server;
+        private final InetAddress address;
+        /** The connection, which is not connected until the attempt runs. */
+        private final Session session;
+
+        /** True once the server has sent its greeting. */
+        private boolean greeted = false;
+        /** The time (in milliseconds) the connection and the greeting took. */
+        private long latency;
+        /** True once the attempt has been started. */
+        private boolean started = false;
+        /** True once the attempt has ended and its outcome has been seen. */
+        private boolean finished = false;
+        /** True if another connection was used, or the attempt gave up. */
+        private volatile boolean abandoned = false;
+
+        Attempt( DefaultSmtpServer server, InetAddress address ) {
+            this.server = server;
+            this.address = address;
+            this.session = new Session( new Socket(), server );
+            session.username = server.getUsername();
+            session.password = server.getPassword();
+        }
     }
 
 }
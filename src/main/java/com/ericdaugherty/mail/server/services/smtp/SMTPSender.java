@@ -47,25 +47,25 @@ import com.ericdaugherty.mail.server.info.User;
 import com.ericdaugherty.mail.server.info.EmailAddress;
 import com.ericdaugherty.mail.server.errors.NotFoundException;
 import com.ericdaugherty.mail.server.services.general.DeliveryService;
+import com.ericdaugherty.mail.server.services.general.VirtualThreads;
 import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.LinkOption;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
-import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * This class (thread) is responsible for checking the disk for unsent message and
- * delivering them to the proper local address or remote smtp server.
+ * This class (thread) is responsible for taking unsent messages from the
+ * DeliveryQueue when they are due and delivering them to the proper local
+ * address or remote smtp server.
+ * <p>
+ * The messages are delivered by a number of worker threads
+ * (smtpdelivery.threads), which take messages from the queue independently,
+ * so a slow remote server only holds up the worker that is talking to it.
+ * The workers may be virtual threads (smtpdelivery.virtual).
  * <p>
  * There should be only one instance of this thread running in the system at
  * any one time.
@@ -82,59 +82,54 @@ public class SMTPSender implements Runnable {
     /** The ConfigurationManager */
     private static final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
 
-    private boolean running = true;
-    private static final Path SMTP_DIRECTORY = Paths.get(configurationManager.getMailDirectory(), "smtp" );
-    private static WatchService watcher;
-    private static WatchKey watchKey;
-//    private static final File SMTP_DIRECTORY = new File(Path.of(configurationManager.getMailDirectory(), "smtp" ).toString());
-    
+    private volatile boolean running = true;
+
+    /** Sends messages to remote servers.  Shared by all workers. */
+    private final SMTPRemoteSender remoteSender = new SMTPRemoteSender();
+
+
     //***************************************************************
     // Public Interface
     //***************************************************************
 
     /**
      * The entrypoint for this thread.  This method handles the lifecycle
-     * of this thread.
+     * of this thread.  It starts the delivery workers and waits for them
+     * to finish.
      */
     @Override
     public void run() {
-        try {
-            watcher = FileSystems.getDefault().newWatchService();
-            //  SMTP DIRECTORY change notification
-            SMTP_DIRECTORY.register(watcher, ENTRY_CREATE);
-        } catch (IOException ex) {
-            logger.error("FileSystems watcher: ",ex);
+        int threadCount = configurationManager.getDeliveryThreadCount();
+        ThreadFactory virtualThreadFactory = configurationManager.isDeliveryVirtualThreads()
+                ? VirtualThreads.newThreadFactory( "SMTPSender-" ) : null;
+
+        List<Thread> workers = new ArrayList<>();
+        for( int index = 0; index < threadCount; index++ ) {
+            Runnable worker = this::deliverQueuedMessages;
+            Thread thread = virtualThreadFactory != null ? virtualThreadFactory.newThread( worker )
+                    : new Thread( worker, "SMTPSender-" + ( index + 1 ) );
+            thread.start();
+            workers.add( thread );
         }
-        
-        while( running ) {
-            try {
-                try {
-                    watchKey = watcher.take();
-                } catch (InterruptedException ex) {
-                    return;
-                }
-                for (WatchEvent<?> event : watchKey.pollEvents()) {
-                    // get event type
-                    WatchEvent.Kind<?> kind = event.kind();
-
-                    // get file name
-                    @SuppressWarnings("unchecked")
-                    WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                    Path fileName = ev.context();
-                    if (kind == ENTRY_CREATE){
-                        String sendFileAbsolutePath = Paths.get(SMTP_DIRECTORY.toAbsolutePath().toString(), fileName.toString()).toString();
-                        logger.info("Delivery file: {}", sendFileAbsolutePath);
-                        deliver( SMTPMessage.load(sendFileAbsolutePath));
-                    }
+        if( logger.isInfoEnabled() ) logger.info( "Started {} delivery threads.", threadCount );
+
+        //Close the connections to remote servers that are no longer used
+        //while the workers deliver.
+        try {
+            while( running ) {
+                synchronized( this ) {
+                    wait( 1000 );
                 }
-                // IMPORTANT: The key must be reset after processed
-                logger.error( "The key must be reset after processed: {}", watchKey.reset());
+                remoteSender.closeIdleConnections();
             }
-            catch( Throwable throwable )
-            {
-                logger.error( "An error occured attempting to deliver an SMTP Message: ", throwable );
+            for( Thread worker : workers ) {
+                worker.join();
             }
         }
+        catch( InterruptedException ex ) {
+            //Shut down without waiting for the workers.
+        }
+        remoteSender.closeAllConnections();
         logger.warn( "SMTPSender shut down gracefully.");
     }
 
@@ -144,21 +139,65 @@ public class SMTPSender implements Runnable {
     public void shutdown() {
         logger.warn( "Attempting to shut down SMTPSender." );
         running = false;
+        synchronized( this ) {
+            notifyAll();
+        }
+        DeliveryQueue.getDeliveryQueue().shutdown();
     }
 
     //***************************************************************
     // Private Interface
     //***************************************************************
 
+    /**
+     * The loop of a delivery worker.  Messages are taken from the
+     * DeliveryQueue when they are due.
+     */
+    private void deliverQueuedMessages() {
+        DeliveryQueue queue = DeliveryQueue.getDeliveryQueue();
+
+        while( running ) {
+            SMTPMessage message;
+            try {
+                message = queue.take();
+            }
+            catch( InterruptedException ex ) {
+                break;
+            }
+            if( message == null ) {
+                break;
+            }
+            boolean completed = false;
+            try {
+                if( logger.isInfoEnabled() ) logger.info( "Delivering message {}", message.getMessageLocation().getName() );
+                deliver( message );
+                completed = true;
+            }
+            catch( Throwable throwable )
+            {
+                logger.error( "An error occured attempting to deliver an SMTP Message: ", throwable );
+            }
+            finally {
+                queue.release( message, completed );
+            }
+        }
+    }
+
     /**
      * This method takes a SMTPMessage and attempts to deliver it.  This
      * method assumes that all the addresses have been validated before,
      * and does not perform any delivery rules.
+     * <p>
+     * Local recipients are delivered first.  The remote recipients are
+     * grouped by domain, and sent to in one transaction per domain.  Each
+     * domain is only sent to if the DeliveryQueue has a connection to it
+     * available.  The recipients of the other domains are left for a later
+     * attempt, which does not count towards the delivery threshold.
      */
     private void deliver( SMTPMessage message ) {
-        List toAddresses = message.getToAddresses();
-        List failedAddress = new ArrayList();
-        EmailAddress address = null;
+        List<EmailAddress> toAddresses = message.getToAddresses();
+        List<Integer> failedIndexes = new ArrayList<>();
+        boolean deferred = false;
 
         // If the next scheduled delivery attempt is still in the future, skip.
         if( message.getScheduledDelivery().getTime() > System.currentTimeMillis() )
@@ -166,40 +205,47 @@ public class SMTPSender implements Runnable {
             if( logger.isDebugEnabled() ) logger.debug( "Skipping delivery of message " + message.getMessageLocation().getName() + " because the scheduled delivery time is still in the future: " + message.getScheduledDelivery() );
             return;
         }
-        
-        int countRecipient = toAddresses.size();
-        for( int index = 0; index < countRecipient; index++ ) {
-            try {
-                address = (EmailAddress) toAddresses.get( index );
-                if( logger.isDebugEnabled()) { logger.debug( "Attempting to deliver message from: " + message.getFromAddress().getAddress() + " to: " + address ); }
 
-                DeliveryService deliveryService = DeliveryService.getDeliveryService();
+        DeliveryService deliveryService = DeliveryService.getDeliveryService();
+        Map<String, List<Integer>> remoteRecipients = new LinkedHashMap<>();
 
-                try {
-                    if( deliveryService.isLocalAddress( address ) ) {
-                        deliverLocalMessage( address, message );
-                    }
-                    else {
-                        deliverRemoteMessage( address, message );
-                    }
-                }
-                catch (NotFoundException e) {
-                    logger.info( "Delivery attempted to unknown user: " + address.getAddress() );
-                    //The addressee does not exist.  Notify the sender of the error.
-                    bounceMessage( address, message );
+        int countRecipient = toAddresses.size();
+        for( int index = 0; index < countRecipient; index++ ) {
+            //Skip recipients an earlier attempt delivered to.
+            if( message.isDelivered( index ) ) {
+                continue;
+            }
+            EmailAddress address = toAddresses.get( index );
+            if( deliveryService.isLocalAddress( address ) ) {
+                if( !deliverLocalRecipient( message, index ) ) {
+                    failedIndexes.add( index );
                 }
+            }
+            else {
+                remoteRecipients.computeIfAbsent( address.getDomain(), domain -> new ArrayList<>() ).add( index );
+            }
+        }
 
-                if( logger.isInfoEnabled() ) { logger.info( "Delivery complete for message " + message.getMessageLocation().getName() + " to: " + address ); }
+        DeliveryQueue queue = DeliveryQueue.getDeliveryQueue();
+        for( Map.Entry<String, List<Integer>> domainRecipients : remoteRecipients.entrySet() ) {
+            String domain = domainRecipients.getKey();
+            if( !queue.acquireConnection( domain, message ) ) {
+                if( logger.isDebugEnabled() ) { logger.debug( "Delivery of message {} to {} deferred, the domain is busy or backing off.", message.getMessageLocation().getName(), domain ); }
+                deferred = true;
+                continue;
+            }
+            boolean failed = true;
+            try {
+                failed = !deliverRemoteMessage( message, domainRecipients.getValue(), failedIndexes );
             }
-            catch( Throwable throwable ) {
-                logger.error( "Delivery failed for message from: " + message.getFromAddress().getAddress() + " to: " + address + " - " + throwable, throwable );
-                failedAddress.add( toAddresses.get( index ) );
+            finally {
+                queue.releaseConnection( domain, failed );
             }
         }
+
         // Update the message with any changes.
-        if( !failedAddress.isEmpty()) {
+        if( !failedIndexes.isEmpty()) {
             
-            message.setToAddresses( failedAddress );
             int deliveryAttempts = message.getDeliveryAttempts();
             
             
@@ -230,34 +276,39 @@ public class SMTPSender implements Runnable {
                 Date schedTime = new Date(System.currentTimeMillis() + offset*60*1000);
                 message.setScheduledDelivery( schedTime );
 
-                try {
-                    message.save();
-                }
-                catch( Exception exception ) {
-                    logger.error( "Error updating spooled message for next delivery.  Message may be re-delivered.", exception );
-                }
+                saveDeliveryState( message );
             }
             // All delivery attempts failed, bounce message.
             else
             {
                 // Send a bounce message to all failed addresses.
-                for( int index = 0; index < failedAddress.size(); index++ ) {
+                for( Integer index : failedIndexes ) {
                     try {
-                        EmailAddress bounce_address = (EmailAddress)( failedAddress.get(index) );
+                        EmailAddress bounce_address = toAddresses.get(index);
                         bounceMessage(bounce_address, message);
+                        message.setDelivered( index );
                     }
                     catch(Exception e) {
                         logger.error( "Problem bouncing message. " + message.getMessageLocation().getName() );
                     }
                 }
 
-                // Remove the original message.
-                if( !message.getMessageLocation().delete() )
+                // Keep the message for the deferred recipients, otherwise
+                // remove the original message.
+                if( deferred ) {
+                    saveDeliveryState( message );
+                }
+                else if( !message.getMessageLocation().delete() )
                 {
                     logger.error( "Error removed SMTP message after bounce! This message may be re-bounced. " + message.getMessageLocation().getName() );
                 }
             }
         }
+        // Some domains were not available.  Remember the recipients that
+        // have been delivered to, the others are attempted again later.
+        else if( deferred ) {
+            saveDeliveryState( message );
+        }
         // If all addresses were successful, remove the message from the spool
         else {
             // Log an error if the delete fails.  This will cause the message to get
@@ -269,6 +320,50 @@ public class SMTPSender implements Runnable {
         }
     }
 
+    /**
+     * Delivers the message to one local recipient and marks the recipient
+     * as delivered.  Mail to unknown users is bounced.
+     *
+     * @return false if the delivery failed and should be retried.
+     */
+    private boolean deliverLocalRecipient( SMTPMessage message, int index ) {
+        EmailAddress address = message.getToAddresses().get( index );
+        try {
+            if( logger.isDebugEnabled()) { logger.debug( "Attempting to deliver message from: " + message.getFromAddress().getAddress() + " to: " + address ); }
+
+            try {
+                deliverLocalMessage( address, message );
+            }
+            catch (NotFoundException e) {
+                logger.info( "Delivery attempted to unknown user: " + address.getAddress() );
+                //The addressee does not exist.  Notify the sender of the error.
+                bounceMessage( address, message );
+            }
+            message.setDelivered( index );
+
+            if( logger.isInfoEnabled() ) { logger.info( "Delivery complete for message " + message.getMessageLocation().getName() + " to: " + address ); }
+            return true;
+        }
+        catch( Throwable throwable ) {
+            logger.error( "Delivery failed for message from: " + message.getFromAddress().getAddress() + " to: " + address + " - " + throwable, throwable );
+            return false;
+        }
+    }
+
+    /**
+     * Updates the spooled message for the next delivery attempt.
+     */
+    private void saveDeliveryState( SMTPMessage message ) {
+        try {
+            //Only the attempts, the schedule and the delivered
+            //recipients change.
+            message.saveDeliveryState();
+        }
+        catch( Exception exception ) {
+            logger.error( "Error updating spooled message for next delivery.  Message may be re-delivered.", exception );
+        }
+    }
+
     /**
      * This method takes a local SMTPMessage and attempts to deliver it.
      */
@@ -296,68 +391,80 @@ public class SMTPSender implements Runnable {
             }
         }
 
-        //The file to write to.
-        File messageFile = null;
-        //The output stream to write the message to.
-        BufferedWriter out = null;
-
+        //The message is passed to the store in wire format, so the POP3
+        //server can send it without processing it.  A failure is thrown to
+        //deliver(), which retries the delivery later.
+        InputStream in = new WireFormatInputStream( "X-DeliveredTo: " + address.getAddress(), message.openData() );
         try {
-
-            //Get the directory and create a new file.
-            messageFile = File.createTempFile("pop", ".jmsg", user.getUserDirectory() );
-
-            if( logger.isDebugEnabled() ) { logger.debug( "Delivering to: " + messageFile.getAbsolutePath() ); }
-
-            //Open the output stream.
-            out = new BufferedWriter( new FileWriter( messageFile ) );
-
-            //Get the data to write.
-            List dataLines = message.getDataLines();
-            int numDataLines = dataLines.size();
-
-            //Write the X-DeliveredTo: header
-            out.write( "X-DeliveredTo: " + address.getAddress() );
-            out.write( "\r\n" );
-
-            //Write the data.
-            for( int index = 0; index < numDataLines; index++ ) {
-                out.write( (String) dataLines.get( index ) );
-                out.write( "\r\n" );
-            }
-        }
-        catch( IOException ioe ) {
-            logger.error( "Error performing local delivery.", ioe );
-            if( messageFile != null ) {
-                //The message was not fully written, so delete it.
-                messageFile.delete();
-            }
+            configurationManager.getMailboxStore().append( user, in );
         }
         finally {
-            if( out != null ) {
-                try {
-                    //Make sure we close up the output stream.
-                    out.close();
-                }
-                catch( IOException ioe ) {
-                    logger.error( "Error closing output Stream.", ioe );
-                }
-            }
+            in.close();
         }
     }
 
     /**
      * Handles delivery of messages to addresses not handled by this server.
+     * The recipients of one domain are sent in a single transaction.
+     * Recipients the remote server accepts are marked as delivered, and
+     * recipients it rejects permanently (5xx) are bounced.  The others are
+     * added to failedIndexes, to be retried individually.
+     *
+     * @return false if the transaction failed, in which case all the
+     * recipients are added to failedIndexes.
      */
-    private void deliverRemoteMessage( EmailAddress address, SMTPMessage message ) throws NotFoundException {
+    private boolean deliverRemoteMessage( SMTPMessage message, List<Integer> indexes, List<Integer> failedIndexes ) {
 
-        if( logger.isDebugEnabled() ) { logger.debug( "Delivering Message to remote user: " + address ); }
+        List<EmailAddress> addresses = new ArrayList<>();
+        for( Integer index : indexes ) {
+            addresses.add( message.getToAddresses().get( index ) );
+        }
+        if( logger.isDebugEnabled() ) { logger.debug( "Delivering Message to remote users: " + addresses ); }
 
         //Delegate this request to the SMTPRemoteSender class.
-        new SMTPRemoteSender().sendMessage( address, message );
+        String[] replies;
+        try {
+            replies = remoteSender.sendMessage( addresses, message );
+        }
+        catch( Throwable throwable ) {
+            logger.error( "Delivery failed for message from: " + message.getFromAddress().getAddress() + " to: " + addresses + " - " + throwable, throwable );
+            failedIndexes.addAll( indexes );
+            return false;
+        }
+
+        for( int recipient = 0; recipient < replies.length; recipient++ ) {
+            int index = indexes.get( recipient );
+            EmailAddress address = addresses.get( recipient );
+            if( replies[recipient].startsWith( "2" ) ) {
+                message.setDelivered( index );
+                if( logger.isInfoEnabled() ) { logger.info( "Delivery complete for message " + message.getMessageLocation().getName() + " to: " + address ); }
+            }
+            else if( replies[recipient].startsWith( "5" ) ) {
+                //The remote server will never accept the address.
+                try {
+                    bounceMessage( address, message );
+                    message.setDelivered( index );
+                }
+                catch( RuntimeException exception ) {
+                    failedIndexes.add( index );
+                }
+            }
+            else {
+                failedIndexes.add( index );
+            }
+        }
+        return true;
     }
 
     private void bounceMessage( EmailAddress address, SMTPMessage message ) {
 
+        //A bounce that can not be delivered is not bounced again, which
+        //would loop between this server and MAILER_DAEMON.
+        if( message.getFromAddress().getUsername().equalsIgnoreCase( "MAILER_DAEMON" ) ) {
+            logger.warn( "Not bouncing message {} from MAILER_DAEMON to {}", message.getMessageLocation().getName(), address.getAddress() );
+            return;
+        }
+
         if( logger.isInfoEnabled() ) { logger.info( "Bouncing Messsage from " + message.getFromAddress().getAddress() + " to " + address.getAddress() ); }
 
         SMTPMessage bounceMessage = new SMTPMessage();
@@ -367,30 +474,33 @@ public class SMTPSender implements Runnable {
 
         bounceMessage.setFromAddress( fromAddress );
         bounceMessage.addToAddress( message.getFromAddress() );
-        bounceMessage.addDataLine( "From: Mail Delivery Subsystem <MAILER-DAEMON@" + configurationManager.getLocalDomains()[0] + ">" );
-        bounceMessage.addDataLine( "To: " + message.getFromAddress().getAddress() );
-        bounceMessage.addDataLine( "Subject: Message Delivery Error." );
-        bounceMessage.addDataLine( "Date: " + new Date().toString() ); //TODO: Improve date handling.
-        bounceMessage.addDataLine( "" );
-        bounceMessage.addDataLine( "Error delivering message to: " + address.getAddress() );
-        bounceMessage.addDataLine( "This message will not be delivered." );
-        bounceMessage.addDataLine( "" );
-        bounceMessage.addDataLine( "------------------" );
-
-        List dataLines = message.getDataLines();
-
-        int numLines = dataLines.size();
-
-        for( int index = 0; index <  numLines; index++ ) {
-            bounceMessage.addDataLine( (String) dataLines.get( index ) );
-        }
-        bounceMessage.addDataLine( "" );
 
-        //Save this message so it will be delivered.
+        //Write the bounce straight to the spool, as the original message
+        //may be large.
         try {
+            bounceMessage.startData();
+            bounceMessage.writeDataLine( "From: Mail Delivery Subsystem <MAILER-DAEMON@" + configurationManager.getLocalDomains()[0] + ">" );
+            bounceMessage.writeDataLine( "To: " + message.getFromAddress().getAddress() );
+            bounceMessage.writeDataLine( "Subject: Message Delivery Error." );
+            bounceMessage.writeDataLine( "Date: " + new Date().toString() ); //TODO: Improve date handling.
+            bounceMessage.writeDataLine( "" );
+            bounceMessage.writeDataLine( "Error delivering message to: " + address.getAddress() );
+            bounceMessage.writeDataLine( "This message will not be delivered." );
+            bounceMessage.writeDataLine( "" );
+            bounceMessage.writeDataLine( "------------------" );
+
+            //The original data is copied as is.
+            try( InputStream data = message.openData() ) {
+                bounceMessage.writeData( data );
+            }
+            bounceMessage.writeDataLine( "" );
+
+            //Save this message so it will be delivered.
             bounceMessage.save();
+            DeliveryQueue.getDeliveryQueue().schedule( bounceMessage );
         }
         catch (Exception e) {
+            bounceMessage.discardData();
             logger.error( "Error storing outgoing 'bounce' email message");
             throw new RuntimeException();
         }
@@ -0,0 +1,188 @@
+/******************************************************************************
+ * $Workfile: ServerBalancer.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+//Local imports
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+import com.ericdaugherty.mail.server.configuration.ConfigurationParameterContants;
+import com.ericdaugherty.mail.server.configuration.DefaultSmtpServer;
+
+/**
+ * Spreads deliveries over the default smtp servers according to
+ * defaultsmtpservers.balance.  Each delivery asks for the order to try the
+ * servers in, and the first one is the server the delivery is meant for.
+ * The others remain as backups in case it does not answer.
+ * <p>
+ * The number of deliveries under way to each server (host:port) is
+ * counted across all the delivery threads, for the "leastinflight" and
+ * "latency" balances.  The latency is the average time to connect and
+ * receive the greeting kept by the ServerHealth.
+ *
+ * @author Eric Daugherty
+ */
+class ServerBalancer {
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** The ConfigurationManager */
+    private static final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+
+    private final ServerHealth serverHealth;
+
+    /** The number of deliveries under way by host:port. */
+    private final Map<String, Integer> inFlight = new HashMap<>();
+
+    /** The current weights of the smooth weighted round robin by host:port. */
+    private final Map<String, Integer> currentWeights = new HashMap<>();
+
+    /** Counts the deliveries, for taking turns. */
+    private int turn = 0;
+
+    //***************************************************************
+    // Constructor(s)
+    //***************************************************************
+
+    ServerBalancer( ServerHealth serverHealth ) {
+        this.serverHealth = serverHealth;
+    }
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    /**
+     * Returns the servers in the order a delivery should try them.
+     *
+     * @param servers the default smtp servers, in configured order.
+     * @return a new array with the preferred server first.
+     */
+    synchronized DefaultSmtpServer[] order( DefaultSmtpServer[] servers ) {
+
+        String balance = configurationManager.getDefaultSmtpServerBalance();
+        if( servers.length < 2 || ConfigurationParameterContants.BALANCE_ORDER.equals( balance ) ) {
+            return servers.clone();
+        }
+
+        int first;
+        if( ConfigurationParameterContants.BALANCE_WEIGHTED.equals( balance ) ) {
+            first = nextWeighted( servers );
+        }
+        else {
+            first = Math.floorMod( turn++, servers.length );
+        }
+
+        //Start with the chosen server and keep the configured order after it.
+        DefaultSmtpServer[] ordered = new DefaultSmtpServer[servers.length];
+        for( int index = 0; index < servers.length; index++ ) {
+            ordered[index] = servers[( first + index ) % servers.length];
+        }
+
+        //The sorts are stable, so servers that are equally good take turns.
+        if( ConfigurationParameterContants.BALANCE_LEAST_IN_FLIGHT.equals( balance ) ) {
+            Arrays.sort( ordered, Comparator.comparingInt( server -> getInFlight( server.toString() ) ) );
+        }
+        else if( ConfigurationParameterContants.BALANCE_LATENCY.equals( balance ) ) {
+            //Servers that have not answered yet count as the fastest, so
+            //they are measured.
+            Arrays.sort( ordered, Comparator.comparingLong( server ->
+                    ( serverHealth.getLatency( server.toString() ) + 1 ) * ( getInFlight( server.toString() ) + 1 ) ) );
+        }
+        return ordered;
+    }
+
+    /**
+     * Records the start of a delivery over a connection to a server.
+     *
+     * @param server the host:port of the server.
+     */
+    synchronized void connected( String server ) {
+        inFlight.merge( server, 1, Integer::sum );
+    }
+
+    /**
+     * Records the end of a delivery started with connected().
+     *
+     * @param server the host:port of the server.
+     */
+    synchronized void released( String server ) {
+        inFlight.computeIfPresent( server, ( key, count ) -> count > 1 ? count - 1 : null );
+    }
+
+    /**
+     * Returns the number of deliveries under way to a server.
+     *
+     * @param server the host:port of the server.
+     */
+    synchronized int getInFlight( String server ) {
+        return inFlight.getOrDefault( server, 0 );
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Chooses the next server by smooth weighted round robin: each server
+     * gains its weight, the server with the most is chosen and gives up
+     * the total.  A server with weight 3 is chosen three times as often as
+     * one with weight 1, and the choices are interleaved.
+     *
+     * @return the index of the chosen server.
+     */
+    private int nextWeighted( DefaultSmtpServer[] servers ) {
+        int total = 0;
+        int best = 0;
+        int bestWeight = Integer.MIN_VALUE;
+        for( int index = 0; index < servers.length; index++ ) {
+            int weight = currentWeights.merge( servers[index].toString(), servers[index].getWeight(), Integer::sum );
+            total += servers[index].getWeight();
+            if( weight > bestWeight ) {
+                best = index;
+                bestWeight = weight;
+            }
+        }
+        currentWeights.merge( servers[best].toString(), -total, Integer::sum );
+        return best;
+    }
+}
+//EOF
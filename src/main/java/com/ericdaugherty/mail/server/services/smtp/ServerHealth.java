@@ -0,0 +1,221 @@
+/******************************************************************************
+ * $Workfile: ServerHealth.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Log4j2 imports
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//Local imports
+import com.ericdaugherty.mail.server.configuration.ConfigurationManager;
+
+/**
+ * Remembers how the connections to each remote server (host:port) went,
+ * so a delivery does not wait for a server that failed moments ago for
+ * another message.
+ * <p>
+ * After smtpdelivery.server.failures consecutive failed connections a
+ * server is not tried for smtpdelivery.server.retry seconds.  Then a
+ * single delivery may try it again while the others keep skipping it.
+ * If that connection succeeds the server is used as before, otherwise it
+ * is skipped for twice as long, up to 30 minutes.  A server that has
+ * failed fewer times is still tried, but after the servers that have not
+ * failed.
+ * <p>
+ * The time each server took to connect and send its greeting is kept as
+ * a moving average, so equally preferred servers can be tried fastest
+ * first.
+ *
+ * @author Eric Daugherty
+ */
+class ServerHealth {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The longest time a failed server is skipped, in milliseconds. */
+    private static final long RETRY_MAXIMUM = 30 * 60 * 1000;
+
+    /** The number of servers that are remembered. */
+    private static final int MAXIMUM_SERVERS = 1000;
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    /** Logger Category for this class. */
+    private static final Logger logger = LogManager.getLogger(ServerHealth.class.getName());
+
+    /** The ConfigurationManager */
+    private static final ConfigurationManager configurationManager = ConfigurationManager.getInstance();
+
+    /** The state of the servers by host:port, least recently used first. */
+    private final Map<String, Server> servers = new LinkedHashMap<String, Server>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Server> eldest ) {
+            return size() > MAXIMUM_SERVERS;
+        }
+    };
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    /**
+     * Returns true if a connection to the server may be attempted.  If the
+     * server has been skipped long enough, the caller is given the one
+     * attempt that decides whether the server is used again, and must
+     * report its outcome.
+     *
+     * @param server the host:port of the server.
+     * @param now the current time.
+     * @return false if the server should be skipped.
+     */
+    synchronized boolean allow( String server, long now ) {
+        Server state = servers.get( server );
+        if( state == null || state.failures < configurationManager.getDeliveryServerFailures() ) {
+            return true;
+        }
+        if( state.probing || state.retryAt > now ) {
+            return false;
+        }
+        state.probing = true;
+        if( logger.isDebugEnabled() ) { logger.debug( "Trying SMTP Server: {} again after {} failures.", server, state.failures ); }
+        return true;
+    }
+
+    /**
+     * Records a connection that received the server's greeting.
+     *
+     * @param server the host:port of the server.
+     * @param latency the time (in milliseconds) the connection and the
+     * greeting took.
+     */
+    synchronized void succeeded( String server, long latency ) {
+        Server state = servers.computeIfAbsent( server, key -> new Server() );
+        if( state.failures >= configurationManager.getDeliveryServerFailures() && logger.isInfoEnabled() ) {
+            logger.info( "SMTP Server: {} is available again.", server );
+        }
+        state.failures = 0;
+        state.failedProbes = 0;
+        state.probing = false;
+        state.retryAt = 0;
+        state.latency = state.latency == 0 ? latency : ( state.latency * 7 + latency ) / 8;
+    }
+
+    /**
+     * Records a server that could not be connected to on any of its
+     * addresses.
+     *
+     * @param server the host:port of the server.
+     * @param now the current time.
+     */
+    synchronized void failed( String server, long now ) {
+        Server state = servers.computeIfAbsent( server, key -> new Server() );
+        boolean probe = state.probing;
+        state.failures++;
+        state.probing = false;
+        if( probe ) {
+            state.failedProbes++;
+        }
+        //Connections that were already under way when the server started
+        //to be skipped do not extend the time.
+        if( state.failures >= configurationManager.getDeliveryServerFailures() && ( probe || state.retryAt == 0 ) ) {
+            long retry = Math.min( configurationManager.getDeliveryServerRetryMilliseconds() << Math.min( state.failedProbes, 16 ), RETRY_MAXIMUM );
+            state.retryAt = now + retry;
+            logger.warn( "SMTP Server: {} is skipped for {} seconds after {} failed connections.", server, retry / 1000, state.failures );
+        }
+    }
+
+    /**
+     * Records an attempt that ended without an outcome, for example because
+     * another server answered first.
+     *
+     * @param server the host:port of the server.
+     */
+    synchronized void abandoned( String server ) {
+        Server state = servers.get( server );
+        if( state != null ) {
+            state.probing = false;
+        }
+    }
+
+    /**
+     * Returns the number of consecutive failed connections to a server.
+     *
+     * @param server the host:port of the server.
+     */
+    synchronized int getFailures( String server ) {
+        Server state = servers.get( server );
+        return state == null ? 0 : state.failures;
+    }
+
+    /**
+     * Returns the average time (in milliseconds) connections to a server
+     * took to receive the greeting.
+     *
+     * @param server the host:port of the server.
+     * @return the time, or 0 if no connection has succeeded yet.
+     */
+    synchronized long getLatency( String server ) {
+        Server state = servers.get( server );
+        return state == null ? 0 : state.latency;
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * The state of one server.
+     */
+    private static class Server {
+
+        private int failures = 0;
+        /** The failed attempts to use the server again. */
+        private int failedProbes = 0;
+        /** When the server may be tried again, after failures. */
+        private long retryAt = 0;
+        /** True while one delivery is trying the server again. */
+        private boolean probing = false;
+        private long latency = 0;
+    }
+}
+//EOF
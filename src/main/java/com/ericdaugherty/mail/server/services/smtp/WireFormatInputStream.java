@@ -0,0 +1,210 @@
+/******************************************************************************
+ * $Workfile: WireFormatInputStream.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Presents the data of a spooled message in SMTP wire format: dot-stuffing
+ * and the terminating line.  The data is read from the spool file as the
+ * stream is read, so a message can be passed to a MailboxStore or a remote
+ * server without holding it in memory.
+ * <p>
+ * The bytes are not decoded.  A period is inserted before each line that
+ * starts with one, where a line starts after a LF, and everything else is
+ * passed through unchanged, so 8-bit data and bare CRs survive delivery.
+ *
+ * @author Eric Daugherty
+ */
+class WireFormatInputStream extends InputStream {
+
+    //***************************************************************
+    // Constants
+    //***************************************************************
+
+    /** The size of the buffer the data is read into. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    /** The line that ends the data. */
+    private static final byte[] TERMINATOR = { '.', '\r', '\n' };
+
+    /** Ends data whose last line has no CRLF. */
+    private static final byte[] CRLF_TERMINATOR = { '\r', '\n', '.', '\r', '\n' };
+
+    //***************************************************************
+    // Variables
+    //***************************************************************
+
+    private final InputStream data;
+
+    /** The data that has been read, from position to count. */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int count = 0;
+
+    /** The header line before the data or the terminating line after it. */
+    private byte[] extra;
+    private int extraPosition = 0;
+
+    /** True if the next byte of the data starts a line. */
+    private boolean lineStart = true;
+
+    /** True if the period that stuffs the current line has been returned. */
+    private boolean stuffed = false;
+
+    /** True once the end of the data has been read. */
+    private boolean finished = false;
+
+    /** Used by read(). */
+    private final byte[] single = new byte[1];
+
+    //***************************************************************
+    // Package Interface
+    //***************************************************************
+
+    //***************************************************************
+    // Constructor(s)
+
+    /**
+     * Creates a stream of the message data.
+     *
+     * @param data the message data, which is closed with this stream.
+     */
+    WireFormatInputStream( InputStream data ) {
+        this.data = data;
+    }
+
+    /**
+     * Creates a stream that starts with the specified header line, followed
+     * by the message data.
+     *
+     * @param header a header line added during delivery, which is encoded
+     * in UTF-8.
+     * @param data the message data, which is closed with this stream.
+     */
+    WireFormatInputStream( String header, InputStream data ) {
+        this( data );
+        byte[] line = header.getBytes( StandardCharsets.UTF_8 );
+        extra = new byte[ line.length + CRLF.length ];
+        System.arraycopy( line, 0, extra, 0, line.length );
+        System.arraycopy( CRLF, 0, extra, line.length, CRLF.length );
+    }
+
+    //***************************************************************
+    // Methods
+
+    @Override
+    public int read() throws IOException {
+        return read( single, 0, 1 ) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read( byte[] bytes, int offset, int length ) throws IOException {
+        if( length == 0 ) {
+            return 0;
+        }
+        while( true ) {
+            if( extra != null ) {
+                if( extraPosition < extra.length ) {
+                    int copied = Math.min( length, extra.length - extraPosition );
+                    System.arraycopy( extra, extraPosition, bytes, offset, copied );
+                    extraPosition += copied;
+                    return copied;
+                }
+                extra = null;
+            }
+            if( finished ) {
+                return -1;
+            }
+            if( position < count ) {
+                return copy( bytes, offset, length );
+            }
+            count = data.read( buffer );
+            position = 0;
+            if( count == -1 ) {
+                count = 0;
+                finished = true;
+                extra = lineStart ? TERMINATOR : CRLF_TERMINATOR;
+                extraPosition = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    /**
+     * Copies buffered data, a line at a time, stuffing the lines that start
+     * with a period.
+     *
+     * @return the number of bytes copied.
+     */
+    private int copy( byte[] bytes, int offset, int length ) {
+        int copied = 0;
+        while( copied < length && position < count ) {
+            if( lineStart && !stuffed && buffer[position] == '.' ) {
+                bytes[offset + copied++] = '.';
+                stuffed = true;
+                continue;
+            }
+            int limit = Math.min( count, position + length - copied );
+            int end = position;
+            while( end < limit && buffer[end] != '\n' ) {
+                end++;
+            }
+            if( end < limit ) {
+                end++;
+            }
+            System.arraycopy( buffer, position, bytes, offset + copied, end - position );
+            copied += end - position;
+            position = end;
+            lineStart = buffer[end - 1] == '\n';
+            stuffed = false;
+        }
+        return copied;
+    }
+}
+//EOF
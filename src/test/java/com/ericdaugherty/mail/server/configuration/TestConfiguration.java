@@ -0,0 +1,101 @@
+/******************************************************************************
+ * $Workfile: TestConfiguration.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.configuration;
+
+//Java imports
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Sets up the ConfigurationManager for unit tests.  The configuration is
+ * written to a temporary directory, which is also the mail directory.  The
+ * ConfigurationManager can only be initialized once, so later calls write
+ * a new mail.conf and reload it.
+ *
+ * @author Eric Daugherty
+ */
+public class TestConfiguration {
+
+    //***************************************************************
+    // Public Interface
+    //***************************************************************
+
+    /**
+     * Loads a mail.conf with a local domain and the specified settings.
+     *
+     * @param properties settings in key=value form.
+     * @return the ConfigurationManager.
+     * @throws IOException thrown if the configuration can not be written.
+     */
+    public static synchronized ConfigurationManager load( String... properties ) throws IOException {
+
+        ConfigurationManager configurationManager;
+        try {
+            configurationManager = ConfigurationManager.getInstance();
+        }
+        catch( RuntimeException notInitialized ) {
+            configurationManager = null;
+        }
+
+        File directory = configurationManager == null ? Files.createTempDirectory( "jes" ).toFile() :
+                new File( configurationManager.getMailDirectory() );
+        StringBuilder mailConf = new StringBuilder( "domains=localhost\r\n" );
+        for( String property : properties ) {
+            mailConf.append( property ).append( "\r\n" );
+        }
+        write( new File( directory, "mail.conf" ), mailConf.toString() );
+
+        if( configurationManager == null ) {
+            write( new File( directory, "user.conf" ), "" );
+            return ConfigurationManager.initialize( directory.getAbsolutePath() );
+        }
+        configurationManager.loadProperties();
+        return configurationManager;
+    }
+
+    //***************************************************************
+    // Private Interface
+    //***************************************************************
+
+    private static void write( File file, String content ) throws IOException {
+        try( FileOutputStream out = new FileOutputStream( file ) ) {
+            out.write( content.getBytes( StandardCharsets.US_ASCII ) );
+        }
+    }
+}
+//EOF
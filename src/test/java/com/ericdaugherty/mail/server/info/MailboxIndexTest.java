@@ -0,0 +1,166 @@
+/******************************************************************************
+ * $Workfile: MailboxIndexTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.info;
+
+//Java imports
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+//JUnit imports
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the mailbox index used for STAT, LIST and UIDL.
+ *
+ * @author Eric Daugherty
+ */
+public class MailboxIndexTest {
+
+    /** A message in wire format, 23 bytes with the terminator. */
+    private static final String WIRE_MESSAGE = "Subject: a\r\n\r\nbody\r\n.\r\n";
+
+    /** A message stored as plain lines, 24 bytes in wire format. */
+    private static final String PLAIN_MESSAGE = "Subject: b\n\n.dot\n";
+
+    private File directory;
+    private Maildir maildir;
+    private MailboxIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory( "mailbox" ).toFile();
+        maildir = new Maildir( directory );
+        index = new MailboxIndex( maildir );
+    }
+
+    @Test
+    public void testRebuild() throws IOException {
+        File plain = write( new File( directory, Maildir.CUR ), "1.M1P1Q1.host", PLAIN_MESSAGE );
+        File wire = write( new File( directory, Maildir.NEW ), "2.M2P2Q2.host", WIRE_MESSAGE );
+        assertFalse( index.isCurrent() );
+
+        Message[] messages = index.load();
+        assertEquals( 2, messages.length );
+        assertEquals( plain, messages[0].getMessageLocation() );
+        assertFalse( messages[0].isWireFormat() );
+        assertEquals( PLAIN_MESSAGE.length(), messages[0].getMessageSize() );
+        assertEquals( 21, messages[0].getOctetCount() );
+        assertEquals( 14, messages[0].getBodyOffset() );
+        assertEquals( wire, messages[1].getMessageLocation() );
+        assertTrue( messages[1].isWireFormat() );
+        assertEquals( 23, messages[1].getMessageSize() );
+        assertEquals( 20, messages[1].getOctetCount() );
+        assertEquals( 14, messages[1].getBodyOffset() );
+        assertTrue( index.isCurrent() );
+    }
+
+    @Test
+    public void testLoadFromIndex() throws IOException {
+        File wire = write( new File( directory, Maildir.NEW ), "2.M2P2Q2.host", WIRE_MESSAGE );
+        index.load();
+        //Changing a file does not change its folder, so the index is still used.
+        try( FileOutputStream out = new FileOutputStream( wire, true ) ) {
+            out.write( new byte[100] );
+        }
+        Message[] messages = new MailboxIndex( maildir ).load();
+        assertEquals( 1, messages.length );
+        assertEquals( 23, messages[0].getMessageSize() );
+        assertEquals( 20, messages[0].getOctetCount() );
+    }
+
+    @Test
+    public void testAppendAndRemove() throws IOException {
+        write( new File( directory, Maildir.NEW ), "1.M1P1Q1.host", WIRE_MESSAGE );
+        Message first = index.load()[0];
+
+        File delivered = maildir.deliver( write( new File( directory, Maildir.TMP ), "2.M2P2Q2.host", WIRE_MESSAGE ) );
+        Message message = new Message();
+        message.setMessageLocation( delivered );
+        message.setMessageSize( 23 );
+        message.setOctetCount( 20 );
+        message.setBodyOffset( 14 );
+        message.setWireFormat( true );
+        index.append( message );
+
+        Message[] messages = index.load();
+        assertEquals( 2, messages.length );
+        assertEquals( delivered, messages[1].getMessageLocation() );
+        assertEquals( 14, messages[1].getBodyOffset() );
+
+        assertTrue( first.getMessageLocation().delete() );
+        index.remove( Collections.singletonList( first ) );
+        assertTrue( index.isCurrent() );
+        messages = index.load();
+        assertEquals( 1, messages.length );
+        assertEquals( delivered, messages[0].getMessageLocation() );
+    }
+
+    @Test
+    public void testOutOfDateIndexIsRebuilt() throws IOException {
+        write( new File( directory, Maildir.NEW ), "1.M1P1Q1.host", WIRE_MESSAGE );
+        index.load();
+        //A message copied into the mailbox by hand.
+        write( new File( directory, Maildir.CUR ), "2.M2P2Q2.host", PLAIN_MESSAGE );
+        new File( directory, MailboxIndex.INDEX_FILE_NAME ).setLastModified( 0 );
+        assertFalse( index.isCurrent() );
+        assertEquals( 2, index.load().length );
+    }
+
+    @Test
+    public void testInvalidIndexIsRebuilt() throws IOException {
+        write( new File( directory, Maildir.NEW ), "1.M1P1Q1.host", WIRE_MESSAGE );
+        index.load();
+        write( directory, MailboxIndex.INDEX_FILE_NAME, "1.1\nnew/1.M1P1Q1.host 23\n" );
+        assertTrue( index.isCurrent() );
+        Message[] messages = index.load();
+        assertEquals( 1, messages.length );
+        assertEquals( 20, messages[0].getOctetCount() );
+    }
+
+    private static File write( File folder, String name, String content ) throws IOException {
+        File file = new File( folder, name );
+        try( FileOutputStream out = new FileOutputStream( file ) ) {
+            out.write( content.getBytes( StandardCharsets.US_ASCII ) );
+        }
+        return file;
+    }
+}
+//EOF
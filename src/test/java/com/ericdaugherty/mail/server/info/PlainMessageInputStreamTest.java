@@ -0,0 +1,113 @@
+/******************************************************************************
+ * $Workfile: PlainMessageInputStreamTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.info;
+
+//Java imports
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+//JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the conversion of messages stored as plain lines to POP3 wire format.
+ *
+ * @author Eric Daugherty
+ */
+public class PlainMessageInputStreamTest {
+
+    @Test
+    public void testLineEndings() throws IOException {
+        assertEquals( "a\r\nb\r\nc\r\n.\r\n", read( "a\nb\r\nc\n", 8192 ) );
+    }
+
+    @Test
+    public void testDotStuffing() throws IOException {
+        String expected = "..hidden\r\nmid.dle\r\n..\r\n.\r\n";
+        assertEquals( expected, read( ".hidden\nmid.dle\n.\n", 8192 ) );
+        for( int chunk = 1; chunk < 5; chunk++ ) {
+            assertEquals( "chunk " + chunk, expected, read( ".hidden\nmid.dle\n.\n", chunk ) );
+        }
+    }
+
+    @Test
+    public void testUnterminatedLastLine() throws IOException {
+        assertEquals( ".\r\n", read( "", 8192 ) );
+        assertEquals( "a\r\nlast\r\n.\r\n", read( "a\nlast", 8192 ) );
+        assertEquals( "a\r\n.\r\n", read( "a\r", 8192 ) );
+    }
+
+    @Test
+    public void testBytesAreNotDecoded() throws IOException {
+        byte[] data = { 'a', (byte) 0xc3, (byte) 0xa9, (byte) 0xff, '\n' };
+        byte[] expected = { 'a', (byte) 0xc3, (byte) 0xa9, (byte) 0xff, '\r', '\n', '.', '\r', '\n' };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PlainMessageInputStream( new ByteArrayInputStream( data ) ).transferTo( out );
+        assertArrayEquals( expected, out.toByteArray() );
+    }
+
+    @Test
+    public void testLongData() throws IOException {
+        StringBuilder data = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for( int line = 0; line < 5000; line++ ) {
+            String text = line % 3 == 0 ? ".line " + line : "line " + line;
+            data.append( text ).append( "\n" );
+            expected.append( line % 3 == 0 ? "." : "" ).append( text ).append( "\r\n" );
+        }
+        expected.append( ".\r\n" );
+        assertEquals( expected.toString(), read( data.toString(), 1000 ) );
+    }
+
+    /**
+     * Converts the text with reads of the specified length.
+     */
+    private static String read( String text, int chunk ) throws IOException {
+        InputStream in = new PlainMessageInputStream( new ByteArrayInputStream( text.getBytes( StandardCharsets.US_ASCII ) ) );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunk];
+        int count;
+        while( ( count = in.read( buffer, 0, chunk ) ) != -1 ) {
+            out.write( buffer, 0, count );
+        }
+        in.close();
+        return new String( out.toByteArray(), StandardCharsets.US_ASCII );
+    }
+}
+//EOF
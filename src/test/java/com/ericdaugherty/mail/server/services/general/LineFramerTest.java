@@ -0,0 +1,187 @@
+/******************************************************************************
+ * $Workfile: LineFramerTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+//JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the framing of protocol lines.
+ *
+ * @author Eric Daugherty
+ */
+public class LineFramerTest {
+
+    @Test
+    public void testFrameLines() {
+        LineFramer framer = new LineFramer();
+        ByteBuffer input = bytes( "HELO example.com\r\nNOOP\nQUIT\r\n" );
+        assertTrue( framer.frame( input ) );
+        assertEquals( "HELO example.com", framer.toString() );
+        assertTrue( framer.frame( input ) );
+        assertEquals( "NOOP", framer.toString() );
+        assertTrue( framer.frame( input ) );
+        assertTrue( framer.contentEquals( "QUIT" ) );
+        assertFalse( input.hasRemaining() );
+        assertFalse( framer.frame( input ) );
+    }
+
+    @Test
+    public void testLineAcrossBuffers() {
+        LineFramer framer = new LineFramer();
+        assertFalse( framer.frame( bytes( "MAIL FR" ) ) );
+        assertFalse( framer.frame( bytes( "OM:<a@b.com>\r" ) ) );
+        assertTrue( framer.frame( bytes( "\n" ) ) );
+        assertEquals( "MAIL FROM:<a@b.com>", framer.toString() );
+        assertTrue( framer.startsWithIgnoreCase( "mail from:" ) );
+        assertFalse( framer.startsWithIgnoreCase( "RCPT TO:" ) );
+    }
+
+    @Test
+    public void testBytesAfterLineAreLeft() {
+        LineFramer framer = new LineFramer();
+        ByteBuffer input = bytes( "DATA\r\nSubject" );
+        assertTrue( framer.frame( input ) );
+        assertEquals( "Subject".length(), input.remaining() );
+    }
+
+    @Test
+    public void testBareCarriageReturnIsKept() {
+        LineFramer framer = new LineFramer();
+        assertTrue( framer.frame( bytes( "a\rb\r\n" ) ) );
+        assertEquals( 3, framer.length() );
+        assertEquals( '\r', framer.byteAt( 1 ) );
+    }
+
+    @Test
+    public void testEmptyLine() {
+        LineFramer framer = new LineFramer();
+        assertTrue( framer.frame( bytes( "\r\n" ) ) );
+        assertEquals( 0, framer.length() );
+        assertFalse( framer.isTooLong() );
+    }
+
+    @Test
+    public void testCommandLineLimit() {
+        LineFramer framer = new LineFramer();
+        //The limit includes the CRLF.
+        String longest = repeat( 'x', LineFramer.COMMAND_LINE_LIMIT - 2 );
+        assertTrue( framer.frame( bytes( longest + "\r\n" ) ) );
+        assertFalse( framer.isTooLong() );
+        assertEquals( longest, framer.toString() );
+
+        assertTrue( framer.frame( bytes( longest + "x\r\n" ) ) );
+        assertTrue( framer.isTooLong() );
+        assertTrue( framer.frame( bytes( longest + "x\n" ) ) );
+        assertTrue( framer.isTooLong() );
+
+        //The next line is not affected.
+        assertTrue( framer.frame( bytes( "RSET\r\n" ) ) );
+        assertFalse( framer.isTooLong() );
+        assertEquals( "RSET", framer.toString() );
+    }
+
+    @Test
+    public void testLongLineIsNotBuffered() {
+        LineFramer framer = new LineFramer();
+        assertTrue( framer.frame( bytes( repeat( 'x', 100000 ) + "\r\n" ) ) );
+        assertTrue( framer.isTooLong() );
+        assertEquals( LineFramer.COMMAND_LINE_LIMIT - 1, framer.length() );
+    }
+
+    @Test
+    public void testTextLineLimit() {
+        LineFramer framer = new LineFramer();
+        framer.setLimit( LineFramer.TEXT_LINE_LIMIT );
+        String longest = repeat( 'x', LineFramer.TEXT_LINE_LIMIT - 2 );
+        assertTrue( framer.frame( bytes( longest + "\r\n" ) ) );
+        assertFalse( framer.isTooLong() );
+        assertTrue( framer.frame( bytes( longest + "xx\r\n" ) ) );
+        assertTrue( framer.isTooLong() );
+
+        //Limits beyond the capacity are reduced to it.
+        framer.setLimit( 100000 );
+        assertTrue( framer.frame( bytes( longest + "x\r\n" ) ) );
+        assertTrue( framer.isTooLong() );
+    }
+
+    @Test
+    public void testBytesAreNotDecoded() {
+        LineFramer framer = new LineFramer();
+        ByteBuffer input = ByteBuffer.wrap( new byte[]{ 'a', (byte) 0xc3, (byte) 0xa9, (byte) 0xff, '\r', '\n' } );
+        assertTrue( framer.frame( input ) );
+        assertEquals( 4, framer.length() );
+        assertEquals( (byte) 0xff, framer.byteAt( 3 ) );
+        assertEquals( "a\u00e9", new String( framer.getBytes(), 0, 3, StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void testReadLine() throws IOException {
+        LineFramer framer = new LineFramer();
+        ByteArrayInputStream in = new ByteArrayInputStream( "USER a@b.com\r\nPASS x\r\nQUIT".getBytes( StandardCharsets.US_ASCII ) );
+        List<String> lines = new ArrayList<>();
+        assertTrue( framer.readLine( in ) );
+        lines.add( framer.toString() );
+        assertTrue( framer.hasBufferedInput() );
+        assertTrue( framer.readLine( in ) );
+        lines.add( framer.toString() );
+        //The last line is not terminated.
+        assertFalse( framer.readLine( in ) );
+        assertFalse( framer.hasBufferedInput() );
+        assertEquals( List.of( "USER a@b.com", "PASS x" ), lines );
+    }
+
+    private static ByteBuffer bytes( String text ) {
+        return ByteBuffer.wrap( text.getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    private static String repeat( char character, int count ) {
+        StringBuilder text = new StringBuilder( count );
+        for( int index = 0; index < count; index++ ) {
+            text.append( character );
+        }
+        return text.toString();
+    }
+}
+//EOF
@@ -0,0 +1,254 @@
+/******************************************************************************
+ * $Workfile: NioReactorTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+//JUnit imports
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests how a NioReactor distributes the connections it accepts, the
+ * session counts it keeps for each shard, and how it handles a full worker
+ * queue.
+ *
+ * @author Eric Daugherty
+ */
+public class NioReactorTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private ServerSocketChannel serverChannel;
+    private WorkerPool workers;
+    private NioReactor[] reactors;
+    private final List<Socket> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        TestSession.blocked = new CountDownLatch( 1 );
+    }
+
+    /**
+     * Starts two reactors, the first of which accepts the connections.
+     */
+    private void start( int maxWorkers, int queueSize ) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+        workers = new WorkerPool( "worker", 1, maxWorkers, queueSize );
+        byte[] busy = ResponseWriter.encode( "421 busy" );
+        reactors = new NioReactor[]{ new NioReactor( TestSession.class, workers, busy ), new NioReactor( TestSession.class, workers, busy ) };
+        reactors[0].accept( serverChannel, reactors );
+        for( NioReactor reactor : reactors ) {
+            new Thread( reactor, "reactor" ).start();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestSession.blocked.countDown();
+        for( Socket client : clients ) {
+            client.close();
+        }
+        for( NioReactor reactor : reactors ) {
+            reactor.shutdown();
+        }
+        serverChannel.close();
+        workers.shutdown();
+    }
+
+    @Test
+    public void testConnectionsAreDistributed() throws Exception {
+        start( 4, 10 );
+        for( int count = 0; count < 4; count++ ) {
+            assertEquals( "220 ready", connect() );
+        }
+        waitFor( () -> reactors[0].getOpenSessionCount() == 2 && reactors[1].getOpenSessionCount() == 2 );
+        assertEquals( 2, reactors[0].getTotalSessionCount() );
+        assertEquals( 2, reactors[1].getTotalSessionCount() );
+    }
+
+    @Test
+    public void testClosedSessionsAreCounted() throws Exception {
+        start( 4, 10 );
+        connect();
+        connect();
+        connect();
+
+        //The first and the third connection went to the first reactor.
+        assertEquals( "221 bye", quit( clients.get( 0 ) ) );
+        waitFor( () -> reactors[0].getOpenSessionCount() == 1 );
+        assertEquals( 1, reactors[1].getOpenSessionCount() );
+
+        clients.get( 1 ).close();
+        waitFor( () -> reactors[1].getOpenSessionCount() == 0 );
+        assertEquals( 2, reactors[0].getTotalSessionCount() );
+        assertEquals( 1, reactors[1].getTotalSessionCount() );
+    }
+
+    @Test
+    public void testFullWorkerQueue() throws Exception {
+        start( 1, 1 );
+        connect();
+        connect();
+        connect();
+
+        //The only worker is blocked, and the next step fills the queue.
+        send( clients.get( 0 ), "BLOCK" );
+        waitFor( () -> workers.getActiveCount() == 1 );
+        send( clients.get( 1 ), "PING" );
+        waitFor( () -> workers.isFull() );
+
+        //This step does not fit in the queue and waits in its reactor.
+        send( clients.get( 2 ), "PING" );
+
+        //New clients are turned away.
+        assertEquals( "421 busy", connect() );
+        assertEquals( -1, clients.get( 3 ).getInputStream().read() );
+
+        TestSession.blocked.countDown();
+        assertEquals( "250 done", readLine( clients.get( 0 ) ) );
+        assertEquals( "250 pong", readLine( clients.get( 1 ) ) );
+        assertEquals( "250 pong", readLine( clients.get( 2 ) ) );
+        assertEquals( 3, reactors[0].getTotalSessionCount() + reactors[1].getTotalSessionCount() );
+    }
+
+    /**
+     * Connects a client and returns the greeting.
+     */
+    private String connect() throws IOException {
+        Socket client = new Socket( InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort() );
+        client.setSoTimeout( (int) TIMEOUT );
+        clients.add( client );
+        return readLine( client );
+    }
+
+    private static String quit( Socket client ) throws IOException {
+        send( client, "QUIT" );
+        return readLine( client );
+    }
+
+    private static void send( Socket client, String line ) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write( line.concat( "\r\n" ).getBytes( StandardCharsets.US_ASCII ) );
+        out.flush();
+    }
+
+    private static String readLine( Socket client ) throws IOException {
+        //Reads byte by byte, so nothing after the line is consumed.
+        StringBuilder line = new StringBuilder();
+        int next;
+        while( ( next = client.getInputStream().read() ) != -1 && next != '\n' ) {
+            if( next != '\r' ) {
+                line.append( (char) next );
+            }
+        }
+        return line.toString();
+    }
+
+    private static void waitFor( BooleanSupplier condition ) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while( !condition.getAsBoolean() ) {
+            assertTrue( "Timed out", System.currentTimeMillis() < end );
+            Thread.sleep( 10 );
+        }
+    }
+
+    /**
+     * Greets the client, answers PING, waits for the test on BLOCK and ends
+     * the session on QUIT.
+     */
+    public static class TestSession implements ProtocolSession {
+
+        /** Released by the test to end a BLOCK command. */
+        private static volatile CountDownLatch blocked;
+
+        private SessionOutput output;
+        private boolean closed = false;
+
+        @Override
+        public void open( SessionOutput output, InetAddress clientAddress ) {
+            this.output = output;
+            output.write( "220 ready" );
+        }
+
+        @Override
+        public void lineReceived( LineFramer line ) {
+            String command = line.toString( 0, StandardCharsets.US_ASCII );
+            if( command.equals( "QUIT" ) ) {
+                output.write( "221 bye" );
+                closed = true;
+            }
+            else if( command.equals( "PING" ) ) {
+                output.write( "250 pong" );
+            }
+            else if( command.equals( "BLOCK" ) ) {
+                try {
+                    blocked.await();
+                }
+                catch( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                }
+                output.write( "250 done" );
+            }
+        }
+
+        @Override
+        public int getMaxLineLength() { return LineFramer.TEXT_LINE_LIMIT; }
+
+        @Override
+        public boolean isClosed() { return closed; }
+
+        @Override
+        public void close() { }
+
+        @Override
+        public int getIdleTimeout() { return 0; }
+    }
+}
+//EOF
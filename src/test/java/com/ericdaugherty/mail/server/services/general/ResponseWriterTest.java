@@ -0,0 +1,164 @@
+/******************************************************************************
+ * $Workfile: ResponseWriterTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.general;
+
+//Java imports
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+//JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the batching and overflow handling of the ResponseWriter.
+ *
+ * @author Eric Daugherty
+ */
+public class ResponseWriterTest {
+
+    @Test
+    public void testResponsesAreBatched() throws IOException {
+        TestChannel channel = new TestChannel();
+        ResponseWriter out = new ResponseWriter( channel, ByteBuffer.allocate( 64 ) );
+        out.write( "+OK" );
+        out.write( ResponseWriter.encode( "." ) );
+        assertEquals( 0, channel.writes );
+        assertTrue( out.flush() );
+        assertEquals( 1, channel.writes );
+        assertEquals( "+OK\r\n.\r\n", channel.toString() );
+    }
+
+    @Test
+    public void testBlockedUntilChannelAcceptsData() throws IOException {
+        TestChannel channel = new TestChannel();
+        ResponseWriter out = new ResponseWriter( channel, ByteBuffer.allocate( 16 ) );
+        channel.available = 4;
+        out.write( "first line" );
+        out.write( "second line" );
+        assertFalse( out.flush() );
+        assertTrue( out.isBlocked() );
+
+        channel.available = Integer.MAX_VALUE;
+        assertTrue( out.flush() );
+        assertFalse( out.isBlocked() );
+        assertEquals( "first line\r\nsecond line\r\n", channel.toString() );
+    }
+
+    @Test
+    public void testStreamTransfer() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for( int line = 0; line < 3000; line++ ) {
+            text.append( "line " ).append( line ).append( "\r\n" );
+        }
+        TestChannel channel = new TestChannel();
+        ResponseWriter out = new ResponseWriter( channel, ByteBuffer.allocate( 64 ) );
+        out.write( "+OK" );
+        channel.available = 1000;
+        out.transfer( new ByteArrayInputStream( text.toString().getBytes( StandardCharsets.US_ASCII ) ), Long.MAX_VALUE );
+        out.write( "." );
+        assertFalse( out.flush() );
+        while( !out.flush() ) {
+            //Only the part of the stream the channel accepted has been read.
+            assertTrue( channel.bytes.size() < text.length() );
+            channel.available = 1000;
+        }
+        assertEquals( "+OK\r\n" + text + ".\r\n", channel.toString() );
+    }
+
+    @Test
+    public void testStreamTransferCount() throws IOException {
+        TestChannel channel = new TestChannel();
+        ResponseWriter out = new ResponseWriter( channel, ByteBuffer.allocate( 64 ) );
+        out.transfer( new ByteArrayInputStream( "header\r\n\r\nbody\r\n".getBytes( StandardCharsets.US_ASCII ) ), 10 );
+        assertTrue( out.flush() );
+        assertEquals( "header\r\n\r\n", channel.toString() );
+    }
+
+    @Test( expected = IOException.class )
+    public void testPendingLimit() throws IOException {
+        TestChannel channel = new TestChannel();
+        ResponseWriter out = new ResponseWriter( channel, ByteBuffer.allocate( 64 ) );
+        channel.available = 0;
+        byte[] response = new byte[ResponseWriter.BUFFER_SIZE];
+        for( int count = 0; count <= ResponseWriter.PENDING_LIMIT / response.length; count++ ) {
+            out.write( response );
+        }
+        out.flush();
+    }
+
+    /**
+     * A channel that accepts a limited number of bytes, like a socket with a
+     * full send buffer.
+     */
+    private static class TestChannel implements WritableByteChannel {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int available = Integer.MAX_VALUE;
+        private int writes = 0;
+
+        @Override
+        public int write( ByteBuffer source ) {
+            int count = Math.min( available, source.remaining() );
+            for( int index = 0; index < count; index++ ) {
+                bytes.write( source.get() );
+            }
+            available -= count;
+            if( count > 0 ) {
+                writes++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return new String( bytes.toByteArray(), StandardCharsets.US_ASCII );
+        }
+    }
+}
+//EOF
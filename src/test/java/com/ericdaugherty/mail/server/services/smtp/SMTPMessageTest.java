@@ -0,0 +1,229 @@
+/******************************************************************************
+ * $Workfile: SMTPMessageTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+
+//JUnit imports
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+//Local imports
+import com.ericdaugherty.mail.server.configuration.TestConfiguration;
+import com.ericdaugherty.mail.server.errors.InvalidSpoolFileException;
+import com.ericdaugherty.mail.server.info.EmailAddress;
+
+/**
+ * Tests saving and loading spooled SMTP messages in the current spool file
+ * format and in version 1.0.
+ *
+ * @author Eric Daugherty
+ */
+public class SMTPMessageTest {
+
+    private static final long TIME_RECEIVED = 1000000000000L;
+    private static final long SCHEDULED = 1000000060000L;
+
+    private static File spoolDirectory;
+
+    @BeforeClass
+    public static void initialize() throws IOException {
+        spoolDirectory = new File( TestConfiguration.load().getMailDirectory(), "smtp" );
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        SMTPMessage message = newMessage( "b@example.com", "c@example.com", "d@example.com" );
+        message.startData();
+        message.writeDataLine( "Subject: test" );
+        message.writeDataLine( "" );
+        message.writeDataLine( ".not stuffed" );
+        message.save();
+        File file = message.getMessageLocation();
+        assertTrue( file.getName().endsWith( SMTPMessage.SPOOL_SUFFIX ) );
+
+        SMTPMessage loaded = SMTPMessage.load( file.getPath() );
+        assertEquals( "a@example.com", loaded.getFromAddress().toString() );
+        assertEquals( 3, loaded.getToAddresses().size() );
+        assertEquals( "d@example.com", loaded.getToAddresses().get( 2 ).toString() );
+        assertEquals( TIME_RECEIVED, loaded.getTimeReceived().getTime() );
+        assertEquals( SCHEDULED, loaded.getScheduledDelivery().getTime() );
+        assertEquals( 2, loaded.getDeliveryAttempts() );
+        assertFalse( loaded.isDelivered( 0 ) );
+        assertFalse( loaded.isEightBit() );
+        assertFalse( loaded.isEightBitMime() );
+        String data = "Subject: test\r\n\r\n.not stuffed\r\n";
+        assertEquals( data.length(), loaded.getSize() );
+        assertEquals( data, read( loaded ) );
+    }
+
+    @Test
+    public void testEightBitData() throws Exception {
+        SMTPMessage message = newMessage( "b@example.com" );
+        message.setEightBitMime( true );
+        message.startData();
+        byte[] line = { 'c', 'a', 'f', (byte) 0xc3, (byte) 0xa9 };
+        message.writeDataLine( line, 0, line.length );
+        message.save();
+
+        SMTPMessage loaded = SMTPMessage.load( message.getMessageLocation().getPath() );
+        assertTrue( loaded.isEightBit() );
+        assertTrue( loaded.isEightBitMime() );
+        assertArrayEquals( new byte[]{ 'c', 'a', 'f', (byte) 0xc3, (byte) 0xa9, '\r', '\n' }, readBytes( loaded ) );
+    }
+
+    @Test
+    public void testSaveDeliveryState() throws Exception {
+        SMTPMessage message = newMessage( "b@example.com", "c@example.com" );
+        message.startData();
+        message.writeDataLine( "body" );
+        message.save();
+        File file = message.getMessageLocation();
+        long length = file.length();
+
+        SMTPMessage loaded = SMTPMessage.load( file.getPath() );
+        loaded.setDelivered( 1 );
+        loaded.setDeliveryAttempts( 3 );
+        loaded.setScheduledDelivery( new Date( SCHEDULED + 1000 ) );
+        loaded.saveDeliveryState();
+        //The state is updated in place.
+        assertEquals( file, loaded.getMessageLocation() );
+        assertEquals( length, file.length() );
+
+        loaded = SMTPMessage.load( file.getPath() );
+        assertFalse( loaded.isDelivered( 0 ) );
+        assertTrue( loaded.isDelivered( 1 ) );
+        assertEquals( 3, loaded.getDeliveryAttempts() );
+        assertEquals( SCHEDULED + 1000, loaded.getScheduledDelivery().getTime() );
+        assertEquals( "body\r\n", read( loaded ) );
+    }
+
+    @Test
+    public void testLoadVersion10() throws Exception {
+        //Version 1.0 stored the data still dot-stuffed.
+        String envelope = "1.0\na@example.com\nb@example.com\n" + TIME_RECEIVED + "\n" + SCHEDULED + "\n0\n";
+        File spoolFile = write( ( envelope + "..first\r\nsecond\r\n..\r\n" ).getBytes( StandardCharsets.US_ASCII ) );
+
+        SMTPMessage loaded = SMTPMessage.load( spoolFile.getPath() );
+        assertEquals( ".first\r\nsecond\r\n.\r\n", read( loaded ) );
+
+        loaded.saveDeliveryState();
+        assertEquals( 2, version( loaded.getMessageLocation() ) );
+        assertEquals( ".first\r\nsecond\r\n.\r\n", read( SMTPMessage.load( loaded.getMessageLocation().getPath() ) ) );
+    }
+
+    @Test( expected = InvalidSpoolFileException.class )
+    public void testLoadUnknownVersion() throws Exception {
+        String envelope = "1.1\r\na@example.com\r\nb@example.com\r\n" + TIME_RECEIVED + "\r\n" + SCHEDULED + "\r\n0\r\n";
+        SMTPMessage.load( write( ( envelope + "body\r\n" ).getBytes( StandardCharsets.US_ASCII ) ).getPath() );
+    }
+
+    @Test( expected = InvalidSpoolFileException.class )
+    public void testLoadTruncatedEnvelope() throws Exception {
+        SMTPMessage message = newMessage( "b@example.com" );
+        message.startData();
+        message.save();
+        //The file ends in the middle of the delivery state.
+        byte[] file = Arrays.copyOf( Files.readAllBytes( message.getMessageLocation().toPath() ), 30 );
+        SMTPMessage.load( write( file ).getPath() );
+    }
+
+    @Test
+    public void testDiscardData() throws Exception {
+        SMTPMessage message = newMessage( "b@example.com" );
+        message.startData();
+        message.writeDataLine( "body" );
+        message.discardData();
+        String[] temporary = spoolDirectory.list( ( directory, name ) -> name.endsWith( ".tmp" ) );
+        assertEquals( 0, temporary.length );
+    }
+
+    @Test( expected = IOException.class )
+    public void testOpenDataWithoutData() throws Exception {
+        newMessage( "b@example.com" ).openData();
+    }
+
+    private static SMTPMessage newMessage( String... recipients ) throws Exception {
+        SMTPMessage message = new SMTPMessage();
+        message.setTimeReceived( new Date( TIME_RECEIVED ) );
+        message.setScheduledDelivery( new Date( SCHEDULED ) );
+        message.setDeliveryAttempts( 2 );
+        message.setFromAddress( new EmailAddress( "a@example.com" ) );
+        for( String recipient : recipients ) {
+            message.addToAddress( new EmailAddress( recipient ) );
+        }
+        return message;
+    }
+
+    /**
+     * Writes a spool file into the spool directory.
+     */
+    private static File write( byte[] content ) throws IOException {
+        spoolDirectory.mkdirs();
+        File file = File.createTempFile( "test", SMTPMessage.SPOOL_SUFFIX, spoolDirectory );
+        try( FileOutputStream out = new FileOutputStream( file ) ) {
+            out.write( content );
+        }
+        return file;
+    }
+
+    private static int version( File file ) throws IOException {
+        try( RandomAccessFile in = new RandomAccessFile( file, "r" ) ) {
+            in.seek( 3 );
+            return in.read();
+        }
+    }
+
+    private static byte[] readBytes( SMTPMessage message ) throws IOException {
+        try( InputStream in = message.openData() ) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static String read( SMTPMessage message ) throws IOException {
+        return new String( readBytes( message ), StandardCharsets.US_ASCII );
+    }
+}
+//EOF
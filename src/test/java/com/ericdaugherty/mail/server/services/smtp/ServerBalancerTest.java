@@ -0,0 +1,155 @@
+/******************************************************************************
+ * $Workfile: ServerBalancerTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.IOException;
+
+//JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+//Local imports
+import com.ericdaugherty.mail.server.configuration.DefaultSmtpServer;
+import com.ericdaugherty.mail.server.configuration.TestConfiguration;
+
+/**
+ * Tests the order in which the default smtp servers are tried for each
+ * balance setting.
+ *
+ * @author Eric Daugherty
+ */
+public class ServerBalancerTest {
+
+    private final DefaultSmtpServer[] servers = { server( "a", 1 ), server( "b", 1 ), server( "c", 1 ) };
+
+    @Test
+    public void testOrder() throws IOException {
+        ServerBalancer balancer = balancer( "order" );
+        DefaultSmtpServer[] ordered = balancer.order( servers );
+        assertNotSame( servers, ordered );
+        assertEquals( "a:25 b:25 c:25", names( ordered ) );
+        assertEquals( "a:25 b:25 c:25", names( balancer.order( servers ) ) );
+    }
+
+    @Test
+    public void testRoundRobin() throws IOException {
+        ServerBalancer balancer = balancer( "roundrobin" );
+        assertEquals( "a:25 b:25 c:25", names( balancer.order( servers ) ) );
+        assertEquals( "b:25 c:25 a:25", names( balancer.order( servers ) ) );
+        assertEquals( "c:25 a:25 b:25", names( balancer.order( servers ) ) );
+        assertEquals( "a:25 b:25 c:25", names( balancer.order( servers ) ) );
+    }
+
+    @Test
+    public void testWeighted() throws IOException {
+        ServerBalancer balancer = balancer( "weighted" );
+        DefaultSmtpServer[] weighted = { server( "a", 3 ), server( "b", 1 ) };
+        StringBuilder first = new StringBuilder();
+        for( int turn = 0; turn < 8; turn++ ) {
+            first.append( balancer.order( weighted )[0].getHost() );
+        }
+        assertEquals( "aabaaaba", first.toString() );
+    }
+
+    @Test
+    public void testLeastInFlight() throws IOException {
+        ServerBalancer balancer = balancer( "leastinflight" );
+        balancer.connected( "a:25" );
+        balancer.connected( "a:25" );
+        balancer.connected( "b:25" );
+        assertEquals( 2, balancer.getInFlight( "a:25" ) );
+        assertEquals( "c:25", balancer.order( servers )[0].toString() );
+        assertEquals( "a:25", balancer.order( servers )[2].toString() );
+
+        balancer.released( "a:25" );
+        balancer.released( "a:25" );
+        assertEquals( 0, balancer.getInFlight( "a:25" ) );
+        balancer.released( "a:25" );
+        assertEquals( 0, balancer.getInFlight( "a:25" ) );
+    }
+
+    @Test
+    public void testLatency() throws IOException {
+        TestConfiguration.load( "defaultsmtpservers.balance=latency" );
+        ServerHealth health = new ServerHealth();
+        ServerBalancer balancer = new ServerBalancer( health );
+        health.succeeded( "a:25", 100 );
+        health.succeeded( "b:25", 10 );
+        //Servers without a measurement are tried first.
+        assertEquals( "c:25 b:25 a:25", names( balancer.order( servers ) ) );
+
+        health.succeeded( "c:25", 40 );
+        balancer.connected( "b:25" );
+        balancer.connected( "b:25" );
+        balancer.connected( "b:25" );
+        assertEquals( "b:25", balancer.order( servers )[1].toString() );
+        balancer.connected( "b:25" );
+        assertEquals( "c:25 b:25 a:25", names( balancer.order( servers ) ) );
+    }
+
+    @Test
+    public void testSingleServer() throws IOException {
+        DefaultSmtpServer[] single = { server( "a", 1 ) };
+        DefaultSmtpServer[] ordered = balancer( "roundrobin" ).order( single );
+        assertNotSame( single, ordered );
+        assertEquals( "a:25", names( ordered ) );
+    }
+
+    private static ServerBalancer balancer( String balance ) throws IOException {
+        TestConfiguration.load( "defaultsmtpservers.balance=" + balance );
+        return new ServerBalancer( new ServerHealth() );
+    }
+
+    private static DefaultSmtpServer server( String host, int weight ) {
+        DefaultSmtpServer server = new DefaultSmtpServer();
+        server.setHost( host );
+        server.setPort( 25 );
+        server.setWeight( weight );
+        return server;
+    }
+
+    private static String names( DefaultSmtpServer[] servers ) {
+        StringBuilder names = new StringBuilder();
+        for( DefaultSmtpServer server : servers ) {
+            if( names.length() > 0 ) {
+                names.append( ' ' );
+            }
+            names.append( server );
+        }
+        return names.toString();
+    }
+}
+//EOF
@@ -0,0 +1,129 @@
+/******************************************************************************
+ * $Workfile: ServerHealthTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.IOException;
+
+//JUnit imports
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+//Local imports
+import com.ericdaugherty.mail.server.configuration.TestConfiguration;
+
+/**
+ * Tests skipping and retrying remote servers that failed.
+ *
+ * @author Eric Daugherty
+ */
+public class ServerHealthTest {
+
+    private static final String SERVER = "mx.example.com:25";
+    private static final long NOW = 1000000;
+
+    private ServerHealth health;
+
+    @Before
+    public void setUp() throws IOException {
+        TestConfiguration.load( "smtpdelivery.server.failures=2", "smtpdelivery.server.retry=1" );
+        health = new ServerHealth();
+    }
+
+    @Test
+    public void testUnknownServer() {
+        assertTrue( health.allow( SERVER, NOW ) );
+        assertEquals( 0, health.getFailures( SERVER ) );
+        assertEquals( 0, health.getLatency( SERVER ) );
+    }
+
+    @Test
+    public void testTriedUntilFailureLimit() {
+        health.failed( SERVER, NOW );
+        assertEquals( 1, health.getFailures( SERVER ) );
+        assertTrue( health.allow( SERVER, NOW ) );
+        assertTrue( health.allow( SERVER, NOW ) );
+    }
+
+    @Test
+    public void testSkippedAfterFailures() {
+        health.failed( SERVER, NOW );
+        health.failed( SERVER, NOW );
+        assertFalse( health.allow( SERVER, NOW + 999 ) );
+
+        //One delivery may try the server again, the others keep skipping it.
+        assertTrue( health.allow( SERVER, NOW + 1000 ) );
+        assertFalse( health.allow( SERVER, NOW + 1000 ) );
+
+        //A failed retry doubles the time.
+        health.failed( SERVER, NOW + 1000 );
+        assertFalse( health.allow( SERVER, NOW + 2999 ) );
+        assertTrue( health.allow( SERVER, NOW + 3000 ) );
+
+        health.succeeded( SERVER, 50 );
+        assertEquals( 0, health.getFailures( SERVER ) );
+        assertTrue( health.allow( SERVER, NOW + 3000 ) );
+        assertTrue( health.allow( SERVER, NOW + 3000 ) );
+    }
+
+    @Test
+    public void testConcurrentFailuresDoNotExtendTime() {
+        health.failed( SERVER, NOW );
+        health.failed( SERVER, NOW );
+        //A connection that was under way when the server started to be skipped.
+        health.failed( SERVER, NOW + 500 );
+        assertEquals( 3, health.getFailures( SERVER ) );
+        assertTrue( health.allow( SERVER, NOW + 1000 ) );
+    }
+
+    @Test
+    public void testAbandonedRetry() {
+        health.failed( SERVER, NOW );
+        health.failed( SERVER, NOW );
+        assertTrue( health.allow( SERVER, NOW + 1000 ) );
+        health.abandoned( SERVER );
+        assertTrue( health.allow( SERVER, NOW + 1000 ) );
+    }
+
+    @Test
+    public void testLatencyAverage() {
+        health.succeeded( SERVER, 100 );
+        assertEquals( 100, health.getLatency( SERVER ) );
+        health.succeeded( SERVER, 180 );
+        assertEquals( 110, health.getLatency( SERVER ) );
+    }
+}
+//EOF
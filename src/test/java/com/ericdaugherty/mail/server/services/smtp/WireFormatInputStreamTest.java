@@ -0,0 +1,151 @@
+/******************************************************************************
+ * $Workfile: WireFormatInputStreamTest.java $
+ * $Revision: $
+ * $Author:  $
+ * $Date: $
+ *
+ ******************************************************************************
+ * This program is a 100% Java Email Server.
+ ******************************************************************************
+ * Copyright (C) 2001, Eric Daugherty
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ ******************************************************************************
+ * For current versions and more information, please visit:
+ * http://www.ericdaugherty.com/java/mail
+ *
+ * or contact the author at:
+ * java@ericdaugherty.com
+ *
+ ******************************************************************************
+ * This program is based on the CSRMail project written by Calvin Smith.
+ * http://crsemail.sourceforge.net/
+ *****************************************************************************/
+
+package com.ericdaugherty.mail.server.services.smtp;
+
+//Java imports
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+//JUnit imports
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the conversion of spooled message data to SMTP wire format.
+ *
+ * @author Eric Daugherty
+ */
+public class WireFormatInputStreamTest {
+
+    @Test
+    public void testHeaderAndTerminator() throws IOException {
+        assertEquals( "X-DeliveredTo: user@example.com\r\nSubject: test\r\n\r\nbody\r\n.\r\n",
+                read( new WireFormatInputStream( "X-DeliveredTo: user@example.com", data( "Subject: test\r\n\r\nbody\r\n" ) ), 8192 ) );
+    }
+
+    @Test
+    public void testEmptyData() throws IOException {
+        assertEquals( ".\r\n", read( new WireFormatInputStream( data( "" ) ), 8192 ) );
+        assertEquals( "X: y\r\n.\r\n", read( new WireFormatInputStream( "X: y", data( "" ) ), 8192 ) );
+    }
+
+    @Test
+    public void testDotStuffing() throws IOException {
+        String expected = "..hidden\r\n...two\r\nmid.dle\r\n..\r\n.\r\n";
+        String data = ".hidden\r\n..two\r\nmid.dle\r\n.\r\n";
+        assertEquals( expected, read( new WireFormatInputStream( data( data ) ), 8192 ) );
+        //The period may be stuffed at the end of one read and the line
+        //continue in the next.
+        for( int chunk = 1; chunk < 5; chunk++ ) {
+            assertEquals( "chunk " + chunk, expected, read( new WireFormatInputStream( data( data ) ), chunk ) );
+        }
+    }
+
+    @Test
+    public void testSingleByteReads() throws IOException {
+        InputStream in = new WireFormatInputStream( "H: v", data( ".a\r\nb\r\n" ) );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int next;
+        while( ( next = in.read() ) != -1 ) {
+            out.write( next );
+        }
+        assertEquals( "H: v\r\n..a\r\nb\r\n.\r\n", new String( out.toByteArray(), StandardCharsets.US_ASCII ) );
+        assertEquals( -1, in.read() );
+    }
+
+    @Test
+    public void testUnterminatedLastLine() throws IOException {
+        assertEquals( "a\r\nlast\r\n.\r\n", read( new WireFormatInputStream( data( "a\r\nlast" ) ), 8192 ) );
+    }
+
+    @Test
+    public void testBytesAreNotDecoded() throws IOException {
+        //8-bit bytes, invalid UTF-8 and a bare CR followed by a period.
+        byte[] data = { 'a', (byte) 0xc3, (byte) 0xa9, (byte) 0xff, '\r', '.', 'b', '\r', '\n' };
+        byte[] expected = { 'a', (byte) 0xc3, (byte) 0xa9, (byte) 0xff, '\r', '.', 'b', '\r', '\n', '.', '\r', '\n' };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new WireFormatInputStream( new ByteArrayInputStream( data ) ).transferTo( out );
+        assertArrayEquals( expected, out.toByteArray() );
+    }
+
+    @Test
+    public void testLongData() throws IOException {
+        //Lines that cross the internal buffer.
+        StringBuilder data = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for( int line = 0; line < 5000; line++ ) {
+            String text = line % 3 == 0 ? ".line " + line : "line " + line;
+            data.append( text ).append( "\r\n" );
+            expected.append( line % 3 == 0 ? "." : "" ).append( text ).append( "\r\n" );
+        }
+        expected.append( ".\r\n" );
+        assertEquals( expected.toString(), read( new WireFormatInputStream( data( data.toString() ) ), 1000 ) );
+    }
+
+    @Test
+    public void testCloseClosesData() throws IOException {
+        boolean[] closed = new boolean[1];
+        InputStream data = new ByteArrayInputStream( new byte[0] ) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        new WireFormatInputStream( "H: v", data ).close();
+        assertTrue( closed[0] );
+    }
+
+    private static InputStream data( String text ) {
+        return new ByteArrayInputStream( text.getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    /**
+     * Reads the stream to the end with reads of the specified length.
+     */
+    private static String read( InputStream in, int chunk ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunk];
+        int count;
+        while( ( count = in.read( buffer, 0, chunk ) ) != -1 ) {
+            out.write( buffer, 0, count );
+        }
+        in.close();
+        return new String( out.toByteArray(), StandardCharsets.US_ASCII );
+    }
+}
+//EOF